@@ -6,6 +6,7 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.util.List;
 
 public class ChatClient extends javax.swing.JFrame
 {
@@ -17,7 +18,9 @@ public class ChatClient extends javax.swing.JFrame
 	private javax.swing.JScrollPane jScrollPane1;
 	private javax.swing.JScrollPane jScrollPane2;
 	private javax.swing.JTextArea jTextArea1;
-	private javax.swing.JTextArea jTextArea2;
+	private JList<String> jList;
+	// 在线用户列表的界面数据，只在事件分派线程中修改
+	private DefaultListModel<String> userListModel = new DefaultListModel<String>();
 	private javax.swing.JTextField jTextField;
 
 	private ClientConnection clientConnection;
@@ -29,9 +32,48 @@ public class ChatClient extends javax.swing.JFrame
 		initComponents();
 	}
 
-	public JTextArea getJTextArea2()
+	public JList<String> getJList()
 	{
-		return jTextArea2;
+		return jList;
+	}
+
+	// 用完整的在线用户列表替换界面上的列表
+	public void setUsers(final List<String> users)
+	{
+		SwingUtilities.invokeLater(new Runnable()
+		{
+			public void run()
+			{
+				DefaultListModel<String> model = new DefaultListModel<String>();
+
+				for(String user : users)
+				{
+					model.addElement(user);
+				}
+
+				userListModel = model;
+				jList.setModel(model);
+			}
+		});
+	}
+
+	// 有用户登录或退出时，只修改界面上变化的那一行
+	public void updateUser(final String username, final boolean added)
+	{
+		SwingUtilities.invokeLater(new Runnable()
+		{
+			public void run()
+			{
+				if(added)
+				{
+					userListModel.addElement(username);
+				}
+				else
+				{
+					userListModel.removeElement(username);
+				}
+			}
+		});
 	}
 
 	public JTextArea getJTextArea1()
@@ -49,7 +91,7 @@ public class ChatClient extends javax.swing.JFrame
 		jButton2 = new javax.swing.JButton();
 		jPanel2 = new javax.swing.JPanel();
 		jScrollPane2 = new javax.swing.JScrollPane();
-		jTextArea2 = new javax.swing.JTextArea();
+		jList = new JList<String>(userListModel);
 
 		jPanel3 = new JPanel();
 
@@ -61,11 +103,10 @@ public class ChatClient extends javax.swing.JFrame
 		jTextArea1.setColumns(30);
 		jTextArea1.setRows(25);
 
-		jTextArea2.setColumns(20);
-		jTextArea2.setRows(25);
+		jList.setVisibleRowCount(25);
+		jList.setPrototypeCellValue("XXXXXXXXXXXXXXXXXXXX");
 
 		this.jTextArea1.setEditable(false);
-		this.jTextArea2.setEditable(false);
 
 		jPanel3.add(jTextField);
 		jPanel3.add(jButton1);
@@ -78,7 +119,7 @@ public class ChatClient extends javax.swing.JFrame
 		jPanel2.add(jScrollPane2);
 
 		jScrollPane1.setViewportView(jTextArea1);
-		jScrollPane2.setViewportView(jTextArea2);
+		jScrollPane2.setViewportView(jList);
 
 		jButton1.setText("发送");
 		jButton2.setText("清屏");
@@ -1,13 +1,14 @@
 package client;
 
 import util.CharacterUtil;
-import util.XMLUtil;
+import util.ChatMessage;
+import util.FrameDecoder;
+import util.MessageCodecs;
 
 import javax.swing.*;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.List;
+import java.nio.channels.SocketChannel;
 
 public class ClientConnection extends Thread
 {
@@ -21,12 +22,20 @@ public class ClientConnection extends Thread
 
 	private Socket socket;
 
-	private InputStream is;
-
-	private OutputStream os;
+	// 连接的通道，读写都使用DirectBufferPool中的直接缓冲区
+	private SocketChannel channel;
 
 	private ChatClient chatClient;
 
+	// 本地在线用户列表的版本号，与服务器端发来的用户增减消息中的版本号不连续时需要重新获取完整列表
+	private int rosterVersion;
+
+	// 已经请求了完整的在线用户列表，在收到之前忽略用户增减消息
+	private boolean resyncRequested;
+
+	// 从服务器端逐条读出消息；登录结果使用XML，之后使用服务器端选定的协议版本
+	private FrameDecoder decoder;
+
 	public ClientConnection(Client client, String hostAddress, int port, String username)
 	{
 		this.client = client;
@@ -43,10 +52,10 @@ public class ClientConnection extends Thread
 	{
 		try
 		{
-			this.socket = new Socket(this.hostAddress, this.port);
+			this.channel = SocketChannel.open(new InetSocketAddress(this.hostAddress, this.port));
+			this.socket = this.channel.socket();
 
-			this.is = this.socket.getInputStream();
-			this.os = this.socket.getOutputStream();
+			this.decoder = new FrameDecoder(this.channel, MessageCodecs.XML);
 		}
 		catch(Exception ex)
 		{
@@ -61,20 +70,22 @@ public class ClientConnection extends Thread
 	{
 		try
 		{
-			String xml = XMLUtil.constructLoginXML(this.username);
-
-			os.write(xml.getBytes()); // 向服务器端发送用户的登录信息（其中包含了用户名）
+			// 登录信息总是使用XML发送，并带上客户端支持的最高协议版本
+			ChatMessage login = ChatMessage.login(this.username, MessageCodecs.getSupportedVersion());
 
-			byte[] buf = new byte[5000];
-			int length = is.read(buf); // 读取服务器端的响应结果，判断用户是否登录成功
+			login.write(this.channel, MessageCodecs.XML); // 向服务器端发送用户的登录信息（其中包含了用户名）
+			login.release();
 
-			String loginResultXML = new String(buf, 0, length);
-
-			String loginResult = XMLUtil.extractLoginResult(loginResultXML);
+			// 读取服务器端的响应结果，判断用户是否登录成功
+			// 服务器端紧接着发送的在线用户列表可能被一起读到，它会留在decoder中
+			ChatMessage loginResult = this.decoder.read();
 
 			// 登录成功
-			if("success".equals(loginResult))
+			if(loginResult != null && "success".equals(loginResult.getResult()))
 			{
+				// 之后使用服务器端选定的协议版本，不支持版本协商的服务器端只会使用XML
+				this.decoder.setCodec(MessageCodecs.forVersion(loginResult.getVersion()));
+
 				//打开聊天室主窗口
 				this.chatClient = new ChatClient(this);
 
@@ -85,6 +96,8 @@ public class ClientConnection extends Thread
 			// 登录失败
 			else
 			{
+				this.decoder.release();
+
 				return false;
 			}
 		}
@@ -107,21 +120,21 @@ public class ClientConnection extends Thread
 		{
 			int t = Integer.parseInt(type);
 
-			String xml = null;
+			ChatMessage data = null;
 
 			//客户端向服务器端发送聊天数据
 			if(CharacterUtil.CLIENT_MESSAGE == t)
 			{
-				xml = XMLUtil.constructMessageXML(this.username, message);
+				data = ChatMessage.clientMessage(this.username, message);
 			}
 			//客户端向服务器端发送关闭窗口的数据
 			else if(CharacterUtil.CLOSE_CLIENT_WINDOW == t)
 			{
-				xml = XMLUtil.constructCloseClientWindowXML(this.username);
+				data = ChatMessage.closeClientWindow(this.username);
 			}
 
 			//向服务器端发送数据
-			this.os.write(xml.getBytes());
+			this.send(data);
 
 		}
 		catch(Exception ex)
@@ -130,6 +143,33 @@ public class ClientConnection extends Thread
 		}
 	}
 
+	// 界面线程与接收数据的线程都可能向服务器端发送数据
+	private synchronized void send(ChatMessage data) throws Exception
+	{
+		data.write(this.channel, this.decoder.getCodec());
+		data.release();
+	}
+
+	// 处理用户登录/退出消息，版本号不连续说明漏掉了消息，向服务器端请求完整的在线用户列表
+	private void updateUser(ChatMessage message, boolean added) throws Exception
+	{
+		if(this.resyncRequested)
+		{
+			return;
+		}
+
+		if(message.getVersion() != this.rosterVersion + 1)
+		{
+			this.resyncRequested = true;
+			this.send(ChatMessage.userListRequest());
+
+			return;
+		}
+
+		this.rosterVersion = message.getVersion();
+		this.chatClient.updateUser(message.getUser(), added);
+	}
+
 	@Override
 	public void run()
 	{
@@ -137,31 +177,38 @@ public class ClientConnection extends Thread
 		{
 			while(true)
 			{
-				byte[] buf = new byte[5000];
-				int length = is.read(buf);
+				ChatMessage message = this.decoder.read();
 
-				String xml = new String(buf, 0, length);
+				// 服务器端断开了连接
+				if(message == null)
+				{
+					break;
+				}
 
-				int type = Integer.parseInt(XMLUtil.extractType(xml));
+				int type = message.getType();
 
 				//在线用户列表
 				if(type == CharacterUtil.USER_LIST)
 				{
-					List<String> list = XMLUtil.extractUserList(xml);
-
-					String users = "";
-
-					for(String user : list)
-					{
-						users += user + "\n";
-					}
+					this.rosterVersion = message.getVersion();
+					this.resyncRequested = false;
 
-					this.chatClient.getJTextArea2().setText(users);
+					this.chatClient.setUsers(message.getUsers());
+				}
+				// 有用户登录
+				else if(type == CharacterUtil.USER_ADDED)
+				{
+					this.updateUser(message, true);
+				}
+				// 有用户退出
+				else if(type == CharacterUtil.USER_REMOVED)
+				{
+					this.updateUser(message, false);
 				}
 				// 服务器端发来的聊天数据
 				else if(type == CharacterUtil.SERVER_MESSAGE)
 				{
-					String content = XMLUtil.extractContent(xml);
+					String content = message.getContent();
 
 					this.chatClient.getJTextArea1().append(content + "\n");
 				}
@@ -196,6 +243,10 @@ public class ClientConnection extends Thread
 		{
 			ex.printStackTrace();
 		}
+		finally
+		{
+			this.decoder.release();
+		}
 	}
 
 
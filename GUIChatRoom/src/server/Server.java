@@ -1,6 +1,6 @@
 package server;
 
-import util.XMLUtil;
+import util.ChatMessage;
 
 import javax.swing.*;
 import java.awt.*;
@@ -9,8 +9,8 @@ import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 public class Server extends JFrame
@@ -29,11 +29,18 @@ public class Server extends JFrame
 
 	private JScrollPane jScrollPane;
 
-	private JTextArea jTextArea;
+	private JList<String> jList;
+
+	// 在线用户列表的界面数据，只在事件分派线程中修改
+	private DefaultListModel<String> userListModel = new DefaultListModel<String>();
 
 	private JTextField jTextField;
 
-	private Map<String, ServerMessageThread> map = new HashMap<String, ServerMessageThread>();
+	// 多个线程同时读取（群发聊天数据）和修改（登录、退出）
+	private Map<String, ServerMessageThread> map = new ConcurrentHashMap<String, ServerMessageThread>();
+
+	// 在线用户列表的版本号，每次有用户登录或退出时加1
+	private int rosterVersion;
 
 	public Server(String name)
 	{
@@ -57,9 +64,117 @@ public class Server extends JFrame
 		return jButton;
 	}
 
-	public JTextArea getJTextArea()
+	public JList<String> getJList()
+	{
+		return jList;
+	}
+
+	/**
+	 * 用户登录成功：新用户收到完整的在线用户列表，其他用户只收到一条用户登录消息
+	 * 不支持增量消息的老客户端仍然收到完整的列表
+	 * 消息在锁内放入每个客户端的发送队列，各客户端按版本号顺序收到，写出由各自的发送线程完成，锁内不做网络写
+	 */
+	public synchronized void addUser(String username, ServerMessageThread serverMessageThread)
+	{
+		this.map.put(username, serverMessageThread);
+		this.rosterVersion++;
+
+		ChatMessage added = ChatMessage.userAdded(username, this.rosterVersion);
+		ChatMessage snapshot = ChatMessage.userList(this.map.keySet(), this.rosterVersion);
+
+		for(ServerMessageThread smt : this.map.values())
+		{
+			if(smt == serverMessageThread || !smt.isIncrementalRoster())
+			{
+				smt.sendMessage(snapshot);
+			}
+			else
+			{
+				smt.sendMessage(added);
+			}
+		}
+
+		// 已经放入所有用户的发送队列，最后一个写完的发送线程归还编码时使用的缓冲区
+		added.release();
+		snapshot.release();
+
+		this.updateUserListModel(username, true);
+	}
+
+	/**
+	 * 用户退出：其他用户只收到一条用户退出消息；返回false表示该用户已经不在列表中
+	 */
+	public synchronized boolean removeUser(String username, ServerMessageThread serverMessageThread)
+	{
+		if(!this.map.remove(username, serverMessageThread))
+		{
+			return false;
+		}
+
+		this.rosterVersion++;
+
+		ChatMessage removed = ChatMessage.userRemoved(username, this.rosterVersion);
+		ChatMessage snapshot = null;
+
+		for(ServerMessageThread smt : this.map.values())
+		{
+			if(smt.isIncrementalRoster())
+			{
+				smt.sendMessage(removed);
+			}
+			else
+			{
+				// 只有存在老客户端时才需要构造完整的列表
+				if(snapshot == null)
+				{
+					snapshot = ChatMessage.userList(this.map.keySet(), this.rosterVersion);
+				}
+
+				smt.sendMessage(snapshot);
+			}
+		}
+
+		removed.release();
+
+		if(snapshot != null)
+		{
+			snapshot.release();
+		}
+
+		this.updateUserListModel(username, false);
+
+		return true;
+	}
+
+	/**
+	 * 客户端发现用户列表版本号不连续时，向它重新发送完整的在线用户列表
+	 */
+	public synchronized void sendUserList(ServerMessageThread serverMessageThread)
 	{
-		return jTextArea;
+		ChatMessage snapshot = ChatMessage.userList(this.map.keySet(), this.rosterVersion);
+
+		serverMessageThread.sendMessage(snapshot);
+
+		snapshot.release();
+	}
+
+	// 只修改界面上变化的那一行，而不是重新生成整个列表
+	private void updateUserListModel(final String username, final boolean added)
+	{
+		SwingUtilities.invokeLater(new Runnable()
+		{
+			public void run()
+			{
+				if(added)
+				{
+					userListModel.addElement(username);
+				}
+				else
+				{
+					userListModel.removeElement(username);
+				}
+			}
+		});
 	}
 
 	public JTextField getJTextField()
@@ -84,7 +199,7 @@ public class Server extends JFrame
 		jTextField = new JTextField(10);
 		jButton = new JButton();
 		jScrollPane = new JScrollPane();
-		jTextArea = new JTextArea();
+		jList = new JList<String>(userListModel);
 
 
 		jPanel1.setBorder(BorderFactory.createTitledBorder("服务器信息"));
@@ -117,7 +232,7 @@ public class Server extends JFrame
 				{
 					Collection<ServerMessageThread> cols = Server.this.map.values();
 
-					String messageXML = XMLUtil.constructCloseServerWindowXML();
+					ChatMessage messageXML = ChatMessage.closeServerWindow();
 
 					for(ServerMessageThread smt : cols)
 					{
@@ -142,12 +257,11 @@ public class Server extends JFrame
 		jPanel1.add(jTextField);
 		jPanel1.add(jButton);
 
-		jTextArea.setEditable(false); //不允许用户手动修改在线用户列表
-		jTextArea.setRows(20);
-		jTextArea.setColumns(30);
-		jTextArea.setForeground(new Color(0, 51, 204));
+		jList.setVisibleRowCount(20);
+		jList.setPrototypeCellValue("XXXXXXXXXXXXXXXXXXXXXXXXXXXXXX");
+		jList.setForeground(new Color(0, 51, 204));
 
-		jScrollPane.setViewportView(jTextArea); //将JTextArea放置到JScrollPane中
+		jScrollPane.setViewportView(jList); //将JList放置到JScrollPane中
 
 		jPanel2.add(jScrollPane);
 
@@ -1,16 +1,19 @@
 package server;
 
-import util.XMLUtil;
+import util.ChatMessage;
+import util.FrameDecoder;
+import util.MessageCodecs;
 
 import javax.swing.*;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
 public class ServerConnection extends Thread
 {
-	private ServerSocket serverSocket;
+	// 以阻塞方式接受连接的通道，每个连接都有自己的SocketChannel，可以直接读写直接缓冲区
+	private ServerSocketChannel serverChannel;
 
 	private Server server;
 
@@ -20,7 +23,8 @@ public class ServerConnection extends Thread
 		{
 			this.server = server;
 
-			this.serverSocket = new ServerSocket(port);
+			this.serverChannel = ServerSocketChannel.open();
+			this.serverChannel.bind(new InetSocketAddress(port));
 
 			// 下面两行代码不能放到上面一行代码之前
 			// 因为服务器启动时有可能会抛出异常
@@ -44,19 +48,27 @@ public class ServerConnection extends Thread
 		{
 			try
 			{
-				Socket socket = this.serverSocket.accept();
+				SocketChannel channel = this.serverChannel.accept();
+				Socket socket = channel.socket();
 
-				InputStream is = socket.getInputStream();
-				OutputStream os = socket.getOutputStream();
+				//客户端发来的连接信息（包括了用户名），登录信息总是使用XML发送
+				FrameDecoder decoder = new FrameDecoder(channel, MessageCodecs.XML);
+				ChatMessage login = decoder.read();
 
-				byte[] buf = new byte[5000];
-				int length = is.read(buf);
+				// 客户端没有发送登录信息就断开了连接
+				if(login == null)
+				{
+					decoder.release();
+					socket.close();
 
-				//客户端发来的连接信息（包括了用户名）
-				String loginXML = new String(buf, 0, length);
+					continue;
+				}
 
 				// 从客户端登录数据中提取出用户名信息（username）
-				String username = XMLUtil.extractUsername(loginXML);
+				String username = login.getUser();
+
+				// 选出双方都支持的协议版本，老的客户端没有版本信息，只能使用XML
+				int version = MessageCodecs.negotiate(login.getVersion());
 
 				String loginResult = null;
 
@@ -77,23 +89,28 @@ public class ServerConnection extends Thread
 					isLogin = true;
 				}
 
-				String xml = XMLUtil.constructLoginResultXML(loginResult);
+				// 只有发来版本信息的客户端才能理解登录结果中的版本
+				ChatMessage result = ChatMessage.loginResult(loginResult, login.getVersion() == 0 ? 0 : version);
 
-				os.write(xml.getBytes());
+				result.write(channel, MessageCodecs.XML);
+				result.release();
 
 				// 如果用户登录成功，启动线程
 				if(isLogin)
 				{
 					// 准备创建新的线程，用于处理用户的聊天数据，每一个连接上的用户都会对应一个该线程
-					ServerMessageThread serverMessageThread = new ServerMessageThread(this.server, socket);
-					//将用户名及与之对应的线程对象 放到Map中
-					this.server.getMap().put(username, serverMessageThread);
-
-					//更新用户列表（服务器端+客户端）
-					serverMessageThread.updateUserList();
+					// 之后的数据使用协商出的协议版本，登录信息之后已经读到的数据也按新版本解析
+					decoder.setCodec(MessageCodecs.forVersion(version));
+					ServerMessageThread serverMessageThread = new ServerMessageThread(this.server, socket, decoder, login);
+					//将用户名及与之对应的线程对象 放到Map中，向该用户发送完整的用户列表，并通知其他用户（服务器端+客户端）
+					this.server.addUser(username, serverMessageThread);
 
 					serverMessageThread.start();
 				}
+				else
+				{
+					decoder.release();
+				}
 			}
 			catch(Exception ex)
 			{
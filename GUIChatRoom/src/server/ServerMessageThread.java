@@ -1,32 +1,74 @@
 package server;
 
 import util.CharacterUtil;
-import util.XMLUtil;
+import util.ChatMessage;
+import util.FrameDecoder;
 
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.IOException;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import java.util.Collection;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 public class ServerMessageThread extends Thread
 {
+	/**
+	 * 发送队列最多容纳的消息数，超过说明客户端读得太慢，断开它
+	 */
+	private static final int MAX_PENDING = 1000;
+
+	/**
+	 * 放在发送队列中，表示之前的消息都写完之后关闭连接
+	 */
+	private static final ChatMessage CLOSE = ChatMessage.serverMessage("");
+
 	private Server server;
 
-	private InputStream is;
+	private Socket socket;
+
+	// 从客户端逐条读出消息，编码方式为登录时协商出的协议版本
+	private FrameDecoder decoder;
+
+	// 连接的通道，消息从ChatMessage的直接缓冲区写出，不经过输出流复制
+	private SocketChannel channel;
+
+	private String username;
 
-	private OutputStream os;
+	private boolean incrementalRoster;
 
-	public ServerMessageThread(Server server, Socket socket)
+	// 等待写给客户端的消息，由发送线程按放入的顺序写出，放入消息的线程不会因为客户端读得慢而阻塞
+	private BlockingQueue<ChatMessage> sendQueue = new ArrayBlockingQueue<ChatMessage>(MAX_PENDING);
+
+	// 发送线程结束之后不再接受新的消息
+	private boolean sendClosed;
+
+	private Thread sender = new Thread("ServerMessageSender")
+	{
+		@Override
+		public void run()
+		{
+			sendLoop();
+		}
+	};
+
+	public ServerMessageThread(Server server, Socket socket, FrameDecoder decoder, ChatMessage login)
 	{
 		try
 		{
 			this.server = server;
 
-			this.is = socket.getInputStream();
+			this.username = login.getUser();
+
+			// 登录信息中带有协议版本的客户端都能处理用户增减消息
+			this.incrementalRoster = login.getVersion() != 0;
+
+			this.socket = socket;
 
-			this.os = socket.getOutputStream();
+			this.decoder = decoder;
+
+			this.channel = socket.getChannel();
 		}
 		catch(Exception ex)
 		{
@@ -34,76 +76,157 @@ public class ServerMessageThread extends Thread
 		}
 	}
 
-	// 更新用户列表
-	// 首先更新服务器端的用户列表
-	// 然后更新客户端的用户列表
-	public void updateUserList()
+	// 客户端是否支持用户增减消息；不支持的老客户端每次都需要收到完整的在线用户列表
+	public boolean isIncrementalRoster()
 	{
-		//获得用户名的集合
-		Set<String> users = this.server.getMap().keySet();
-		//构造向客户端发送的在线用户列表数据xml
-		String xml = XMLUtil.constructUserList(users);
+		return incrementalRoster;
+	}
+
+	//向客户端发送数据：只放入发送队列，立即返回，可以在持有锁时调用
+	//多个线程可能同时向同一个客户端发送数据，发送线程按放入的顺序逐条完整地写出
+	public synchronized void sendMessage(ChatMessage message)
+	{
+		if(this.sendClosed)
+		{
+			return;
+		}
 
-		String str = "";
+		message.retain();
 
-		for(String user : users)
+		if(!this.sendQueue.offer(message))
 		{
-			str += user + "\n";
+			message.release();
+
+			// 客户端读得太慢，断开连接，读线程随后把该用户从在线用户列表中去除
+			this.sendClosed = true;
+
+			System.err.println("Disconnecting " + this.username + ": " + MAX_PENDING + " messages waiting to be sent");
+
+			this.closeSocket();
 		}
+	}
 
-		//首先更新服务器端的用户列表
-		this.server.getJTextArea().setText(str);
+	// 之前放入的消息都写完之后关闭连接
+	private synchronized void closeAfterSending()
+	{
+		if(!this.sendClosed && !this.sendQueue.offer(CLOSE))
+		{
+			this.closeSocket();
+		}
+	}
 
-		Collection<ServerMessageThread> cols = (Collection<ServerMessageThread>) this.server.getMap().values();
+	// 发送线程：逐条写出发送队列中的消息，写完后归还消息的缓冲区
+	private void sendLoop()
+	{
+		try
+		{
+			while(true)
+			{
+				ChatMessage message = this.sendQueue.take();
+
+				if(message == CLOSE)
+				{
+					break;
+				}
 
-		//遍历与每一个客户端对应的线程，向每一个客户端发送在线用户列表
-		for(ServerMessageThread smt : cols)
+				try
+				{
+					message.write(this.channel, this.decoder.getCodec());
+				}
+				finally
+				{
+					message.release();
+				}
+			}
+		}
+		catch(Exception ex)
 		{
-			smt.sendMessage(xml);
+			// 连接已经断开，读线程负责去除该用户
+		}
+		finally
+		{
+			this.closeSocket();
+
+			// 不再接受新的消息，归还还没有写出的消息的缓冲区
+			synchronized(this)
+			{
+				this.sendClosed = true;
+
+				ChatMessage message;
+
+				while((message = this.sendQueue.poll()) != null)
+				{
+					if(message != CLOSE)
+					{
+						message.release();
+					}
+				}
+			}
 		}
 	}
 
-	//向客户端发送数据
-	public void sendMessage(String message)
+	private void closeSocket()
 	{
 		try
 		{
-			os.write(message.getBytes());
+			this.socket.close();
 		}
 		catch(Exception ex)
 		{
-			ex.printStackTrace();
+
 		}
 	}
 
 	@Override
 	public void run()
+	{
+		this.sender.setDaemon(true);
+		this.sender.start();
+
+		try
+		{
+			this.loop();
+		}
+		finally
+		{
+			// 该连接不会再读数据了，归还读缓冲区；发送线程写完已经放入的消息后关闭连接
+			this.decoder.release();
+
+			this.closeAfterSending();
+		}
+	}
+
+	private void loop()
 	{
 		while(true)
 		{
 			try
 			{
-				byte[] buf = new byte[5000];
+				//客户端发来的消息，一次读到的数据中可能有多条消息，也可能只有半条
+				ChatMessage received = this.decoder.read();
 
-				int length = this.is.read(buf);
+				// 客户端没有发送关闭窗口的消息就断开了连接
+				if(received == null)
+				{
+					this.disconnected();
 
-				//客户端发来的消息
-				String xml = new String(buf,0,length);
+					break;
+				}
 
-				int type = Integer.parseInt(XMLUtil.extractType(xml));
+				int type = received.getType();
 
 				// 聊天数据
 				if(CharacterUtil.CLIENT_MESSAGE == type)
 				{
 					//用户名（谁发来的消息）
-					String username = XMLUtil.extractUsername(xml);
+					String username = received.getUser();
 					//聊天的文本内容
-					String content = XMLUtil.extractContent(xml);
+					String content = received.getContent();
 
 					//构造向所有客户端发送的消息
 					String message = username + " : " + content;
-					//向所有客户端发送的XML聊天数据
-					String messageXML = XMLUtil.constructServerMessageXML(message);
+					//向所有客户端发送的聊天数据，每种编码方式只编码一次
+					ChatMessage messageXML = ChatMessage.serverMessage(message);
 
 					Map<String, ServerMessageThread> map = (Map<String, ServerMessageThread>) this.server.getMap();
 
@@ -114,33 +237,47 @@ public class ServerMessageThread extends Thread
 						//向XML聊天数据发送给每一个客户端
 						smt.sendMessage(messageXML);
 					}
+
+					messageXML.release();
+				}
+				// 客户端请求完整的在线用户列表
+				else if(CharacterUtil.USER_LIST_REQUEST == type)
+				{
+					this.server.sendUserList(this);
 				}
 				// 关闭客户端窗口
 				else if(CharacterUtil.CLOSE_CLIENT_WINDOW == type)
 				{
-					String username = XMLUtil.extractUsername(xml);
-					//获得待删除用户所对应的线程对象
-					ServerMessageThread smt = this.server.getMap().get(username);
-					//构造出向客户端确认关闭的XML信息
-					String confirmationXML = XMLUtil.constructCloseClientWindowConfirmationXML();
+					//构造出向客户端确认关闭的信息
+					ChatMessage confirmationXML = ChatMessage.closeClientWindowConfirmation();
 					//向客户端发送任意一条确认信息
-					smt.sendMessage(confirmationXML);
-
-					// 从用户列表的Map中将该用户去除
-					this.server.getMap().remove(username);
-					// 更新在线用户列表
-					this.updateUserList();
+					this.sendMessage(confirmationXML);
+					confirmationXML.release();
 
-					this.is.close();
-					this.os.close();
+					// 从在线用户列表中将该用户去除，并通知其他用户；确认信息写出之后发送线程关闭连接
+					this.server.removeUser(this.username, this);
 
 					break; // 结束该线程
 				}
 			}
+			catch(IOException ex)
+			{
+				this.disconnected();
+
+				break;
+			}
 			catch(Exception ex)
 			{
 
 			}
 		}
 	}
+
+	// 连接已经断开，如果该用户还在在线用户列表中，则将其去除
+	private void disconnected()
+	{
+		this.closeSocket();
+
+		this.server.removeUser(this.username, this);
+	}
 }
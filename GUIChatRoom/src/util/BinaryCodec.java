@@ -0,0 +1,218 @@
+package util;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 紧凑的二进制协议（版本2）
+ *
+ * 每条消息的格式：
+ *   int  长度（不包括这4个字节）
+ *   byte 类型
+ *   byte 字段标志位，只有标志位被设置的字段才会出现，按下面的顺序排列
+ *   user    : int 字节数 + UTF-8
+ *   content : int 字节数 + UTF-8
+ *   result  : int 字节数 + UTF-8
+ *   users   : int 个数 + 每个用户名（int 字节数 + UTF-8）
+ *   version : int
+ */
+public class BinaryCodec implements MessageCodec
+{
+	public static final int VERSION = 2;
+
+	/**
+	 * 长度前缀的字节数
+	 */
+	public static final int HEADER_LENGTH = 4;
+
+	private static final int USER = 1;
+
+	private static final int CONTENT = 2;
+
+	private static final int RESULT = 4;
+
+	private static final int USERS = 8;
+
+	private static final int VERSION_FIELD = 16;
+
+	@Override
+	public int getVersion()
+	{
+		return VERSION;
+	}
+
+	@Override
+	public byte[] encode(ChatMessage message)
+	{
+		byte[] user = utf8(message.getUser());
+		byte[] content = utf8(message.getContent());
+		byte[] result = utf8(message.getResult());
+
+		List<String> users = message.getUsers();
+		byte[][] names = new byte[users.size()][];
+
+		int flags = 0;
+		int length = 2;
+
+		if(user != null)
+		{
+			flags |= USER;
+			length += 4 + user.length;
+		}
+		if(content != null)
+		{
+			flags |= CONTENT;
+			length += 4 + content.length;
+		}
+		if(result != null)
+		{
+			flags |= RESULT;
+			length += 4 + result.length;
+		}
+		if(message.getType() == CharacterUtil.USER_LIST)
+		{
+			flags |= USERS;
+			length += 4;
+
+			for(int i = 0; i < names.length; i++)
+			{
+				names[i] = utf8(users.get(i));
+				length += 4 + names[i].length;
+			}
+		}
+		if(message.getVersion() != 0)
+		{
+			flags |= VERSION_FIELD;
+			length += 4;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + length);
+
+		buffer.putInt(length);
+		buffer.put((byte) message.getType());
+		buffer.put((byte) flags);
+
+		putString(buffer, user);
+		putString(buffer, content);
+		putString(buffer, result);
+
+		if((flags & USERS) != 0)
+		{
+			buffer.putInt(names.length);
+
+			for(byte[] name : names)
+			{
+				putString(buffer, name);
+			}
+		}
+		if((flags & VERSION_FIELD) != 0)
+		{
+			buffer.putInt(message.getVersion());
+		}
+
+		return buffer.array();
+	}
+
+	@Override
+	public int frameLength(byte[] buf, int offset, int length)
+	{
+		if(length < HEADER_LENGTH)
+		{
+			return -1;
+		}
+
+		int bodyLength = ((buf[offset] & 0xff) << 24) | ((buf[offset + 1] & 0xff) << 16)
+				| ((buf[offset + 2] & 0xff) << 8) | (buf[offset + 3] & 0xff);
+
+		if(bodyLength < 0)
+		{
+			throw new IllegalStateException("Invalid frame length: " + bodyLength);
+		}
+
+		return length - HEADER_LENGTH < bodyLength ? -1 : HEADER_LENGTH + bodyLength;
+	}
+
+	@Override
+	public ChatMessage decode(byte[] buf, int offset, int length)
+	{
+		try
+		{
+			ByteBuffer buffer = ByteBuffer.wrap(buf, offset, length);
+
+			int bodyLength = buffer.getInt();
+
+			if(bodyLength < 2 || bodyLength > buffer.remaining())
+			{
+				return null;
+			}
+
+			int type = buffer.get();
+			int flags = buffer.get();
+
+			String user = (flags & USER) != 0 ? getString(buffer) : null;
+			String content = (flags & CONTENT) != 0 ? getString(buffer) : null;
+			String result = (flags & RESULT) != 0 ? getString(buffer) : null;
+
+			List<String> users = null;
+
+			if((flags & USERS) != 0)
+			{
+				int count = buffer.getInt();
+
+				if(count < 0)
+				{
+					return null;
+				}
+
+				users = new ArrayList<String>(Math.min(count, buffer.remaining() / 4));
+
+				for(int i = 0; i < count; i++)
+				{
+					users.add(getString(buffer));
+				}
+			}
+
+			int version = (flags & VERSION_FIELD) != 0 ? buffer.getInt() : 0;
+
+			return new ChatMessage(type, user, content, result, users, version);
+		}
+		// 数据不完整或字段不合法的消息都按无法解析处理
+		catch(RuntimeException ex)
+		{
+			return null;
+		}
+	}
+
+	private static byte[] utf8(String s)
+	{
+		return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static void putString(ByteBuffer buffer, byte[] bytes)
+	{
+		if(bytes != null)
+		{
+			buffer.putInt(bytes.length);
+			buffer.put(bytes);
+		}
+	}
+
+	private static String getString(ByteBuffer buffer)
+	{
+		int length = buffer.getInt();
+
+		if(length < 0 || length > buffer.remaining())
+		{
+			throw new BufferUnderflowException();
+		}
+
+		String s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+
+		buffer.position(buffer.position() + length);
+
+		return s;
+	}
+}
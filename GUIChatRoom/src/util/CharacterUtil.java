@@ -15,4 +15,12 @@ public class CharacterUtil
 	public static final int CLOSE_SERVER_WINDOW = 6;
 	
 	public static final int CLOSE_CLIENT_WINDOW_CONFIRMATION = 7;
+
+	public static final int LOGIN_RESULT = 8;
+
+	public static final int USER_ADDED = 9;
+
+	public static final int USER_REMOVED = 10;
+
+	public static final int USER_LIST_REQUEST = 11;
 }
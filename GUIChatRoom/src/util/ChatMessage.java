@@ -0,0 +1,264 @@
+package util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 客户端与服务器端之间传送的一条消息，与具体的编码方式（XML或二进制）无关
+ *
+ * type    : 消息类型，见CharacterUtil
+ * user    : 用户名（登录、聊天数据、关闭客户端窗口）
+ * content : 聊天内容
+ * result  : 登录结果
+ * users   : 在线用户列表
+ * version : 登录时客户端支持的协议版本 / 登录结果中服务器端选定的协议版本 /
+ *           在线用户列表及用户增减消息中的用户列表版本号（每次有用户登录或退出时加1）
+ */
+public class ChatMessage
+{
+	private final int type;
+
+	private final String user;
+
+	private final String content;
+
+	private final String result;
+
+	private final List<String> users;
+
+	private final int version;
+
+	/**
+	 * 已经编码好的数据，按协议版本缓存
+	 * 同一条消息发送给多个客户端时只需编码一次
+	 */
+	private final byte[][] encoded = new byte[MessageCodecs.LATEST_VERSION + 1][];
+
+	/**
+	 * 写入通道时使用的直接缓冲区，按协议版本缓存
+	 */
+	private final ByteBuffer[] direct = new ByteBuffer[MessageCodecs.LATEST_VERSION + 1];
+
+	/**
+	 * 还要写出该消息的一方的数量：创建者算一个，每个放入发送队列的客户端各算一个
+	 */
+	private int references = 1;
+
+	public ChatMessage(int type, String user, String content, String result, List<String> users, int version)
+	{
+		this.type = type;
+		this.user = user;
+		this.content = content;
+		this.result = result;
+		this.users = users == null ? Collections.<String>emptyList() : users;
+		this.version = version;
+	}
+
+	/**
+	 * 客户端登录时向服务器端发送的数据
+	 */
+	public static ChatMessage login(String username, int version)
+	{
+		return new ChatMessage(CharacterUtil.LOGIN, username, null, null, null, version);
+	}
+
+	/**
+	 * 客户端向服务器端发送的聊天数据
+	 */
+	public static ChatMessage clientMessage(String username, String message)
+	{
+		return new ChatMessage(CharacterUtil.CLIENT_MESSAGE, username, message, null, null, 0);
+	}
+
+	/**
+	 * 服务器端向所有客户端发送的聊天数据
+	 */
+	public static ChatMessage serverMessage(String message)
+	{
+		return new ChatMessage(CharacterUtil.SERVER_MESSAGE, null, message, null, null, 0);
+	}
+
+	/**
+	 * 向客户端发送的在线用户列表
+	 */
+	public static ChatMessage userList(Collection<String> users)
+	{
+		return new ChatMessage(CharacterUtil.USER_LIST, null, null, null, new ArrayList<String>(users), 0);
+	}
+
+	/**
+	 * 向客户端发送的完整的在线用户列表，带上用户列表的版本号
+	 */
+	public static ChatMessage userList(Collection<String> users, int version)
+	{
+		return new ChatMessage(CharacterUtil.USER_LIST, null, null, null, new ArrayList<String>(users), version);
+	}
+
+	/**
+	 * 有用户登录，version为加入该用户之后用户列表的版本号
+	 */
+	public static ChatMessage userAdded(String username, int version)
+	{
+		return new ChatMessage(CharacterUtil.USER_ADDED, username, null, null, null, version);
+	}
+
+	/**
+	 * 有用户退出，version为去除该用户之后用户列表的版本号
+	 */
+	public static ChatMessage userRemoved(String username, int version)
+	{
+		return new ChatMessage(CharacterUtil.USER_REMOVED, username, null, null, null, version);
+	}
+
+	/**
+	 * 客户端发现漏掉了用户增减消息，请求服务器端重新发送完整的在线用户列表
+	 */
+	public static ChatMessage userListRequest()
+	{
+		return new ChatMessage(CharacterUtil.USER_LIST_REQUEST, null, null, null, null, 0);
+	}
+
+	/**
+	 * 客户端窗口关闭
+	 */
+	public static ChatMessage closeClientWindow(String username)
+	{
+		return new ChatMessage(CharacterUtil.CLOSE_CLIENT_WINDOW, username, null, null, null, 0);
+	}
+
+	/**
+	 * 服务器端窗口关闭
+	 */
+	public static ChatMessage closeServerWindow()
+	{
+		return new ChatMessage(CharacterUtil.CLOSE_SERVER_WINDOW, null, null, null, null, 0);
+	}
+
+	/**
+	 * 服务器端确认客户端关闭
+	 */
+	public static ChatMessage closeClientWindowConfirmation()
+	{
+		return new ChatMessage(CharacterUtil.CLOSE_CLIENT_WINDOW_CONFIRMATION, null, null, null, null, 0);
+	}
+
+	/**
+	 * 向客户端返回的登录结果，同时告诉客户端之后使用哪个协议版本
+	 */
+	public static ChatMessage loginResult(String result, int version)
+	{
+		return new ChatMessage(CharacterUtil.LOGIN_RESULT, null, null, result, null, version);
+	}
+
+	public int getType()
+	{
+		return type;
+	}
+
+	public String getUser()
+	{
+		return user;
+	}
+
+	public String getContent()
+	{
+		return content;
+	}
+
+	public String getResult()
+	{
+		return result;
+	}
+
+	public List<String> getUsers()
+	{
+		return users;
+	}
+
+	public int getVersion()
+	{
+		return version;
+	}
+
+	/**
+	 * 使用指定的编码方式编码该消息，结果会被缓存起来
+	 */
+	public synchronized byte[] encode(MessageCodec codec)
+	{
+		int v = codec.getVersion();
+
+		if(encoded[v] == null)
+		{
+			encoded[v] = codec.encode(this);
+		}
+
+		return encoded[v];
+	}
+
+	/**
+	 * 把该消息写入通道
+	 * 编码结果复制到从DirectBufferPool借来的直接缓冲区中并缓存起来，同一条消息写给多个客户端时不再复制；
+	 * 写完之后由创建该消息的一方调用release()归还缓冲区，放入发送队列的消息由发送线程在写完之后再调用一次
+	 */
+	public void write(WritableByteChannel channel, MessageCodec codec) throws IOException
+	{
+		ByteBuffer data = encodeDirect(codec).duplicate();
+
+		while(data.hasRemaining())
+		{
+			channel.write(data);
+		}
+	}
+
+	private synchronized ByteBuffer encodeDirect(MessageCodec codec)
+	{
+		int v = codec.getVersion();
+
+		if(direct[v] == null)
+		{
+			byte[] bytes = encode(codec);
+
+			direct[v] = DirectBufferPool.take(bytes.length);
+			direct[v].put(bytes);
+			direct[v].flip();
+		}
+
+		return direct[v];
+	}
+
+	/**
+	 * 该消息放入了发送队列，在发送线程写完并调用release()之前不归还缓冲区
+	 */
+	public synchronized void retain()
+	{
+		references++;
+	}
+
+	/**
+	 * 不再写出该消息；最后一方调用时归还write()使用的直接缓冲区，之后仍然可以再次写出该消息
+	 */
+	public synchronized void release()
+	{
+		if(--references > 0)
+		{
+			return;
+		}
+
+		references = 1;
+
+		for(int v = 0; v < direct.length; v++)
+		{
+			if(direct[v] != null)
+			{
+				DirectBufferPool.give(direct[v]);
+
+				direct[v] = null;
+			}
+		}
+	}
+}
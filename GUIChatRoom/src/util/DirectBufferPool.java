@@ -0,0 +1,173 @@
+package util;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 直接缓冲区池，客户端与服务器端读写socket时使用
+ *
+ * 缓冲区按大小分级（MIN_SIZE到MAX_SIZE之间2的幂），take()把申请的大小向上取整到所在的级别，
+ * 每一级最多保留一定数量的缓冲区，连接断开时归还的缓冲区由新连接继续使用，不再为每个连接分配直接内存。
+ * 超过MAX_SIZE的缓冲区不放入池中，直接交给垃圾回收。
+ *
+ * 启动时使用 -Dchatroom.bufferLeaks=true 可以检查没有归还的缓冲区：
+ * 被垃圾回收时仍未归还的缓冲区会连同取出它的位置一起打印出来。
+ */
+public class DirectBufferPool
+{
+	public static final int MIN_SIZE = 512;
+
+	public static final int MAX_SIZE = 64 * 1024;
+
+	private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_SIZE);
+
+	private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE) - MIN_SHIFT + 1;
+
+	/**
+	 * 每一级最多保留的直接内存
+	 */
+	private static final int POOLED_BYTES_PER_CLASS = 4 * 1024 * 1024;
+
+	private static final boolean LEAK_DETECTION = Boolean.getBoolean("chatroom.bufferLeaks");
+
+	private static final ArrayBlockingQueue<ByteBuffer>[] pools = createPools();
+
+	// 检查泄漏时记录所有借出的缓冲区，缓冲区被回收后对应的记录会出现在collected中
+	private static final Set<Loan> loans = ConcurrentHashMap.newKeySet();
+
+	private static final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<ByteBuffer>();
+
+	/**
+	 * 一次借出：借出的缓冲区及取出它的位置
+	 */
+	private static class Loan extends WeakReference<ByteBuffer>
+	{
+		private final int capacity;
+
+		private final Throwable taken;
+
+		private Loan(ByteBuffer buffer)
+		{
+			super(buffer, collected);
+
+			this.capacity = buffer.capacity();
+			this.taken = new Throwable("Buffer taken here");
+		}
+	}
+
+	private DirectBufferPool()
+	{
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static ArrayBlockingQueue<ByteBuffer>[] createPools()
+	{
+		ArrayBlockingQueue<ByteBuffer>[] pools = new ArrayBlockingQueue[CLASSES];
+
+		for(int i = 0; i < CLASSES; i++)
+		{
+			pools[i] = new ArrayBlockingQueue<ByteBuffer>(Math.min(256, POOLED_BYTES_PER_CLASS / (MIN_SIZE << i)));
+		}
+
+		return pools;
+	}
+
+	/**
+	 * 取出一个已清空的直接缓冲区，容量至少为size（向上取整到2的幂）
+	 */
+	public static ByteBuffer take(int size)
+	{
+		ByteBuffer buffer;
+
+		if(size > MAX_SIZE)
+		{
+			buffer = ByteBuffer.allocateDirect(size);
+		}
+		else
+		{
+			int sizeClass = sizeClass(size);
+
+			buffer = pools[sizeClass].poll();
+
+			if(buffer == null)
+			{
+				buffer = ByteBuffer.allocateDirect(MIN_SIZE << sizeClass);
+			}
+
+			buffer.clear();
+		}
+
+		if(LEAK_DETECTION)
+		{
+			reportLeaks();
+
+			loans.add(new Loan(buffer));
+		}
+
+		return buffer;
+	}
+
+	/**
+	 * 归还take()取出的缓冲区，归还后不能再使用它；大小不属于任何一级的缓冲区直接交给垃圾回收
+	 */
+	public static void give(ByteBuffer buffer)
+	{
+		if(LEAK_DETECTION)
+		{
+			for(Iterator<Loan> i = loans.iterator(); i.hasNext(); )
+			{
+				Loan loan = i.next();
+
+				if(loan.get() == buffer)
+				{
+					// 清除引用，缓冲区以后被回收时不再报告
+					loan.clear();
+					i.remove();
+
+					break;
+				}
+			}
+		}
+
+		int capacity = buffer.capacity();
+
+		if(!buffer.isDirect() || capacity < MIN_SIZE || capacity > MAX_SIZE || Integer.bitCount(capacity) != 1)
+		{
+			return;
+		}
+
+		pools[sizeClass(capacity)].offer(buffer);
+	}
+
+	// 返回size所在的级别，size不超过MAX_SIZE
+	private static int sizeClass(int size)
+	{
+		if(size <= MIN_SIZE)
+		{
+			return 0;
+		}
+
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+	}
+
+	// 打印已经被回收却没有归还的缓冲区
+	private static void reportLeaks()
+	{
+		Loan loan;
+
+		while((loan = (Loan) collected.poll()) != null)
+		{
+			if(loans.remove(loan))
+			{
+				System.err.println("A direct buffer of " + loan.capacity + " bytes was never given back to the pool");
+
+				loan.taken.printStackTrace();
+			}
+		}
+	}
+}
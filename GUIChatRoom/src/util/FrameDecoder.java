@@ -0,0 +1,188 @@
+package util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * 从输入流中逐条读出完整的消息
+ *
+ * TCP不保证一次read()正好读到一条消息：几条消息可能被一起读到（例如在线用户列表后面紧跟着聊天数据），
+ * 一条消息也可能被分成几次读到。FrameDecoder把读到的字节放在一个可以重复使用的缓冲区中，
+ * 由编码方式判断一条消息在哪里结束，多余的字节留给下一次read()。
+ *
+ * 数据从通道直接读入从DirectBufferPool借来的直接缓冲区，再交给按字节数组工作的编码方式；
+ * 连接结束后必须调用release()归还该缓冲区。
+ */
+public class FrameDecoder
+{
+	/**
+	 * 一条消息的最大字节数，超过时认为数据有误并断开连接
+	 */
+	public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+	/**
+	 * 每次从通道读入的最大字节数
+	 */
+	private static final int READ_SIZE = 8192;
+
+	private final ReadableByteChannel channel;
+
+	// 从DirectBufferPool借来的读缓冲区，第一次读时才借
+	private ByteBuffer readBuffer;
+
+	private MessageCodec codec;
+
+	private byte[] buffer = new byte[8192];
+
+	// 缓冲区中未处理的数据为 buffer[start, end)
+	private int start;
+
+	private int end;
+
+	public FrameDecoder(ReadableByteChannel channel, MessageCodec codec)
+	{
+		this.channel = channel;
+		this.codec = codec;
+	}
+
+	public FrameDecoder(InputStream is, MessageCodec codec)
+	{
+		this(Channels.newChannel(is), codec);
+	}
+
+	/**
+	 * 归还读缓冲区，之后不能再调用read()
+	 */
+	public void release()
+	{
+		if(readBuffer != null)
+		{
+			DirectBufferPool.give(readBuffer);
+
+			readBuffer = null;
+		}
+	}
+
+	/**
+	 * 切换编码方式（登录后使用协商出的协议版本），已经读到但还没处理的数据会按新的编码方式解析
+	 */
+	public void setCodec(MessageCodec codec)
+	{
+		this.codec = codec;
+	}
+
+	public MessageCodec getCodec()
+	{
+		return codec;
+	}
+
+	/**
+	 * 读出下一条完整的消息，必要时阻塞；对方关闭连接时返回null
+	 */
+	public ChatMessage read() throws IOException
+	{
+		while(true)
+		{
+			int length = end - start;
+
+			if(length > 0)
+			{
+				int frameLength;
+
+				try
+				{
+					frameLength = codec.frameLength(buffer, start, length);
+				}
+				catch(IllegalStateException ex)
+				{
+					throw new IOException(ex.getMessage());
+				}
+
+				if(frameLength > 0)
+				{
+					// 先越过该消息再解析，解析时出现异常也不会再次读到同一条消息
+					int frameStart = start;
+
+					start += frameLength;
+
+					if(start == end)
+					{
+						start = 0;
+						end = 0;
+					}
+
+					ChatMessage message = codec.decode(buffer, frameStart, frameLength);
+
+					// 无法解析的消息直接丢弃，继续处理后面的数据
+					if(message != null)
+					{
+						return message;
+					}
+
+					continue;
+				}
+			}
+
+			if(!fill())
+			{
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * 至少再读入一些字节，返回false表示流已经结束
+	 */
+	private boolean fill() throws IOException
+	{
+		if(end == buffer.length)
+		{
+			int length = end - start;
+
+			if(length >= MAX_FRAME_LENGTH)
+			{
+				throw new IOException("Message exceeds " + MAX_FRAME_LENGTH + " bytes");
+			}
+
+			// 缓冲区满了：先把未处理的数据移到开头，仍然不够时再扩大缓冲区
+			if(start > 0)
+			{
+				System.arraycopy(buffer, start, buffer, 0, length);
+			}
+			else
+			{
+				byte[] larger = new byte[Math.min(buffer.length * 2, MAX_FRAME_LENGTH)];
+				System.arraycopy(buffer, 0, larger, 0, length);
+				buffer = larger;
+			}
+
+			start = 0;
+			end = length;
+		}
+
+		if(readBuffer == null)
+		{
+			readBuffer = DirectBufferPool.take(READ_SIZE);
+		}
+
+		readBuffer.clear();
+		readBuffer.limit(Math.min(readBuffer.capacity(), buffer.length - end));
+
+		int n = channel.read(readBuffer);
+
+		if(n < 0)
+		{
+			return false;
+		}
+
+		readBuffer.flip();
+		readBuffer.get(buffer, end, n);
+
+		end += n;
+
+		return true;
+	}
+}
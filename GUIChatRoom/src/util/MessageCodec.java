@@ -0,0 +1,27 @@
+package util;
+
+/**
+ * 消息的编码方式：把ChatMessage转换成在网络上传送的字节，或者反过来
+ */
+public interface MessageCodec
+{
+	/**
+	 * 该编码方式对应的协议版本，登录时协商
+	 */
+	int getVersion();
+
+	/**
+	 * 把一条消息编码成字节
+	 */
+	byte[] encode(ChatMessage message);
+
+	/**
+	 * 返回从offset开始的第一条完整消息的字节数，数据还不完整时返回-1
+	 */
+	int frameLength(byte[] buf, int offset, int length);
+
+	/**
+	 * 从字节中解析出一条消息，数据有误时返回null
+	 */
+	ChatMessage decode(byte[] buf, int offset, int length);
+}
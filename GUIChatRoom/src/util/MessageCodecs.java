@@ -0,0 +1,50 @@
+package util;
+
+/**
+ * 协议版本与编码方式
+ *
+ * 1 : XML（最初的协议，不支持版本协商的客户端/服务器端也使用它）
+ * 2 : 二进制
+ *
+ * 登录消息与登录结果总是使用XML发送：客户端在登录消息中带上它支持的最高版本，
+ * 服务器端在登录结果中返回双方都支持的版本，之后双方都使用该版本通信。
+ * 启动时可以用 -Dchatroom.protocol=1 强制只使用XML。
+ */
+public class MessageCodecs
+{
+	public static final int XML_VERSION = XmlCodec.VERSION;
+
+	public static final int BINARY_VERSION = BinaryCodec.VERSION;
+
+	public static final int LATEST_VERSION = BINARY_VERSION;
+
+	public static final MessageCodec XML = new XmlCodec();
+
+	public static final MessageCodec BINARY = new BinaryCodec();
+
+	/**
+	 * 本程序愿意使用的最高版本
+	 */
+	public static int getSupportedVersion()
+	{
+		int version = Integer.getInteger("chatroom.protocol", LATEST_VERSION).intValue();
+
+		return Math.max(XML_VERSION, Math.min(version, LATEST_VERSION));
+	}
+
+	/**
+	 * 根据对方支持的最高版本选出双方都支持的版本；老的客户端不发送版本号（0），只能使用XML
+	 */
+	public static int negotiate(int peerVersion)
+	{
+		return Math.max(XML_VERSION, Math.min(peerVersion, getSupportedVersion()));
+	}
+
+	/**
+	 * 返回指定版本的编码方式
+	 */
+	public static MessageCodec forVersion(int version)
+	{
+		return version == BINARY_VERSION ? BINARY : XML;
+	}
+}
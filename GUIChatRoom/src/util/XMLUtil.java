@@ -3,13 +3,16 @@ package util;
 import org.dom4j.Document;
 import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
-import org.dom4j.io.SAXReader;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
 import java.io.StringReader;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collection;
 import java.util.List;
-import java.util.Set;
 
 /**
  * login : 1
@@ -20,12 +23,125 @@ import java.util.Set;
  * close server window: 6
  * close client window confirmation: 7
  * login result: 8
+ * user added: 9
+ * user removed: 10
+ * user list request: 11
  *
  */
 
 
 public class XMLUtil
 {
+	/**
+	 * 配置好之后XMLInputFactory可以被多个线程共享
+	 * 不处理DTD和外部实体
+	 */
+	private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+
+	static
+	{
+		INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+	}
+
+	/**
+	 * 把一条XML消息解析成ChatMessage，只解析一遍，不构造DOM
+	 * 数据有误时返回null；下面的extract*方法都基于它
+	 */
+	public static ChatMessage parse(String xml)
+	{
+		try
+		{
+			return parse(INPUT_FACTORY.createXMLStreamReader(new StringReader(xml)));
+		}
+		catch(Exception ex)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * 直接从UTF-8字节中解析一条XML消息，省去先转换成String
+	 */
+	public static ChatMessage parse(byte[] buf, int offset, int length)
+	{
+		try
+		{
+			return parse(INPUT_FACTORY.createXMLStreamReader(new ByteArrayInputStream(buf, offset, length), "UTF-8"));
+		}
+		catch(Exception ex)
+		{
+			return null;
+		}
+	}
+
+	private static ChatMessage parse(XMLStreamReader reader) throws XMLStreamException
+	{
+		int type = 0;
+		int version = 0;
+		String content = null;
+		String result = null;
+		List<String> users = new ArrayList<String>(1);
+
+		try
+		{
+			while(reader.hasNext())
+			{
+				// 只关心根元素<message>下面的子元素
+				if(reader.next() != XMLStreamConstants.START_ELEMENT || "message".equals(reader.getLocalName()))
+				{
+					continue;
+				}
+
+				String name = reader.getLocalName();
+				String text = reader.getElementText();
+
+				if("type".equals(name))
+				{
+					type = Integer.parseInt(text.trim());
+				}
+				else if("user".equals(name))
+				{
+					users.add(text);
+				}
+				else if("content".equals(name))
+				{
+					content = text;
+				}
+				else if("result".equals(name))
+				{
+					result = text;
+				}
+				else if("version".equals(name))
+				{
+					version = Integer.parseInt(text.trim());
+				}
+			}
+		}
+		catch(NumberFormatException ex)
+		{
+			return null;
+		}
+		finally
+		{
+			reader.close();
+		}
+
+		if(type == 0)
+		{
+			return null;
+		}
+
+		// 在线用户列表中有多个<user>，其余消息最多只有一个
+		if(type == CharacterUtil.USER_LIST)
+		{
+			return new ChatMessage(type, null, content, result, users, version);
+		}
+
+		return new ChatMessage(type, users.isEmpty() ? null : users.get(0), content, result, null, version);
+	}
+
 	private static Document constructDocument()
 	{
 		Document document = DocumentHelper.createDocument();
@@ -57,33 +173,50 @@ public class XMLUtil
 	}
 
 	/**
-	 * 从客户端登录所发送的XML数据中解析出用户名（username）
+	 * 客户端登录时向服务器端发送的XML数据，带上客户端支持的最高协议版本
+	 * 不认识version元素的老服务器端会忽略它
 	 */
-	public static String extractUsername(String xml)
+	public static String constructLoginXML(String username, int version)
 	{
-		try
+		Document document = constructDocument();
+		Element root = document.getRootElement();
+
+		root.addElement("type").setText("1");
+		root.addElement("user").setText(username);
+
+		if(version != 0)
 		{
-			SAXReader saxReader = new SAXReader();
+			root.addElement("version").setText(String.valueOf(version));
+		}
 
-			Document document = saxReader.read(new StringReader(xml));
+		return document.asXML();
+	}
 
-			Element user = document.getRootElement().element("user");
+	/**
+	 * 从登录或登录结果的XML数据中解析出协议版本，没有版本信息时返回0
+	 */
+	public static int extractVersion(String xml)
+	{
+		ChatMessage message = parse(xml);
 
-			return user.getText();
-		}
-		catch(Exception ex)
-		{
+		return message == null ? 0 : message.getVersion();
+	}
 
-		}
+	/**
+	 * 从客户端登录所发送的XML数据中解析出用户名（username）
+	 */
+	public static String extractUsername(String xml)
+	{
+		ChatMessage message = parse(xml);
 
-		return null;
+		return message == null ? null : message.getUser();
 	}
 
 	/**
 	 * 构造向客户端发送的在线用户列表xml数据
 	 */
 
-	public static String constructUserList(Set<String> users)
+	public static String constructUserList(Collection<String> users)
 	{
 		Document document = constructDocument();
 		Element root = document.getRootElement();
@@ -101,54 +234,74 @@ public class XMLUtil
 	}
 
 	/**
-	 * 从XML信息中提取出所有的在线用户列表信息
+	 * 构造带版本号的在线用户列表xml数据，不认识version元素的老客户端会忽略它
 	 */
-	public static List<String> extractUserList(String xml)
+	public static String constructUserList(Collection<String> users, int version)
 	{
-		List<String> list = new ArrayList<String>();
-
-		try
-		{
-			SAXReader saxReader = new SAXReader();
-
-			Document document = saxReader.read(new StringReader(xml));
+		Document document = constructDocument();
+		Element root = document.getRootElement();
 
-			for(Iterator iter = document.getRootElement().elementIterator("user"); iter.hasNext();)
-			{
-				Element e = (Element)iter.next();
+		root.addElement("type").setText("4");
 
-				list.add(e.getText());
-			}
+		for(String user : users)
+		{
+			root.addElement("user").setText(user);
 		}
-		catch(Exception ex)
+
+		if(version != 0)
 		{
-			ex.printStackTrace();
+			root.addElement("version").setText(String.valueOf(version));
 		}
 
-		return list;
+		return document.asXML();
 	}
 
 	/**
-	 *  从xml消息中解析出类型值
+	 * 构造用户登录（9）或退出（10）的xml数据，version为变化之后用户列表的版本号
 	 */
-	public static String extractType(String xml)
+	public static String constructUserChangeXML(int type, String username, int version)
 	{
-		try
-		{
-			SAXReader saxReader = new SAXReader();
+		Document document = constructDocument();
+		Element root = document.getRootElement();
+
+		root.addElement("type").setText(String.valueOf(type));
+		root.addElement("user").setText(username);
+		root.addElement("version").setText(String.valueOf(version));
+
+		return document.asXML();
+	}
 
-			Document document = saxReader.read(new StringReader(xml));
+	/**
+	 * 构造客户端请求完整在线用户列表的xml数据
+	 */
+	public static String constructUserListRequestXML()
+	{
+		Document document = constructDocument();
+		Element root = document.getRootElement();
 
-			Element typeElement = document.getRootElement().element("type");
+		root.addElement("type").setText("11");
 
-			return typeElement.getText();
-		}
-		catch(Exception ex)
-		{
-			ex.printStackTrace();
-		}
+		return document.asXML();
+	}
+
+	/**
+	 * 从XML信息中提取出所有的在线用户列表信息
+	 */
+	public static List<String> extractUserList(String xml)
+	{
+		ChatMessage message = parse(xml);
 
-		return null;
+		return message == null ? new ArrayList<String>() : new ArrayList<String>(message.getUsers());
+	}
+
+	/**
+	 *  从xml消息中解析出类型值
+	 */
+	public static String extractType(String xml)
+	{
+		ChatMessage message = parse(xml);
+
+		return message == null ? null : String.valueOf(message.getType());
 	}
 
 	/**
@@ -202,22 +355,9 @@ public class XMLUtil
 	 */
 	public static String extractContent(String xml)
 	{
-		try
-		{
-			SAXReader saxReader = new SAXReader();
+		ChatMessage message = parse(xml);
 
-			Document document = saxReader.read(new StringReader(xml));
-
-			Element contentElement = document.getRootElement().element("content");
-
-			return contentElement.getText();
-		}
-		catch(Exception ex)
-		{
-			ex.printStackTrace();
-		}
-
-		return null;
+		return message == null ? null : message.getContent();
 	}
 
 	/**
@@ -285,28 +425,33 @@ public class XMLUtil
 	}
 
 	/**
-	 * 从xml数据中解析出登录结果
+	 * 构造向客户端返回的登录结果XML，带上服务器端选定的协议版本
 	 */
-
-	public static String extractLoginResult(String xml)
+	public static String constructLoginResultXML(String result, int version)
 	{
-		String result = null;
-
-		try
-		{
-			SAXReader saxReader = new SAXReader();
-			Document document = saxReader.read(new StringReader(xml));
+		Document document = constructDocument();
+		Element root = document.getRootElement();
 
-			Element root = document.getRootElement();
+		root.addElement("type").setText("8");
+		root.addElement("result").setText(result);
 
-			result = root.element("result").getText();
-		}
-		catch(Exception ex)
+		if(version != 0)
 		{
-			ex.printStackTrace();
+			root.addElement("version").setText(String.valueOf(version));
 		}
 
-		return result;
+		return document.asXML();
+	}
+
+	/**
+	 * 从xml数据中解析出登录结果
+	 */
+
+	public static String extractLoginResult(String xml)
+	{
+		ChatMessage message = parse(xml);
+
+		return message == null ? null : message.getResult();
 	}
 
 }
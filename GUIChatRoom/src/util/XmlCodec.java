@@ -0,0 +1,102 @@
+package util;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 最初的XML协议（版本1），不支持二进制协议的客户端/服务器端使用它
+ */
+public class XmlCodec implements MessageCodec
+{
+	public static final int VERSION = 1;
+
+	private static final byte[] END_TAG = "</message>".getBytes(StandardCharsets.UTF_8);
+
+	@Override
+	public int getVersion()
+	{
+		return VERSION;
+	}
+
+	@Override
+	public byte[] encode(ChatMessage message)
+	{
+		String xml = null;
+
+		switch(message.getType())
+		{
+			case CharacterUtil.LOGIN:
+				xml = XMLUtil.constructLoginXML(message.getUser(), message.getVersion());
+				break;
+			case CharacterUtil.CLIENT_MESSAGE:
+				xml = XMLUtil.constructMessageXML(message.getUser(), message.getContent());
+				break;
+			case CharacterUtil.SERVER_MESSAGE:
+				xml = XMLUtil.constructServerMessageXML(message.getContent());
+				break;
+			case CharacterUtil.USER_LIST:
+				xml = XMLUtil.constructUserList(message.getUsers(), message.getVersion());
+				break;
+			case CharacterUtil.USER_ADDED:
+			case CharacterUtil.USER_REMOVED:
+				xml = XMLUtil.constructUserChangeXML(message.getType(), message.getUser(), message.getVersion());
+				break;
+			case CharacterUtil.USER_LIST_REQUEST:
+				xml = XMLUtil.constructUserListRequestXML();
+				break;
+			case CharacterUtil.CLOSE_CLIENT_WINDOW:
+				xml = XMLUtil.constructCloseClientWindowXML(message.getUser());
+				break;
+			case CharacterUtil.CLOSE_SERVER_WINDOW:
+				xml = XMLUtil.constructCloseServerWindowXML();
+				break;
+			case CharacterUtil.CLOSE_CLIENT_WINDOW_CONFIRMATION:
+				xml = XMLUtil.constructCloseClientWindowConfirmationXML();
+				break;
+			case CharacterUtil.LOGIN_RESULT:
+				xml = XMLUtil.constructLoginResultXML(message.getResult(), message.getVersion());
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown message type: " + message.getType());
+		}
+
+		return xml.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * XML消息没有长度前缀，以根元素的结束标签作为一条消息的结尾
+	 * 聊天内容中的'<'会被转义，所以结束标签不会出现在消息中间
+	 */
+	@Override
+	public int frameLength(byte[] buf, int offset, int length)
+	{
+		int last = offset + length - END_TAG.length;
+
+		for(int i = offset; i <= last; i++)
+		{
+			if(buf[i] != '<')
+			{
+				continue;
+			}
+
+			int j = 1;
+
+			while(j < END_TAG.length && buf[i + j] == END_TAG[j])
+			{
+				j++;
+			}
+
+			if(j == END_TAG.length)
+			{
+				return i + j - offset;
+			}
+		}
+
+		return -1;
+	}
+
+	@Override
+	public ChatMessage decode(byte[] buf, int offset, int length)
+	{
+		return XMLUtil.parse(buf, offset, length);
+	}
+}
@@ -0,0 +1,208 @@
+// Import the Java classes
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import bench.Fixtures;
+
+/**
+ * ServerFixtures sets up the server's classes for the benchmarks in the bench package, which
+ * cannot name them because they are in the default package; see bench.Fixtures.
+ *
+ * Clients are ChatRequestHandlers whose output goes to an in-memory queue that is drained
+ * as soon as something is put on it, so the benchmarks measure the server and not sockets.
+ * The log is left at its default level, as on a real server, and writes to the console
+ * unless told otherwise, so the console is discarded.
+ * 基准测试用的服务器环境：客户端的输出写到内存中，不经过socket
+ */
+public class ServerFixtures
+{
+    /**
+     * How long the server collects presence changes; the fixtures wait for them to settle
+     */
+    private static final long PRESENCE_WINDOW_MILLIS = 100;
+
+    /**
+     * Creates a RequestQueue with no threads of its own; see Fixtures.newQueue()
+     */
+    public static Fixtures.Queue newQueue( int maxQueueLength, int consumers )
+    {
+        quiet();
+        RequestHandlerFactory handlers = new RequestHandlerFactory()
+        {
+            public Object newHandler()
+            {
+                return new ChatRequestHandler();
+            }
+        };
+        final RequestQueue queue = new RequestQueue( handlers, maxQueueLength, 0, 0 );
+
+        // The consumers stand in for a pool of idle request threads
+        for( int i=0; i<consumers; i++ )
+        {
+            queue.requestFinished();
+        }
+        return new Fixtures.Queue()
+        {
+            public boolean add( Object o )
+            {
+                try
+                {
+                    queue.add( o );
+                    return true;
+                }
+                catch( RequestQueueException e )
+                {
+                    return false;
+                }
+            }
+
+            public Object take( long timeoutMillis )
+            {
+                Object o = queue.getNextObject( timeoutMillis );
+                if( o != null )
+                {
+                    queue.requestFinished();
+                }
+                return o;
+            }
+
+            public void shutdown()
+            {
+                queue.shutdown();
+            }
+        };
+    }
+
+    /**
+     * Starts a server and logs a handler in to it; see Fixtures.newHandler()
+     */
+    public static Fixtures.Handler newHandler()
+    {
+        final ChatServer server = startServer();
+        final ChatRequestHandler handler = login( "bench", new MemorySink( new LongAdder() ) );
+        return new Fixtures.Handler()
+        {
+            public boolean handleInput( ByteBuffer input )
+            {
+                return handler.handleInput( input );
+            }
+
+            public void shutdown()
+            {
+                server.stopServer();
+            }
+        };
+    }
+
+    /**
+     * Starts a server with a sender and the specified number of recipients; see Fixtures.newRoom()
+     */
+    public static Fixtures.Room newRoom( final int recipients )
+    {
+        final ChatServer server = startServer();
+        final LongAdder delivered = new LongAdder();
+        final String sender = "sender";
+        login( sender, new MemorySink( delivered ) );
+        for( int i=0; i<recipients; i++ )
+        {
+            login( "user" + i, new MemorySink( delivered ) );
+        }
+        settle( delivered );
+        return new Fixtures.Room()
+        {
+            public void broadcast( String message )
+            {
+                long target = delivered.sum() + recipients;
+                server.sendMessage( sender, message );
+                while( delivered.sum() < target )
+                {
+                    Thread.onSpinWait();
+                }
+            }
+
+            public void shutdown()
+            {
+                server.stopServer();
+            }
+        };
+    }
+
+    /**
+     * Starts a server on a free port without a history or an inbox, so nothing touches the disk
+     */
+    private static ChatServer startServer()
+    {
+        quiet();
+        ChatServer server = new ChatServer();
+        server.setPort( 0 );
+        server.setPresenceWindow( PRESENCE_WINDOW_MILLIS );
+        server.setHistoryDir( null );
+        server.setInbox( null, 0 );
+        server.startServer();
+        return server;
+    }
+
+    /**
+     * Logs a user in whose output goes to the specified sink
+     */
+    private static ChatRequestHandler login( String username, MemorySink sink )
+    {
+        ChatRequestHandler handler = new ChatRequestHandler();
+        handler.handleConnect( sink.queue );
+        handler.handleLine( "USER " + username );
+        return handler;
+    }
+
+    /**
+     * Waits until the presence notifications of the logins have been delivered
+     */
+    private static void settle( LongAdder delivered )
+    {
+        long previous = -1;
+        while( delivered.sum() != previous )
+        {
+            previous = delivered.sum();
+            LockSupport.parkNanos( PRESENCE_WINDOW_MILLIS * 3 * 1000000L );
+        }
+    }
+
+    /**
+     * Discards what the server's log writes to the console
+     */
+    private static void quiet()
+    {
+        System.setOut( new PrintStream( OutputStream.nullOutputStream() ) );
+    }
+
+    /**
+     * A client that throws its output away as soon as it is queued, counting the messages
+     */
+    private static class MemorySink implements OutboundQueue.Listener
+    {
+        final OutboundQueue queue;
+
+        final LongAdder delivered;
+
+        MemorySink( LongAdder delivered )
+        {
+            this.delivered = delivered;
+            this.queue = new OutboundQueue( 1000, SlowConsumerPolicy.DROP_OLDEST, this );
+        }
+
+        public void outputQueued()
+        {
+            while( this.queue.poll() != null )
+            {
+                this.delivered.increment();
+            }
+        }
+
+        public void slowConsumer( int pending )
+        {
+            // Never: the queue is drained every time something is put on it
+        }
+    }
+}
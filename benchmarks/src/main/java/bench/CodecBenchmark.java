@@ -0,0 +1,143 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import util.CharacterUtil;
+import util.ChatMessage;
+import util.MessageCodec;
+import util.MessageCodecs;
+import util.XMLUtil;
+
+/**
+ * GUIChatRoom's messages: building and reading the XML of XMLUtil, and the codecs that the
+ * connections use, XML ( protocol 1 ) against binary ( protocol 2 ).
+ * GUIChatRoom消息的构造与解析
+ */
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+@State( Scope.Thread )
+public class CodecBenchmark
+{
+    private static final String USER = "张三";
+
+    private static final String CONTENT = "Hello, everyone! 大家好，今天天气不错。";
+
+    private String messageXml;
+
+    @Setup
+    public void setup()
+    {
+        this.messageXml = XMLUtil.constructMessageXML( USER, CONTENT );
+    }
+
+    @Benchmark
+    public String constructMessageXml()
+    {
+        return XMLUtil.constructMessageXML( USER, CONTENT );
+    }
+
+    @Benchmark
+    public String extractContent()
+    {
+        return XMLUtil.extractContent( this.messageXml );
+    }
+
+    @Benchmark
+    public ChatMessage messageXmlRoundTrip()
+    {
+        return XMLUtil.parse( XMLUtil.constructMessageXML( USER, CONTENT ) );
+    }
+
+    /**
+     * The full user list that a client gets when it logs in or resynchronizes
+     */
+    @State( Scope.Thread )
+    public static class UserList
+    {
+        @Param( { "10", "1000" } )
+        public int users;
+
+        List<String> names;
+
+        String xml;
+
+        @Setup
+        public void setup()
+        {
+            this.names = new ArrayList<String>( this.users );
+            for( int i=0; i<this.users; i++ )
+            {
+                this.names.add( "user" + i );
+            }
+            this.xml = XMLUtil.constructUserList( this.names, 1 );
+        }
+    }
+
+    @Benchmark
+    public String constructUserList( UserList list )
+    {
+        return XMLUtil.constructUserList( list.names, 1 );
+    }
+
+    @Benchmark
+    public List<String> extractUserList( UserList list )
+    {
+        return XMLUtil.extractUserList( list.xml );
+    }
+
+    /**
+     * A chat message encoded with the codec of one protocol version
+     */
+    @State( Scope.Thread )
+    public static class Encoded
+    {
+        @Param( { "1", "2" } )
+        public int version;
+
+        MessageCodec codec;
+
+        ChatMessage message;
+
+        byte[] bytes;
+
+        @Setup
+        public void setup()
+        {
+            this.codec = MessageCodecs.forVersion( this.version );
+            this.message = new ChatMessage( CharacterUtil.SERVER_MESSAGE, null, USER + ": " + CONTENT, null, null, 0 );
+            this.bytes = this.codec.encode( this.message );
+        }
+    }
+
+    /**
+     * Encoding without the cache in ChatMessage, as for the first recipient of a message
+     */
+    @Benchmark
+    public byte[] encode( Encoded encoded )
+    {
+        return encoded.codec.encode( encoded.message );
+    }
+
+    @Benchmark
+    public ChatMessage decode( Encoded encoded )
+    {
+        return encoded.codec.decode( encoded.bytes, 0, encoded.bytes.length );
+    }
+}
@@ -0,0 +1,61 @@
+package bench;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing and dispatching a client's line in ChatRequestHandler, from the bytes as they are
+ * read, for a logged in user who is alone on the server, so that the cost is the command
+ * and not its recipients.
+ * 解析并分派客户端发来的一行命令
+ */
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+@State( Scope.Benchmark )
+public class CommandBenchmark
+{
+    @Param( { "SEND hello, world", "EMOT waves", "PRIV nobody:hello", "LIST", "XXXX unknown" } )
+    public String line;
+
+    private Fixtures.Handler handler;
+
+    private ByteBuffer input;
+
+    @Setup( Level.Trial )
+    public void setup()
+    {
+        this.handler = Fixtures.newHandler();
+        this.input = ByteBuffer.wrap( ( this.line + "\n" ).getBytes( StandardCharsets.UTF_8 ) );
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown()
+    {
+        this.handler.shutdown();
+    }
+
+    @Benchmark
+    public boolean handleLine()
+    {
+        this.input.rewind();
+        return this.handler.handleInput( this.input );
+    }
+}
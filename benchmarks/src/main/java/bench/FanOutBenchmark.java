@@ -0,0 +1,54 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ChatServer.sendMessage() to a room of in-memory clients: the time from the call until
+ * every other user has the message queued, across all of the shards.
+ * 一条消息广播给所有在线用户所需的时间
+ */
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( value = 1, jvmArgsAppend = "-Xmx2g" )
+@State( Scope.Benchmark )
+public class FanOutBenchmark
+{
+    @Param( { "10", "1000", "10000" } )
+    public int users;
+
+    private Fixtures.Room room;
+
+    @Setup( Level.Trial )
+    public void setup()
+    {
+        this.room = Fixtures.newRoom( this.users );
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown()
+    {
+        this.room.shutdown();
+    }
+
+    @Benchmark
+    public void broadcast()
+    {
+        this.room.broadcast( "hello, world" );
+    }
+}
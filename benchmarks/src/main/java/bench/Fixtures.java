@@ -0,0 +1,109 @@
+package bench;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The parts of the chat server that the benchmarks drive.
+ *
+ * JMH only accepts benchmarks that are in a package, and the server's classes are in the
+ * default package, which no class in a package can name.  So ServerFixtures, in the default
+ * package next to them, implements the interfaces below, and the benchmarks load it by name
+ * once per trial; the calls that are measured go through a plain interface call.
+ * 基准测试通过这些接口调用默认包中的服务器代码
+ */
+public final class Fixtures
+{
+    /**
+     * A RequestQueue whose consumers are the benchmark's own threads instead of a pool
+     */
+    public interface Queue
+    {
+        /**
+         * Queues an object
+         *
+         * @return  false if the queue was full
+         */
+        boolean add( Object o );
+
+        /**
+         * Takes the next object the way a request thread does
+         *
+         * @return  The object, or null if none arrived within the timeout
+         */
+        Object take( long timeoutMillis );
+
+        void shutdown();
+    }
+
+    /**
+     * A ChatRequestHandler that is logged in to a running server and writes to memory
+     */
+    public interface Handler
+    {
+        /**
+         * Handles bytes as if the client had sent them
+         *
+         * @return  false once the user has exited
+         */
+        boolean handleInput( ByteBuffer input );
+
+        void shutdown();
+    }
+
+    /**
+     * A running server with a number of logged in users that write to memory
+     */
+    public interface Room
+    {
+        /**
+         * Sends a message from one user and waits until every other user has it
+         */
+        void broadcast( String message );
+
+        void shutdown();
+    }
+
+    private Fixtures()
+    {
+    }
+
+    /**
+     * Creates a RequestQueue with no threads of its own
+     *
+     * @param maxQueueLength    The most objects the queue holds
+     * @param consumers         The number of threads that will call take()
+     */
+    public static Queue newQueue( int maxQueueLength, int consumers )
+    {
+        return ( Queue )create( "newQueue", new Class<?>[] { int.class, int.class },
+                Integer.valueOf( maxQueueLength ), Integer.valueOf( consumers ) );
+    }
+
+    /**
+     * Starts a server and logs a handler in to it
+     */
+    public static Handler newHandler()
+    {
+        return ( Handler )create( "newHandler", new Class<?>[ 0 ] );
+    }
+
+    /**
+     * Starts a server and logs in one sender and the specified number of recipients
+     */
+    public static Room newRoom( int recipients )
+    {
+        return ( Room )create( "newRoom", new Class<?>[] { int.class }, Integer.valueOf( recipients ) );
+    }
+
+    private static Object create( String method, Class<?>[] types, Object... args )
+    {
+        try
+        {
+            return Class.forName( "ServerFixtures" ).getMethod( method, types ).invoke( null, args );
+        }
+        catch( Exception e )
+        {
+            throw new IllegalStateException( "Cannot create fixture " + method, e );
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package bench;
+
+import java.nio.ByteBuffer;
+
+import util.CharacterUtil;
+import util.ChatMessage;
+import util.MessageCodecs;
+
+/**
+ * The protocol of the GUIChatRoom server: the login is XML, after that the version the
+ * server picked ( binary unless -Dchatroom.protocol=1 ).  The server only has chat messages
+ * and the user list, so private messages and emotions are not available.
+ * GUIChatRoom服务器的协议，没有私信和表情
+ */
+public class GuiLoadProtocol implements LoadProtocol
+{
+    public int getDefaultPort()
+    {
+        return 5000;
+    }
+
+    public boolean echoesSender()
+    {
+        return true;
+    }
+
+    public boolean supports( int command )
+    {
+        return command == LoadGenerator.SEND || command == LoadGenerator.LIST;
+    }
+
+    public ByteBuffer login( LoadConnection connection )
+    {
+        connection.codec = MessageCodecs.XML;
+        ChatMessage login = ChatMessage.login( connection.username, MessageCodecs.getSupportedVersion() );
+        return ByteBuffer.wrap( login.encode( MessageCodecs.XML ) );
+    }
+
+    public ByteBuffer encode( int command, LoadConnection from, LoadConnection to, String text )
+    {
+        ChatMessage message;
+        if( command == LoadGenerator.LIST )
+        {
+            message = ChatMessage.userListRequest();
+        }
+        else
+        {
+            message = ChatMessage.clientMessage( from.username, text );
+        }
+        return ByteBuffer.wrap( message.encode( from.codec ) );
+    }
+
+    public void parse( LoadConnection connection, ByteBuffer in, LoadGenerator generator )
+    {
+        byte[] bytes = in.array();
+        while( in.hasRemaining() )
+        {
+            int length = connection.codec.frameLength( bytes, in.position(), in.remaining() );
+            if( length < 0 )
+            {
+                return;
+            }
+            ChatMessage message = connection.codec.decode( bytes, in.position(), length );
+            in.position( in.position() + length );
+            if( message == null )
+            {
+                generator.error( connection );
+            }
+            else if( message.getType() == CharacterUtil.SERVER_MESSAGE )
+            {
+                generator.delivered( connection, LoadGenerator.SEND, LoadGenerator.timestamp( message.getContent() ) );
+            }
+            else if( message.getType() == CharacterUtil.USER_LIST )
+            {
+                generator.listed( connection );
+            }
+            else if( message.getType() == CharacterUtil.LOGIN_RESULT )
+            {
+                boolean success = "success".equals( message.getResult() );
+                if( success )
+                {
+                    // Everything after the login result uses the version the server picked
+                    connection.codec = MessageCodecs.forVersion( message.getVersion() );
+                }
+                generator.loggedIn( connection, success );
+            }
+        }
+    }
+}
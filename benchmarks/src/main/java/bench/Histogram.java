@@ -0,0 +1,124 @@
+package bench;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Histogram counts latencies in microseconds with a relative error of about 3%: values
+ * below 64 get a bucket each, and every power of two above that is split into 32 buckets.
+ * Recording is one atomic increment, so any number of threads can record at once.
+ *
+ * The server's LatencyHistogram only has power-of-two buckets, which is too coarse for a
+ * p99.9, and it is in the default package anyway.
+ * 对数-线性分桶的延迟直方图，相对误差约3%
+ */
+public class Histogram
+{
+    private static final int LINEAR = 64;
+
+    private static final int SUB_BUCKETS = 32;
+
+    /**
+     * Enough for latencies up to 2^40 microseconds
+     */
+    private static final int BUCKETS = LINEAR + ( 40 - 6 ) * SUB_BUCKETS;
+
+    private AtomicLongArray counts = new AtomicLongArray( BUCKETS );
+
+    /**
+     * Records a latency
+     *
+     * @param micros    The latency in microseconds
+     */
+    public void record( long micros )
+    {
+        this.counts.incrementAndGet( bucket( Math.max( 0, micros ) ) );
+    }
+
+    private static int bucket( long micros )
+    {
+        if( micros < LINEAR )
+        {
+            return ( int )micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros( micros );
+        int sub = ( int )( micros >>> ( exponent - 5 ) ) & ( SUB_BUCKETS - 1 );
+        return Math.min( BUCKETS - 1, LINEAR + ( exponent - 6 ) * SUB_BUCKETS + sub );
+    }
+
+    /**
+     * Returns the largest value that falls into the specified bucket
+     */
+    private static long upperBound( int bucket )
+    {
+        if( bucket < LINEAR )
+        {
+            return bucket;
+        }
+        int exponent = ( bucket - LINEAR ) / SUB_BUCKETS + 6;
+        long sub = ( bucket - LINEAR ) % SUB_BUCKETS;
+        return ( ( SUB_BUCKETS + sub + 1 ) << ( exponent - 5 ) ) - 1;
+    }
+
+    /**
+     * Returns the number of recorded latencies
+     */
+    public long getCount()
+    {
+        long count = 0;
+        for( int i=0; i<BUCKETS; i++ )
+        {
+            count += this.counts.get( i );
+        }
+        return count;
+    }
+
+    /**
+     * Returns the latency, in microseconds, that the specified fraction of the recorded
+     * latencies do not exceed; 0 if nothing was recorded
+     */
+    public long getPercentile( double fraction )
+    {
+        long count = getCount();
+        if( count == 0 )
+        {
+            return 0;
+        }
+        long rank = Math.max( 1, ( long )Math.ceil( count * fraction ) );
+        long seen = 0;
+        for( int i=0; i<BUCKETS; i++ )
+        {
+            seen += this.counts.get( i );
+            if( seen >= rank )
+            {
+                return upperBound( i );
+            }
+        }
+        return upperBound( BUCKETS - 1 );
+    }
+
+    /**
+     * Returns the largest recorded latency, to within the bucket width
+     */
+    public long getMax()
+    {
+        for( int i=BUCKETS-1; i>=0; i-- )
+        {
+            if( this.counts.get( i ) > 0 )
+            {
+                return upperBound( i );
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Forgets everything recorded so far
+     */
+    public void reset()
+    {
+        for( int i=0; i<BUCKETS; i++ )
+        {
+            this.counts.set( i, 0 );
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import util.MessageCodec;
+
+/**
+ * One simulated client of the LoadGenerator: a non-blocking connection, the input that has
+ * not been parsed yet and the output that the server has not accepted yet.
+ *
+ * The input is only touched by the thread that reads the connection, the output only by
+ * the thread that drives the load.
+ * 负载生成器模拟的一个客户端连接
+ */
+public class LoadConnection
+{
+    final int index;
+
+    final String username;
+
+    final SocketChannel channel;
+
+    /**
+     * Slow readers only read a few bytes now and then, and never send
+     */
+    final boolean slow;
+
+    /**
+     * Input read but not parsed yet, in write mode; grows to hold a whole message
+     */
+    ByteBuffer in = ByteBuffer.allocate( 16 * 1024 );
+
+    /**
+     * The rest of a message the server did not accept in full, or null
+     */
+    private ByteBuffer out;
+
+    /**
+     * When each LIST that has not been answered yet was due, oldest first
+     */
+    final Queue<Long> listRequests = new ConcurrentLinkedQueue<Long>();
+
+    /**
+     * The codec of a GUIChatRoom connection: XML until the login result picks another
+     */
+    volatile MessageCodec codec;
+
+    volatile boolean loggedIn;
+
+    /**
+     * Set once the login has been answered, either way
+     */
+    boolean loginAnswered;
+
+    volatile boolean closed;
+
+    LoadConnection( int index, String username, SocketChannel channel, boolean slow )
+    {
+        this.index = index;
+        this.username = username;
+        this.channel = channel;
+        this.slow = slow;
+    }
+
+    /**
+     * Writes a message without blocking
+     *
+     * @return  false if the server has not yet accepted the previous one, in which case this
+     *          one is dropped
+     */
+    boolean write( ByteBuffer message ) throws IOException
+    {
+        if( this.out != null )
+        {
+            this.channel.write( this.out );
+            if( this.out.hasRemaining() )
+            {
+                return false;
+            }
+            this.out = null;
+        }
+        this.channel.write( message );
+        if( message.hasRemaining() )
+        {
+            this.out = message;
+        }
+        return true;
+    }
+
+    /**
+     * Reads at most the specified number of bytes into the input buffer
+     *
+     * @return  The number of bytes read, or -1 once the server closed the connection
+     */
+    int read( int max ) throws IOException
+    {
+        if( !this.in.hasRemaining() )
+        {
+            // A message larger than the buffer, such as the user list of a big room
+            ByteBuffer larger = ByteBuffer.allocate( this.in.capacity() * 2 );
+            this.in.flip();
+            larger.put( this.in );
+            this.in = larger;
+        }
+        int limit = this.in.limit();
+        this.in.limit( ( int )Math.min( limit, ( long )this.in.position() + max ) );
+        try
+        {
+            return this.channel.read( this.in );
+        }
+        finally
+        {
+            this.in.limit( limit );
+        }
+    }
+
+    void close()
+    {
+        this.closed = true;
+        try
+        {
+            this.channel.close();
+        }
+        catch( IOException e )
+        {
+            // Closing anyway
+        }
+    }
+}
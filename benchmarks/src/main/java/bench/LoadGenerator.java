@@ -0,0 +1,721 @@
+package bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A LoadGenerator opens thousands of simulated clients against a chat server, logs them in
+ * and then sends a mix of SEND, PRIV, LIST and EMOT commands at a fixed rate from random
+ * clients, for ChatServer in src or for the GUIChatRoom server.
+ *
+ * Every message carries the time it was due to be sent ( "t=<nanos>" ), and every client that
+ * receives it records the difference in a histogram, so the latency is end to end and
+ * includes the time a late command waited to be sent.  A LIST is timed until its answer.
+ * Some of the clients can be slow readers that only read a few bytes now and then; their
+ * latencies are reported on their own.
+ *
+ * All of the clients run in this process, whose clock stamps and reads the times, so the
+ * generator should run on one machine even when the server runs on another.
+ * 负载生成器：模拟大量客户端按固定速率发送命令，统计端到端的投递延迟
+ *
+ * java -cp target/benchmarks.jar bench.LoadGenerator [-server text|gui] [-host host] [-port port]
+ *      [-clients n] [-slow n [bytesPerSecond]] [-rate commandsPerSecond]
+ *      [-mix send:70,priv:20,list:5,emot:5] [-size bytes] [-warmup s] [-duration s] [-readers n]
+ */
+public class LoadGenerator
+{
+    public static final int SEND = 0;
+
+    public static final int PRIV = 1;
+
+    public static final int LIST = 2;
+
+    public static final int EMOT = 3;
+
+    private static final String[] COMMANDS = { "send", "priv", "list", "emot" };
+
+    /**
+     * How often the slow readers read
+     */
+    private static final long SLOW_READ_INTERVAL_MILLIS = 100;
+
+    /**
+     * How long to wait for the logins and, after the run, for the messages still on their way
+     */
+    private static final long LOGIN_TIMEOUT_SECONDS = 60;
+
+    private static final long DRAIN_MILLIS = 2000;
+
+    private LoadProtocol protocol = new TextLoadProtocol();
+
+    private String serverName = "text";
+
+    private String host = "localhost";
+
+    private int port = -1;
+
+    private int clients = 1000;
+
+    private int slowClients = 0;
+
+    private int slowBytesPerSecond = 1024;
+
+    private int rate = 1000;
+
+    private int[] weights = { 70, 20, 5, 5 };
+
+    private int size = 64;
+
+    private int warmupSeconds = 5;
+
+    private int durationSeconds = 30;
+
+    private int readerCount = Math.min( 4, Runtime.getRuntime().availableProcessors() );
+
+    private List<LoadConnection> connections = new ArrayList<LoadConnection>();
+
+    private volatile boolean running = true;
+
+    private CountDownLatch logins;
+
+    private AtomicInteger failedLogins = new AtomicInteger( 0 );
+
+    /**
+     * Only commands due from this time on are counted, and only the messages they sent
+     */
+    private volatile long measureFrom = Long.MAX_VALUE;
+
+    /**
+     * What happened during the measured part of the run
+     */
+    private LongAdder[] sent = { new LongAdder(), new LongAdder(), new LongAdder(), new LongAdder() };
+
+    private LongAdder stalled = new LongAdder();
+
+    private LongAdder expected = new LongAdder();
+
+    private LongAdder received = new LongAdder();
+
+    private LongAdder errors = new LongAdder();
+
+    private LongAdder disconnects = new LongAdder();
+
+    private Histogram[] latencies = { new Histogram(), new Histogram(), new Histogram(), new Histogram() };
+
+    private Histogram slowLatency = new Histogram();
+
+    /**
+     * Returns the time stamped on a message, from "t=<nanos>" in the specified bytes, or -1
+     */
+    static long timestamp( byte[] bytes, int start, int end )
+    {
+        for( int i=start; i<end-2; i++ )
+        {
+            if( bytes[ i ] == 't' && bytes[ i + 1 ] == '=' && bytes[ i + 2 ] >= '0' && bytes[ i + 2 ] <= '9' )
+            {
+                long value = 0;
+                for( i+=2; i<end && bytes[ i ] >= '0' && bytes[ i ] <= '9'; i++ )
+                {
+                    value = value * 10 + ( bytes[ i ] - '0' );
+                }
+                return value;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the time stamped on a message, from "t=<nanos>" in the specified text, or -1
+     */
+    static long timestamp( String text )
+    {
+        if( text == null )
+        {
+            return -1;
+        }
+        int i = text.indexOf( "t=" );
+        if( i < 0 )
+        {
+            return -1;
+        }
+        long value = 0;
+        for( i+=2; i<text.length() && text.charAt( i ) >= '0' && text.charAt( i ) <= '9'; i++ )
+        {
+            value = value * 10 + ( text.charAt( i ) - '0' );
+        }
+        return value;
+    }
+
+    /**
+     * A client received a message that was due to be sent at the specified time
+     */
+    void delivered( LoadConnection connection, int command, long dueNanos )
+    {
+        if( dueNanos < this.measureFrom )
+        {
+            return;
+        }
+        this.received.increment();
+        long micros = ( System.nanoTime() - dueNanos ) / 1000;
+        ( connection.slow ? this.slowLatency : this.latencies[ command ] ).record( micros );
+    }
+
+    /**
+     * A client received the user list
+     */
+    void listed( LoadConnection connection )
+    {
+        // The GUIChatRoom server also sends the list unasked, at login
+        Long due = connection.listRequests.poll();
+        if( due != null && due.longValue() >= this.measureFrom )
+        {
+            this.latencies[ LIST ].record( ( System.nanoTime() - due.longValue() ) / 1000 );
+        }
+    }
+
+    /**
+     * A client's login was answered
+     */
+    void loggedIn( LoadConnection connection, boolean success )
+    {
+        synchronized( connection )
+        {
+            if( connection.loginAnswered )
+            {
+                return;
+            }
+            connection.loginAnswered = true;
+        }
+        connection.loggedIn = success;
+        if( !success )
+        {
+            this.failedLogins.incrementAndGet();
+        }
+        this.logins.countDown();
+    }
+
+    /**
+     * The server answered a command with an error
+     */
+    void error( LoadConnection connection )
+    {
+        this.errors.increment();
+    }
+
+    private void disconnected( LoadConnection connection )
+    {
+        if( !connection.closed )
+        {
+            connection.close();
+            this.disconnects.increment();
+        }
+        loggedIn( connection, false );
+    }
+
+    /**
+     * Reads what a client has waiting, at most the specified number of bytes, and parses it
+     *
+     * @return  false once the client is disconnected
+     */
+    private boolean read( LoadConnection connection, int max )
+    {
+        try
+        {
+            int n = connection.read( max );
+            if( n < 0 )
+            {
+                disconnected( connection );
+                return false;
+            }
+            connection.in.flip();
+            try
+            {
+                this.protocol.parse( connection, connection.in, this );
+            }
+            finally
+            {
+                connection.in.compact();
+            }
+            return true;
+        }
+        catch( IOException e )
+        {
+            disconnected( connection );
+            return false;
+        }
+        catch( RuntimeException e )
+        {
+            // Input we cannot make sense of
+            this.errors.increment();
+            disconnected( connection );
+            return false;
+        }
+    }
+
+    /**
+     * Reads the clients that keep up, as fast as their data arrives
+     */
+    private class Reader extends Thread
+    {
+        private Selector selector;
+
+        Reader( int number ) throws IOException
+        {
+            super( "LoadReader-" + number );
+            this.selector = Selector.open();
+            setDaemon( true );
+        }
+
+        /**
+         * Adds a client; must be called before the reader starts
+         */
+        void add( LoadConnection connection ) throws IOException
+        {
+            connection.channel.register( this.selector, SelectionKey.OP_READ, connection );
+        }
+
+        public void run()
+        {
+            while( running )
+            {
+                try
+                {
+                    this.selector.select( 100 );
+                    for( Iterator<SelectionKey> i=this.selector.selectedKeys().iterator(); i.hasNext(); )
+                    {
+                        SelectionKey key = i.next();
+                        i.remove();
+                        if( !read( ( LoadConnection )key.attachment(), Integer.MAX_VALUE ) )
+                        {
+                            key.cancel();
+                        }
+                    }
+                }
+                catch( IOException e )
+                {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the slow clients a few bytes at a time, so that their output piles up on the server
+     */
+    private class SlowReader extends Thread
+    {
+        private List<LoadConnection> slow = new ArrayList<LoadConnection>();
+
+        SlowReader()
+        {
+            super( "LoadSlowReader" );
+            setDaemon( true );
+        }
+
+        public void run()
+        {
+            int budget = ( int )Math.max( 1, slowBytesPerSecond * SLOW_READ_INTERVAL_MILLIS / 1000 );
+            while( running )
+            {
+                for( int i=0; i<this.slow.size(); i++ )
+                {
+                    LoadConnection connection = this.slow.get( i );
+                    if( !connection.closed )
+                    {
+                        read( connection, budget );
+                    }
+                }
+                LockSupport.parkNanos( SLOW_READ_INTERVAL_MILLIS * 1000000L );
+            }
+        }
+    }
+
+    /**
+     * Connects and logs in the clients, drives the load and reports
+     */
+    public void run() throws IOException, InterruptedException
+    {
+        if( this.port < 0 )
+        {
+            this.port = this.protocol.getDefaultPort();
+        }
+        for( int command=0; command<COMMANDS.length; command++ )
+        {
+            if( this.weights[ command ] > 0 && !this.protocol.supports( command ) )
+            {
+                System.out.println( "The " + this.serverName + " server has no " + COMMANDS[ command ] + "; sending chat messages instead" );
+                this.weights[ SEND ] += this.weights[ command ];
+                this.weights[ command ] = 0;
+            }
+        }
+
+        // Connect everyone first, then start reading, then log in
+        Reader[] readers = new Reader[ this.readerCount ];
+        for( int i=0; i<readers.length; i++ )
+        {
+            readers[ i ] = new Reader( i );
+        }
+        SlowReader slowReader = new SlowReader();
+        long started = System.nanoTime();
+        try
+        {
+            for( int i=0; i<this.clients; i++ )
+            {
+                SocketChannel channel = SocketChannel.open( new InetSocketAddress( this.host, this.port ) );
+                channel.socket().setTcpNoDelay( true );
+                channel.configureBlocking( false );
+                boolean slow = i >= this.clients - this.slowClients;
+                LoadConnection connection = new LoadConnection( i, "load" + i, channel, slow );
+                this.connections.add( connection );
+                if( slow )
+                {
+                    slowReader.slow.add( connection );
+                }
+                else
+                {
+                    readers[ i % readers.length ].add( connection );
+                }
+            }
+        }
+        catch( IOException e )
+        {
+            System.out.println( "Connected only " + this.connections.size() + " clients: " + e );
+        }
+        this.logins = new CountDownLatch( this.connections.size() );
+        for( int i=0; i<readers.length; i++ )
+        {
+            readers[ i ].start();
+        }
+        slowReader.start();
+        for( int i=0; i<this.connections.size(); i++ )
+        {
+            LoadConnection connection = this.connections.get( i );
+            if( !connection.write( this.protocol.login( connection ) ) )
+            {
+                disconnected( connection );
+            }
+        }
+        if( !this.logins.await( LOGIN_TIMEOUT_SECONDS, TimeUnit.SECONDS ) )
+        {
+            System.out.println( this.logins.getCount() + " logins were not answered within " + LOGIN_TIMEOUT_SECONDS + " s" );
+        }
+
+        List<LoadConnection> senders = new ArrayList<LoadConnection>();
+        List<LoadConnection> online = new ArrayList<LoadConnection>();
+        for( int i=0; i<this.connections.size(); i++ )
+        {
+            LoadConnection connection = this.connections.get( i );
+            if( connection.loggedIn )
+            {
+                online.add( connection );
+                if( !connection.slow )
+                {
+                    senders.add( connection );
+                }
+            }
+        }
+        System.out.printf( "%d of %d clients logged in in %.1f s, %d refused%n", online.size(), this.clients,
+                ( System.nanoTime() - started ) / 1e9, this.failedLogins.get() );
+        if( senders.isEmpty() )
+        {
+            shutdown();
+            return;
+        }
+
+        drive( senders.toArray( new LoadConnection[ 0 ] ), online.toArray( new LoadConnection[ 0 ] ) );
+        shutdown();
+    }
+
+    /**
+     * Sends the commands at the configured rate, then reports
+     */
+    private void drive( LoadConnection[] senders, LoadConnection[] online ) throws InterruptedException
+    {
+        int totalWeight = 0;
+        for( int i=0; i<this.weights.length; i++ )
+        {
+            totalWeight += this.weights[ i ];
+        }
+        if( totalWeight <= 0 )
+        {
+            throw new IllegalArgumentException( "The mix has no commands" );
+        }
+        long broadcastRecipients = online.length - ( this.protocol.echoesSender() ? 0 : 1 );
+        StringBuilder padding = new StringBuilder();
+        while( padding.length() < this.size )
+        {
+            padding.append( 'x' );
+        }
+
+        long interval = Math.max( 1, 1000000000L / this.rate );
+        long start = System.nanoTime();
+        long measureStart = start + this.warmupSeconds * 1000000000L;
+        long end = measureStart + this.durationSeconds * 1000000000L;
+        this.measureFrom = measureStart;
+        boolean measuring = false;
+        long due = start;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while( true )
+        {
+            long now = System.nanoTime();
+            if( !measuring && now >= measureStart )
+            {
+                resetStatistics();
+                measuring = true;
+            }
+            if( now >= end )
+            {
+                break;
+            }
+            if( due > now )
+            {
+                LockSupport.parkNanos( due - now );
+                continue;
+            }
+
+            // Commands that fell behind are sent at once but keep the time they were due
+            LoadConnection from = senders[ random.nextInt( senders.length ) ];
+            int command = pick( random.nextInt( totalWeight ) );
+            LoadConnection to = null;
+            if( command == PRIV )
+            {
+                to = online[ random.nextInt( online.length ) ];
+                if( to == from )
+                {
+                    to = online[ ( to.index + 1 ) % online.length ];
+                }
+            }
+            send( from, command, to, "t=" + due + " " + padding, due, command == PRIV ? 1 : broadcastRecipients );
+            due += interval;
+        }
+
+        // Counted over the measured time only; the latencies also take the messages still on their way
+        long sentTotal = 0;
+        long[] sentCounts = new long[ COMMANDS.length ];
+        for( int i=0; i<COMMANDS.length; i++ )
+        {
+            sentCounts[ i ] = this.sent[ i ].sum();
+            sentTotal += sentCounts[ i ];
+        }
+        long receivedInTime = this.received.sum();
+        Thread.sleep( DRAIN_MILLIS );
+        report( sentCounts, sentTotal, receivedInTime, online.length );
+    }
+
+    private int pick( int roll )
+    {
+        for( int command=0; command<this.weights.length; command++ )
+        {
+            roll -= this.weights[ command ];
+            if( roll < 0 )
+            {
+                return command;
+            }
+        }
+        return SEND;
+    }
+
+    private void send( LoadConnection from, int command, LoadConnection to, String text, long due, long recipients )
+    {
+        if( from.closed )
+        {
+            return;
+        }
+        Long listDue = Long.valueOf( due );
+        if( command == LIST )
+        {
+            // Queued before the write, in case the answer is read before write() returns
+            from.listRequests.add( listDue );
+        }
+        try
+        {
+            if( !from.write( this.protocol.encode( command, from, to, text ) ) )
+            {
+                // The server is not reading from this client
+                this.stalled.increment();
+                if( command == LIST )
+                {
+                    from.listRequests.remove( listDue );
+                }
+                return;
+            }
+        }
+        catch( IOException e )
+        {
+            disconnected( from );
+            return;
+        }
+        if( due >= this.measureFrom )
+        {
+            this.sent[ command ].increment();
+            if( command != LIST )
+            {
+                this.expected.add( recipients );
+            }
+        }
+    }
+
+    /**
+     * Forgets the problems seen during the warm-up
+     */
+    private void resetStatistics()
+    {
+        this.stalled.reset();
+        this.errors.reset();
+        this.disconnects.reset();
+    }
+
+    private void report( long[] sentCounts, long sentTotal, long receivedInTime, int online )
+    {
+        double seconds = this.durationSeconds;
+        System.out.println();
+        System.out.printf( "%s server %s:%d, %d clients online ( %d slow readers ), %d commands/s for %d s after %d s of warm-up%n",
+                this.serverName, this.host, this.port, online, this.slowClients, this.rate, this.durationSeconds, this.warmupSeconds );
+        StringBuilder sb = new StringBuilder( "Commands:   " );
+        for( int i=0; i<COMMANDS.length; i++ )
+        {
+            sb.append( COMMANDS[ i ] ).append( ' ' ).append( sentCounts[ i ] ).append( "   " );
+        }
+        sb.append( "not accepted by the server " ).append( this.stalled.sum() );
+        System.out.println( sb );
+        System.out.printf( "Throughput: %.0f commands/s, %.0f messages delivered/s%n",
+                sentTotal / seconds, receivedInTime / seconds );
+        long expectedTotal = this.expected.sum();
+        System.out.printf( "Delivered:  %d of %d expected ( %.2f%% ), %d errors, %d disconnects%n",
+                this.received.sum(), expectedTotal, expectedTotal == 0 ? 100.0 : this.received.sum() * 100.0 / expectedTotal,
+                this.errors.sum(), this.disconnects.sum() );
+        System.out.printf( "%-14s %12s %10s %10s %10s %10s%n", "Latency (ms)", "count", "p50", "p99", "p99.9", "max" );
+        for( int i=0; i<COMMANDS.length; i++ )
+        {
+            printLatency( COMMANDS[ i ], this.latencies[ i ] );
+        }
+        printLatency( "slow readers", this.slowLatency );
+    }
+
+    private static void printLatency( String name, Histogram histogram )
+    {
+        long count = histogram.getCount();
+        if( count == 0 )
+        {
+            return;
+        }
+        System.out.printf( "%-14s %12d %10.3f %10.3f %10.3f %10.3f%n", name, count,
+                histogram.getPercentile( 0.5 ) / 1000.0, histogram.getPercentile( 0.99 ) / 1000.0,
+                histogram.getPercentile( 0.999 ) / 1000.0, histogram.getMax() / 1000.0 );
+    }
+
+    private void shutdown()
+    {
+        this.running = false;
+        for( int i=0; i<this.connections.size(); i++ )
+        {
+            this.connections.get( i ).close();
+        }
+    }
+
+    /**
+     * Parses "send:70,priv:20,list:5,emot:5"; commands that are left out are not sent
+     */
+    private static int[] parseMix( String mix )
+    {
+        int[] weights = new int[ COMMANDS.length ];
+        String[] parts = mix.split( "," );
+        for( int i=0; i<parts.length; i++ )
+        {
+            String[] pair = parts[ i ].split( ":" );
+            int command = -1;
+            for( int j=0; j<COMMANDS.length; j++ )
+            {
+                if( COMMANDS[ j ].equalsIgnoreCase( pair[ 0 ].trim() ) )
+                {
+                    command = j;
+                }
+            }
+            if( command < 0 || pair.length != 2 )
+            {
+                throw new IllegalArgumentException( "Bad mix: " + mix );
+            }
+            weights[ command ] = Integer.parseInt( pair[ 1 ].trim() );
+        }
+        return weights;
+    }
+
+    public static void main( String[] args ) throws Exception
+    {
+        LoadGenerator generator = new LoadGenerator();
+        for( int i=0; i<args.length; i++ )
+        {
+            if( args[ i ].equals( "-server" ) && i + 1 < args.length )
+            {
+                generator.serverName = args[ ++i ];
+                if( generator.serverName.equals( "gui" ) )
+                {
+                    generator.protocol = new GuiLoadProtocol();
+                }
+                else if( !generator.serverName.equals( "text" ) )
+                {
+                    throw new IllegalArgumentException( "Unknown server: " + generator.serverName );
+                }
+            }
+            else if( args[ i ].equals( "-host" ) && i + 1 < args.length )
+            {
+                generator.host = args[ ++i ];
+            }
+            else if( args[ i ].equals( "-port" ) && i + 1 < args.length )
+            {
+                generator.port = Integer.parseInt( args[ ++i ] );
+            }
+            else if( args[ i ].equals( "-clients" ) && i + 1 < args.length )
+            {
+                generator.clients = Integer.parseInt( args[ ++i ] );
+            }
+            else if( args[ i ].equals( "-slow" ) && i + 1 < args.length )
+            {
+                generator.slowClients = Integer.parseInt( args[ ++i ] );
+                if( i + 1 < args.length && args[ i + 1 ].matches( "\\d+" ) )
+                {
+                    generator.slowBytesPerSecond = Integer.parseInt( args[ ++i ] );
+                }
+            }
+            else if( args[ i ].equals( "-rate" ) && i + 1 < args.length )
+            {
+                generator.rate = Integer.parseInt( args[ ++i ] );
+            }
+            else if( args[ i ].equals( "-mix" ) && i + 1 < args.length )
+            {
+                generator.weights = parseMix( args[ ++i ] );
+            }
+            else if( args[ i ].equals( "-size" ) && i + 1 < args.length )
+            {
+                generator.size = Integer.parseInt( args[ ++i ] );
+            }
+            else if( args[ i ].equals( "-warmup" ) && i + 1 < args.length )
+            {
+                generator.warmupSeconds = Integer.parseInt( args[ ++i ] );
+            }
+            else if( args[ i ].equals( "-duration" ) && i + 1 < args.length )
+            {
+                generator.durationSeconds = Integer.parseInt( args[ ++i ] );
+            }
+            else if( args[ i ].equals( "-readers" ) && i + 1 < args.length )
+            {
+                generator.readerCount = Math.max( 1, Integer.parseInt( args[ ++i ] ) );
+            }
+        }
+        generator.slowClients = Math.min( generator.slowClients, generator.clients - 1 );
+        generator.run();
+    }
+}
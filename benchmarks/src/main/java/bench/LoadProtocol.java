@@ -0,0 +1,43 @@
+package bench;
+
+import java.nio.ByteBuffer;
+
+/**
+ * How the LoadGenerator talks to one kind of server
+ * 负载生成器与某一种服务器之间的协议
+ */
+public interface LoadProtocol
+{
+    /**
+     * The port the server listens on unless told otherwise
+     */
+    int getDefaultPort();
+
+    /**
+     * Returns true if the server sends a broadcast back to its sender as well
+     */
+    boolean echoesSender();
+
+    /**
+     * Returns true if the server has the specified LoadGenerator command
+     */
+    boolean supports( int command );
+
+    /**
+     * Returns the message that logs the connection's user in
+     */
+    ByteBuffer login( LoadConnection connection );
+
+    /**
+     * Returns the message for one of the LoadGenerator commands
+     *
+     * @param to    The recipient of a private message, otherwise null
+     */
+    ByteBuffer encode( int command, LoadConnection from, LoadConnection to, String text );
+
+    /**
+     * Takes the complete messages out of the input, which is in read mode, and reports them
+     * to the generator; an incomplete message at the end is left in place
+     */
+    void parse( LoadConnection connection, ByteBuffer in, LoadGenerator generator );
+}
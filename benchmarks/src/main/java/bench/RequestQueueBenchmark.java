@@ -0,0 +1,106 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/**
+ * Handing requests from the accepting thread to the pool: RequestQueue.add() against
+ * getNextObject(), with one producer and one consumer and with four of each.
+ *
+ * The consumers are the benchmark's threads, which take objects the way a RequestThread
+ * does, so what is measured is the queue and its wake-ups and not the handlers.
+ * 请求队列在竞争下的入队/出队吞吐量
+ */
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+@State( Scope.Group )
+public class RequestQueueBenchmark
+{
+    /**
+     * Large enough that the producers rarely find the queue full
+     */
+    private static final int MAX_QUEUE_LENGTH = 64 * 1024;
+
+    /**
+     * How long a consumer waits before giving up, so that none hangs at the end of an iteration
+     */
+    private static final long TAKE_TIMEOUT_MILLIS = 10;
+
+    private Fixtures.Queue queue;
+
+    private final Object request = new Object();
+
+    @Setup( Level.Trial )
+    public void setup( BenchmarkParams params )
+    {
+        // The thread groups are labelled with their methods: count the ones that take
+        int[] threads = params.getThreadGroups();
+        int consumers = 0;
+        int i = 0;
+        for( String label : params.getThreadGroupLabels() )
+        {
+            if( label.startsWith( "take" ) )
+            {
+                consumers += threads[ i ];
+            }
+            i++;
+        }
+        this.queue = Fixtures.newQueue( MAX_QUEUE_LENGTH, consumers );
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown()
+    {
+        this.queue.shutdown();
+    }
+
+    @Benchmark
+    @Group( "oneToOne" )
+    @GroupThreads( 1 )
+    public boolean add()
+    {
+        return this.queue.add( this.request );
+    }
+
+    @Benchmark
+    @Group( "oneToOne" )
+    @GroupThreads( 1 )
+    public Object take()
+    {
+        return this.queue.take( TAKE_TIMEOUT_MILLIS );
+    }
+
+    @Benchmark
+    @Group( "fourToFour" )
+    @GroupThreads( 4 )
+    public boolean addContended()
+    {
+        return this.queue.add( this.request );
+    }
+
+    @Benchmark
+    @Group( "fourToFour" )
+    @GroupThreads( 4 )
+    public Object takeContended()
+    {
+        return this.queue.take( TAKE_TIMEOUT_MILLIS );
+    }
+}
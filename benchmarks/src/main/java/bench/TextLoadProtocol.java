@@ -0,0 +1,123 @@
+package bench;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The line protocol of ChatServer in src
+ * ChatServer的文本行协议
+ */
+public class TextLoadProtocol implements LoadProtocol
+{
+    public int getDefaultPort()
+    {
+        return 9988;
+    }
+
+    public boolean echoesSender()
+    {
+        return false;
+    }
+
+    public boolean supports( int command )
+    {
+        return true;
+    }
+
+    public ByteBuffer login( LoadConnection connection )
+    {
+        return line( "USER " + connection.username );
+    }
+
+    public ByteBuffer encode( int command, LoadConnection from, LoadConnection to, String text )
+    {
+        switch( command )
+        {
+            case LoadGenerator.SEND:
+                return line( "SEND " + text );
+            case LoadGenerator.PRIV:
+                return line( "PRIV " + to.username + ":" + text );
+            case LoadGenerator.LIST:
+                return line( "LIST" );
+            case LoadGenerator.EMOT:
+                return line( "EMOT " + text );
+            default:
+                throw new IllegalArgumentException( "Unknown command " + command );
+        }
+    }
+
+    private static ByteBuffer line( String line )
+    {
+        return ByteBuffer.wrap( ( line + "\n" ).getBytes( StandardCharsets.UTF_8 ) );
+    }
+
+    public void parse( LoadConnection connection, ByteBuffer in, LoadGenerator generator )
+    {
+        byte[] bytes = in.array();
+        int start = in.position();
+        int end = in.limit();
+        for( int i=start; i<end; i++ )
+        {
+            if( bytes[ i ] == '\n' )
+            {
+                line( connection, bytes, start, i, generator );
+                start = i + 1;
+            }
+        }
+        in.position( start );
+    }
+
+    /**
+     * Reports one line; only the command and the timestamp are looked at, without decoding
+     */
+    private static void line( LoadConnection connection, byte[] bytes, int start, int end, LoadGenerator generator )
+    {
+        if( startsWith( bytes, start, end, "MESG " ) )
+        {
+            generator.delivered( connection, LoadGenerator.SEND, LoadGenerator.timestamp( bytes, start, end ) );
+        }
+        else if( startsWith( bytes, start, end, "EMOT " ) )
+        {
+            generator.delivered( connection, LoadGenerator.EMOT, LoadGenerator.timestamp( bytes, start, end ) );
+        }
+        else if( startsWith( bytes, start, end, "PRIV " ) )
+        {
+            generator.delivered( connection, LoadGenerator.PRIV, LoadGenerator.timestamp( bytes, start, end ) );
+        }
+        else if( startsWith( bytes, start, end, "LIST " ) )
+        {
+            generator.listed( connection );
+        }
+        else if( startsWith( bytes, start, end, "SUCCESS" ) )
+        {
+            generator.loggedIn( connection, true );
+        }
+        else if( startsWith( bytes, start, end, "ERROR" ) )
+        {
+            if( connection.loggedIn )
+            {
+                generator.error( connection );
+            }
+            else
+            {
+                generator.loggedIn( connection, false );
+            }
+        }
+    }
+
+    private static boolean startsWith( byte[] bytes, int start, int end, String prefix )
+    {
+        if( end - start < prefix.length() )
+        {
+            return false;
+        }
+        for( int i=0; i<prefix.length(); i++ )
+        {
+            if( bytes[ start + i ] != prefix.charAt( i ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
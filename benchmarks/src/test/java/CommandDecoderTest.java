@@ -0,0 +1,104 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * CommandDecoder: commands are found in any case, lines may arrive in pieces, and lines
+ * that are too short or too long are reported as such without growing the buffer.
+ * 命令解析与行长度限制
+ */
+public class CommandDecoderTest
+{
+    /**
+     * Records every line as "<command> <argument>"; stops after EXIT
+     */
+    private static class Recorder implements CommandDecoder.Listener
+    {
+        final List<String> lines = new ArrayList<String>();
+
+        public boolean handleCommand( CommandDecoder line )
+        {
+            this.lines.add( line.getCommand() + " " + line.getArgument() );
+            return line.getCommand() != CommandDecoder.EXIT;
+        }
+    }
+
+    private static ByteBuffer bytes( String s )
+    {
+        return ByteBuffer.wrap( s.getBytes( StandardCharsets.UTF_8 ) );
+    }
+
+    @Test
+    public void commandsInAnyCase()
+    {
+        Recorder recorder = new Recorder();
+        CommandDecoder decoder = new CommandDecoder( new byte[ 64 ], recorder );
+        assertTrue( decoder.decode( bytes( "USER ann\nsend hello there\nPriv ben:hi\r\nHELP\n" ) ) );
+        assertEquals( List.of( CommandDecoder.USER + " ann", CommandDecoder.SEND + " hello there",
+                CommandDecoder.PRIV + " ben:hi", CommandDecoder.HELP + " " ), recorder.lines );
+    }
+
+    @Test
+    public void unknownAndShortLines()
+    {
+        Recorder recorder = new Recorder();
+        CommandDecoder decoder = new CommandDecoder( new byte[ 64 ], recorder );
+        decoder.decode( bytes( "WHAT is this\nHI\n\n" ) );
+        assertEquals( List.of( CommandDecoder.UNKNOWN + " is this", CommandDecoder.TOO_SHORT + " ",
+                CommandDecoder.TOO_SHORT + " " ), recorder.lines );
+    }
+
+    @Test
+    public void lineSplitAcrossReads()
+    {
+        Recorder recorder = new Recorder();
+        CommandDecoder decoder = new CommandDecoder( new byte[ 64 ], recorder );
+        decoder.decode( bytes( "SE" ) );
+        decoder.decode( bytes( "ND hel" ) );
+        assertTrue( recorder.lines.isEmpty() );
+        decoder.decode( bytes( "lo\n" ) );
+        assertEquals( List.of( CommandDecoder.SEND + " hello" ), recorder.lines );
+    }
+
+    @Test
+    public void longLineIsSkippedToItsNewline()
+    {
+        Recorder recorder = new Recorder();
+        CommandDecoder decoder = new CommandDecoder( new byte[ 16 ], recorder );
+        StringBuilder sb = new StringBuilder( "SEND " );
+        for( int i=0; i<1000; i++ )
+        {
+            sb.append( 'x' );
+        }
+        decoder.decode( bytes( sb.toString() ) );
+        decoder.decode( bytes( "xxx\nSEND ok\n" ) );
+        assertEquals( List.of( CommandDecoder.TOO_LONG + " ", CommandDecoder.SEND + " ok" ), recorder.lines );
+    }
+
+    @Test
+    public void lineOfExactlyTheLimitFits()
+    {
+        Recorder recorder = new Recorder();
+        CommandDecoder decoder = new CommandDecoder( new byte[ 10 ], recorder );
+        decoder.decode( bytes( "SEND 12345\n" ) );
+        assertEquals( List.of( CommandDecoder.SEND + " 12345" ), recorder.lines );
+    }
+
+    @Test
+    public void stopsAfterTheListenerSaysSo()
+    {
+        Recorder recorder = new Recorder();
+        CommandDecoder decoder = new CommandDecoder( new byte[ 64 ], recorder );
+        ByteBuffer input = bytes( "EXIT\nSEND never\n" );
+        assertFalse( decoder.decode( input ) );
+        assertEquals( List.of( CommandDecoder.EXIT + " " ), recorder.lines );
+        assertEquals( "SEND never\n".length(), input.remaining() );
+    }
+}
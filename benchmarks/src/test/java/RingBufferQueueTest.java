@@ -0,0 +1,112 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * RingBufferQueue: first in, first out, bounded, and every element offered by several
+ * threads is polled exactly once.
+ * 有界无锁环形队列
+ */
+public class RingBufferQueueTest
+{
+    @Test
+    public void firstInFirstOutAcrossTheWrap()
+    {
+        RingBufferQueue<Integer> queue = new RingBufferQueue<Integer>( 4 );
+        int next = 0;
+        for( int round=0; round<10; round++ )
+        {
+            assertTrue( queue.offer( Integer.valueOf( round * 3 ) ) );
+            assertTrue( queue.offer( Integer.valueOf( round * 3 + 1 ) ) );
+            assertTrue( queue.offer( Integer.valueOf( round * 3 + 2 ) ) );
+            for( int i=0; i<3; i++ )
+            {
+                assertEquals( next++, queue.poll().intValue() );
+            }
+        }
+        assertTrue( queue.isEmpty() );
+        assertNull( queue.poll() );
+    }
+
+    @Test
+    public void offerFailsWhenFull()
+    {
+        RingBufferQueue<String> queue = new RingBufferQueue<String>( 2 );
+        assertTrue( queue.offer( "a" ) );
+        assertTrue( queue.offer( "b" ) );
+        assertFalse( queue.offer( "c" ) );
+        assertEquals( 2, queue.size() );
+        assertEquals( "a", queue.poll() );
+        assertTrue( queue.offer( "c" ) );
+        assertEquals( "b", queue.poll() );
+        assertEquals( "c", queue.poll() );
+    }
+
+    @Test
+    public void capacityMustBePositive()
+    {
+        assertThrows( IllegalArgumentException.class, () -> new RingBufferQueue<String>( 0 ) );
+    }
+
+    @Test
+    public void concurrentProducersAndConsumers() throws InterruptedException
+    {
+        final RingBufferQueue<Long> queue = new RingBufferQueue<Long>( 64 );
+        final int producers = 4;
+        final int perProducer = 100000;
+        final AtomicLong sum = new AtomicLong();
+        final AtomicLong count = new AtomicLong();
+
+        Thread[] threads = new Thread[ producers * 2 ];
+        for( int p=0; p<producers; p++ )
+        {
+            final long base = ( long )p * perProducer;
+            threads[ p ] = new Thread( () ->
+            {
+                for( int i=0; i<perProducer; i++ )
+                {
+                    while( !queue.offer( Long.valueOf( base + i ) ) )
+                    {
+                        Thread.yield();
+                    }
+                }
+            } );
+        }
+        for( int c=0; c<producers; c++ )
+        {
+            threads[ producers + c ] = new Thread( () ->
+            {
+                while( count.get() < ( long )producers * perProducer )
+                {
+                    Long value = queue.poll();
+                    if( value == null )
+                    {
+                        Thread.yield();
+                        continue;
+                    }
+                    sum.addAndGet( value.longValue() );
+                    count.incrementAndGet();
+                }
+            } );
+        }
+        for( Thread thread : threads )
+        {
+            thread.start();
+        }
+        for( Thread thread : threads )
+        {
+            thread.join();
+        }
+
+        long n = ( long )producers * perProducer;
+        assertEquals( n, count.get() );
+        assertEquals( n * ( n - 1 ) / 2, sum.get() );
+        assertTrue( queue.isEmpty() );
+    }
+}
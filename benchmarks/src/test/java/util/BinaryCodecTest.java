@@ -0,0 +1,93 @@
+package util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The binary codec ( protocol 2 ): messages survive a round trip, and frames that do not
+ * parse are reported as null instead of throwing.
+ * 二进制编码的往返与异常数据
+ */
+public class BinaryCodecTest
+{
+    private final BinaryCodec codec = new BinaryCodec();
+
+    private ChatMessage roundTrip( ChatMessage message )
+    {
+        byte[] frame = this.codec.encode( message );
+        assertEquals( frame.length, this.codec.frameLength( frame, 0, frame.length ) );
+        return this.codec.decode( frame, 0, frame.length );
+    }
+
+    @Test
+    public void clientMessageRoundTrips()
+    {
+        ChatMessage decoded = roundTrip( ChatMessage.clientMessage( "张三", "大家好, hello" ) );
+        assertEquals( CharacterUtil.CLIENT_MESSAGE, decoded.getType() );
+        assertEquals( "张三", decoded.getUser() );
+        assertEquals( "大家好, hello", decoded.getContent() );
+        assertNull( decoded.getResult() );
+    }
+
+    @Test
+    public void userListRoundTrips()
+    {
+        ChatMessage decoded = roundTrip( ChatMessage.userList( Arrays.asList( "ann", "ben", "李四" ), 7 ) );
+        assertEquals( CharacterUtil.USER_LIST, decoded.getType() );
+        assertEquals( Arrays.asList( "ann", "ben", "李四" ), decoded.getUsers() );
+        assertEquals( 7, decoded.getVersion() );
+    }
+
+    @Test
+    public void loginResultRoundTrips()
+    {
+        ChatMessage decoded = roundTrip( ChatMessage.loginResult( "success", 2 ) );
+        assertEquals( CharacterUtil.LOGIN_RESULT, decoded.getType() );
+        assertEquals( "success", decoded.getResult() );
+        assertEquals( 2, decoded.getVersion() );
+    }
+
+    @Test
+    public void incompleteFrameHasNoLength()
+    {
+        byte[] frame = this.codec.encode( ChatMessage.serverMessage( "hi" ) );
+        assertEquals( -1, this.codec.frameLength( frame, 0, 3 ) );
+        assertEquals( -1, this.codec.frameLength( frame, 0, frame.length - 1 ) );
+    }
+
+    @Test
+    public void negativeLengthIsRejected()
+    {
+        byte[] frame = ByteBuffer.allocate( 8 ).putInt( -1 ).array();
+        assertThrows( IllegalStateException.class, () -> this.codec.frameLength( frame, 0, frame.length ) );
+    }
+
+    @Test
+    public void negativeUserCountDecodesToNull()
+    {
+        // type, flags = USERS, count = -5
+        byte[] frame = ByteBuffer.allocate( 10 ).putInt( 6 ).put( ( byte )CharacterUtil.USER_LIST ).put( ( byte )8 ).putInt( -5 ).array();
+        assertNull( this.codec.decode( frame, 0, frame.length ) );
+    }
+
+    @Test
+    public void userCountBeyondTheFrameDecodesToNull()
+    {
+        byte[] frame = ByteBuffer.allocate( 10 ).putInt( 6 ).put( ( byte )CharacterUtil.USER_LIST ).put( ( byte )8 ).putInt( 1000000 ).array();
+        assertNull( this.codec.decode( frame, 0, frame.length ) );
+    }
+
+    @Test
+    public void stringBeyondTheFrameDecodesToNull()
+    {
+        // flags = USER, with a user name said to be 100 bytes long
+        byte[] frame = ByteBuffer.allocate( 12 ).putInt( 8 ).put( ( byte )CharacterUtil.CLIENT_MESSAGE ).put( ( byte )1 ).putInt( 100 ).put( ( byte )'a' ).put( ( byte )'b' ).array();
+        assertNull( this.codec.decode( frame, 0, frame.length ) );
+    }
+}
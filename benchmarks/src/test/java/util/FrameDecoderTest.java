@@ -0,0 +1,142 @@
+package util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * FrameDecoder with both codecs: messages read together or a byte at a time come out
+ * whole and in order, and a frame that does not parse is skipped once.
+ * 消息的拆分、合并与无法解析的消息
+ */
+public class FrameDecoderTest
+{
+    /**
+     * Hands out its bytes one at a time, the worst a TCP stream can do
+     */
+    private static class TrickleInputStream extends ByteArrayInputStream
+    {
+        TrickleInputStream( byte[] bytes )
+        {
+            super( bytes );
+        }
+
+        @Override
+        public synchronized int read( byte[] b, int off, int len )
+        {
+            return super.read( b, off, Math.min( len, 1 ) );
+        }
+    }
+
+    private static byte[] frames( MessageCodec codec, ChatMessage... messages ) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for( ChatMessage message : messages )
+        {
+            out.write( codec.encode( message ) );
+        }
+        return out.toByteArray();
+    }
+
+    private static void readAll( MessageCodec codec, InputStream in ) throws IOException
+    {
+        FrameDecoder decoder = new FrameDecoder( in, codec );
+        try
+        {
+            for( int i=0; i<100; i++ )
+            {
+                assertEquals( "message " + i, decoder.read().getContent() );
+            }
+            assertNull( decoder.read() );
+        }
+        finally
+        {
+            decoder.release();
+        }
+    }
+
+    private static ChatMessage[] messages()
+    {
+        ChatMessage[] messages = new ChatMessage[ 100 ];
+        for( int i=0; i<messages.length; i++ )
+        {
+            messages[ i ] = ChatMessage.clientMessage( "ann", "message " + i );
+        }
+        return messages;
+    }
+
+    @Test
+    public void mergedBinaryFrames() throws IOException
+    {
+        readAll( MessageCodecs.BINARY, new ByteArrayInputStream( frames( MessageCodecs.BINARY, messages() ) ) );
+    }
+
+    @Test
+    public void splitBinaryFrames() throws IOException
+    {
+        readAll( MessageCodecs.BINARY, new TrickleInputStream( frames( MessageCodecs.BINARY, messages() ) ) );
+    }
+
+    @Test
+    public void mergedXmlFrames() throws IOException
+    {
+        readAll( MessageCodecs.XML, new ByteArrayInputStream( frames( MessageCodecs.XML, messages() ) ) );
+    }
+
+    @Test
+    public void splitXmlFrames() throws IOException
+    {
+        readAll( MessageCodecs.XML, new TrickleInputStream( frames( MessageCodecs.XML, messages() ) ) );
+    }
+
+    @Test
+    public void largeFrameGrowsTheBuffer() throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        for( int i=0; i<100000; i++ )
+        {
+            sb.append( ( char )( 'a' + i % 26 ) );
+        }
+        byte[] bytes = frames( MessageCodecs.BINARY, ChatMessage.serverMessage( sb.toString() ) );
+        FrameDecoder decoder = new FrameDecoder( new ByteArrayInputStream( bytes ), MessageCodecs.BINARY );
+        try
+        {
+            assertEquals( sb.toString(), decoder.read().getContent() );
+            assertNull( decoder.read() );
+        }
+        finally
+        {
+            decoder.release();
+        }
+    }
+
+    @Test
+    public void malformedFrameIsSkipped() throws IOException
+    {
+        // A user list whose count is negative, between two good messages
+        byte[] bad = ByteBuffer.allocate( 10 ).putInt( 6 ).put( ( byte )CharacterUtil.USER_LIST ).put( ( byte )8 ).putInt( -5 ).array();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write( MessageCodecs.BINARY.encode( ChatMessage.serverMessage( "before" ) ) );
+        out.write( bad );
+        out.write( MessageCodecs.BINARY.encode( ChatMessage.serverMessage( "after" ) ) );
+
+        FrameDecoder decoder = new FrameDecoder( new ByteArrayInputStream( out.toByteArray() ), MessageCodecs.BINARY );
+        try
+        {
+            assertEquals( "before", decoder.read().getContent() );
+            assertEquals( "after", decoder.read().getContent() );
+            assertNull( decoder.read() );
+        }
+        finally
+        {
+            decoder.release();
+        }
+    }
+}
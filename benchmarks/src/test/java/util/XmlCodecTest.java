@@ -0,0 +1,64 @@
+package util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The XML codec ( protocol 1 ): messages survive a round trip, a frame ends at the root
+ * element's end tag, and XML that does not parse is reported as null.
+ * XML编码的往返与异常数据
+ */
+public class XmlCodecTest
+{
+    private final XmlCodec codec = new XmlCodec();
+
+    private ChatMessage roundTrip( ChatMessage message )
+    {
+        byte[] frame = this.codec.encode( message );
+        assertEquals( frame.length, this.codec.frameLength( frame, 0, frame.length ) );
+        return this.codec.decode( frame, 0, frame.length );
+    }
+
+    @Test
+    public void clientMessageRoundTrips()
+    {
+        // '<' and '&' in the text must not end the frame early or break the XML
+        ChatMessage decoded = roundTrip( ChatMessage.clientMessage( "张三", "a < b && </message> 大家好" ) );
+        assertEquals( CharacterUtil.CLIENT_MESSAGE, decoded.getType() );
+        assertEquals( "张三", decoded.getUser() );
+        assertEquals( "a < b && </message> 大家好", decoded.getContent() );
+    }
+
+    @Test
+    public void userListRoundTrips()
+    {
+        ChatMessage decoded = roundTrip( ChatMessage.userList( Arrays.asList( "ann", "ben" ), 3 ) );
+        assertEquals( CharacterUtil.USER_LIST, decoded.getType() );
+        assertEquals( Arrays.asList( "ann", "ben" ), decoded.getUsers() );
+        assertEquals( 3, decoded.getVersion() );
+    }
+
+    @Test
+    public void frameEndsAtTheEndTag()
+    {
+        byte[] first = this.codec.encode( ChatMessage.serverMessage( "one" ) );
+        byte[] second = this.codec.encode( ChatMessage.serverMessage( "two" ) );
+        byte[] both = new byte[ first.length + second.length ];
+        System.arraycopy( first, 0, both, 0, first.length );
+        System.arraycopy( second, 0, both, first.length, second.length );
+        assertEquals( first.length, this.codec.frameLength( both, 0, both.length ) );
+        assertEquals( -1, this.codec.frameLength( both, 0, first.length - 1 ) );
+    }
+
+    @Test
+    public void malformedXmlDecodesToNull()
+    {
+        byte[] frame = "<message><type>2<user>x</message>".getBytes( StandardCharsets.UTF_8 );
+        assertNull( this.codec.decode( frame, 0, frame.length ) );
+    }
+}
@@ -1,9 +1,13 @@
 // Import the Java classes
-import javax.net.ServerSocketFactory;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Abstract super class for creating servers
@@ -40,6 +44,71 @@ public abstract class AbstractServer extends Thread
      */
     protected RequestQueue requestQueue;
 
+    /**
+     * The name of the request handler implementation class
+     */
+    protected String requestHandlerClassName;
+
+    /**
+     * Creates the handler of every connection; made from requestHandlerClassName when the
+     * server starts unless one was set
+     */
+    protected RequestHandlerFactory requestHandlerFactory;
+
+    /**
+     * Request queue and thread pool parameters, used by the blocking transport
+     */
+    protected int maxQueueLength;
+    protected int minThreads;
+    protected int maxThreads;
+
+    /**
+     * The number of event loops for the non-blocking transport; 0 selects the classic
+     * blocking transport backed by the request queue
+     * 非阻塞模式下事件循环线程的数目，0表示使用传统的阻塞模式
+     */
+    protected int reactorThreads = 0;
+
+    /**
+     * Run every connection on its own virtual thread instead of the request queue's pool
+     * 每个连接使用一个虚拟线程，而不是线程池
+     */
+    protected boolean virtualThreads = false;
+
+    /**
+     * Executor used by the virtual-thread transport
+     */
+    protected VirtualThreadExecutor virtualThreadExecutor;
+
+    /**
+     * Connections accepted, and connections turned away because the request queue was full
+     * 接受的连接数和因请求队列已满而拒绝的连接数
+     */
+    private static final LongAdder acceptedConnections = MetricsRegistry.theRegistry.counter( "connections.accepted" );
+    private static final LongAdder rejectedConnections = MetricsRegistry.theRegistry.counter( "connections.rejected" );
+
+    /**
+     * The number of messages that may be waiting for a client before it counts as slow
+     * 客户端最多允许积压的消息数
+     */
+    protected int maxPendingMessages = 1000;
+
+    /**
+     * What to do with clients that read slower than their messages arrive
+     * 对读取过慢的客户端的处理策略
+     */
+    protected SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DROP_OLDEST;
+
+    /**
+     * Server channel that serverSocket belongs to; the non-blocking transport accepts from it directly
+     */
+    protected ServerSocketChannel serverChannel;
+
+    /**
+     * The event loops of the non-blocking transport
+     */
+    protected EventLoop[] eventLoops;
+
     /**
      * Creates a new AbstractServer
      */
@@ -54,11 +123,74 @@ public abstract class AbstractServer extends Thread
         this.port = port;
         this.backlog = backlog;
 
-        // Create our request queue
-        this.requestQueue = new RequestQueue( requestHandlerClassName,
-                maxQueueLength,
-                minThreads,
-                maxThreads );
+        // Save our request handling parameters; the transport is created when the server starts
+        this.requestHandlerClassName = requestHandlerClassName;
+        this.maxQueueLength = maxQueueLength;
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+    }
+
+    /**
+     * Sets the port to listen on; must be called before startServer()
+     */
+    public void setPort( int port )
+    {
+        this.port = port;
+    }
+
+    /**
+     * Sets the factory that creates the handler of every connection; must be called before
+     * startServer()
+     */
+    public void setRequestHandlerFactory( RequestHandlerFactory requestHandlerFactory )
+    {
+        this.requestHandlerFactory = requestHandlerFactory;
+    }
+
+    /**
+     * Selects the non-blocking transport with the specified number of event loops;
+     * must be called before startServer()
+     */
+    public void setReactorThreads( int reactorThreads )
+    {
+        this.reactorThreads = reactorThreads;
+    }
+
+    /**
+     * Selects the thread-per-connection transport backed by virtual threads;
+     * must be called before startServer()
+     */
+    public void setVirtualThreads( boolean virtualThreads )
+    {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Sets how many messages may be waiting for a client before it counts as slow, and
+     * what happens to it then
+     */
+    public void setSlowConsumerPolicy( SlowConsumerPolicy policy, int maxPendingMessages )
+    {
+        this.slowConsumerPolicy = policy;
+        this.maxPendingMessages = maxPendingMessages;
+    }
+
+    public SlowConsumerPolicy getSlowConsumerPolicy()
+    {
+        return this.slowConsumerPolicy;
+    }
+
+    public int getMaxPendingMessages()
+    {
+        return this.maxPendingMessages;
+    }
+
+    /**
+     * Returns true if this server uses the non-blocking transport
+     */
+    public boolean isNonBlocking()
+    {
+        return this.reactorThreads > 0;
     }
 
     /**
@@ -68,16 +200,52 @@ public abstract class AbstractServer extends Thread
     {
         try
         {
-            // Create our Server Socket
-            ServerSocketFactory ssf = ServerSocketFactory.getDefault();
-            serverSocket = ssf.createServerSocket( this.port, this.backlog );
+            if( this.requestHandlerFactory == null )
+            {
+                this.requestHandlerFactory = RequestHandlerFactory.forClassName( this.requestHandlerClassName );
+            }
+
+            // Create our Server Channel, which accepts in blocking mode; every accepted
+            // socket has a channel, so the transports read straight into pooled direct
+            // buffers and write the queued frames with gathering writes
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind( new InetSocketAddress( this.port ), this.backlog );
+            serverSocket = serverChannel.socket();
+
+            if( isNonBlocking() )
+            {
+                // The accepted channels go to the event loops in non-blocking mode
+                this.eventLoops = new EventLoop[ this.reactorThreads ];
+                for( int i=0; i<this.reactorThreads; i++ )
+                {
+                    this.eventLoops[ i ] = new EventLoop( i, this.maxPendingMessages, this.slowConsumerPolicy );
+                    this.eventLoops[ i ].start();
+                }
+            }
+            else
+            {
+                if( this.virtualThreads )
+                {
+                    // One thread per connection, no thread-count ceiling
+                    this.virtualThreadExecutor = new VirtualThreadExecutor( this.requestHandlerFactory );
+                }
+                else
+                {
+                    // Create our request queue
+                    this.requestQueue = new RequestQueue( this.requestHandlerFactory,
+                            this.maxQueueLength,
+                            this.minThreads,
+                            this.maxThreads );
+                    this.requestQueue.registerMetrics( MetricsRegistry.theRegistry );
+                }
+            }
 
             // Start our thread
             this.start();
         }
         catch( Exception e )
         {
-            e.printStackTrace();
+            Log.error( "Cannot start the server on port {}", Integer.valueOf( this.port ), e );
         }
     }
 
@@ -93,7 +261,7 @@ public abstract class AbstractServer extends Thread
         }
         catch( Exception e )
         {
-            e.printStackTrace();
+            Log.error( "Cannot stop the server", e );
         }
     }
 
@@ -103,21 +271,56 @@ public abstract class AbstractServer extends Thread
     public void run()
     {
         // Start the server
-        System.out.println( "Server Started, listening on port: " + this.port );
+        Log.info( "Server Started, listening on port: {}", Integer.valueOf( this.port ) );
         this.running = true;
+        int nextLoop = 0;
         while( running )
         {
             try
             {
+                if( isNonBlocking() )
+                {
+                    // Accept the next channel and spread the channels over our event loops
+                    SocketChannel channel = serverChannel.accept();
+                    channel.configureBlocking( false );
+                    channel.socket().setTcpNoDelay( true );
+
+                    ChannelRequestHandler handler = ( ChannelRequestHandler )this.requestHandlerFactory.newHandler();
+                    this.eventLoops[ nextLoop ].register( channel, handler );
+                    acceptedConnections.increment();
+                    nextLoop = ( nextLoop + 1 ) % this.eventLoops.length;
+                    continue;
+                }
+
                 // Accept the next connection
                 Socket s = serverSocket.accept();
 
                 // Log some debugging information
                 InetAddress addr = s.getInetAddress();
-                System.out.println( "Received a new connection from (" + addr.getHostAddress() + "): " + addr.getHostName() );
+                Log.debug( "Received a new connection from {}", addr );
 
-                // Add the socket to the new RequestQueue
-                this.requestQueue.add( s );
+                if( this.virtualThreadExecutor != null )
+                {
+                    // Hand the socket to a thread of its own
+                    this.virtualThreadExecutor.execute( s );
+                }
+                else
+                {
+                    // Add the socket to the new RequestQueue
+                    try
+                    {
+                        this.requestQueue.add( s );
+                    }
+                    catch( RequestQueueException rqe )
+                    {
+                        // Nobody will ever serve it, so do not keep it open
+                        rejectedConnections.increment();
+                        Log.warn( "Rejected a connection from {}: {}", s.getInetAddress(), rqe.getMessage() );
+                        s.close();
+                        continue;
+                    }
+                }
+                acceptedConnections.increment();
             }
             catch( SocketException se )
             {
@@ -125,17 +328,39 @@ public abstract class AbstractServer extends Thread
                 // we are not currently running then ignore the exception.
                 if( this.running )
                 {
-                    se.printStackTrace();
+                    Log.error( "Accept failed", se );
+                }
+            }
+            catch( ClosedChannelException cce )
+            {
+                // Same as above, for the server channel of the non-blocking transport
+                if( this.running )
+                {
+                    Log.error( "Accept failed", cce );
                 }
             }
             catch( Exception e )
             {
-                e.printStackTrace();
+                Log.error( "Accept failed", e );
             }
         }
-        System.out.println( "Shutting down..." );
+        Log.info( "Shutting down..." );
 
-        // Shutdown our request queue
-        this.requestQueue.shutdown();
+        // Shutdown our request queue, our connection threads or our event loops
+        if( this.requestQueue != null )
+        {
+            this.requestQueue.shutdown();
+        }
+        if( this.virtualThreadExecutor != null )
+        {
+            this.virtualThreadExecutor.shutdown();
+        }
+        if( this.eventLoops != null )
+        {
+            for( int i=0; i<this.eventLoops.length; i++ )
+            {
+                this.eventLoops[ i ].shutdown();
+            }
+        }
     }
 }
\ No newline at end of file
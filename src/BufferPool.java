@@ -0,0 +1,72 @@
+// Import the Java classes
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A BufferPool keeps heap buffers of one size for reuse, so that connections that come and
+ * go borrow the buffers of the ones that left instead of allocating their own.  take()
+ * allocates a new buffer only when the pool is empty, and give() drops the buffer when the
+ * pool already holds maxPooled of them, so an idle server does not keep the buffers of its
+ * busiest moment forever.
+ *
+ * Published as "buffers.<name>.pooled" and "buffers.<name>.allocated"; once the server is
+ * warm the second one should barely move.
+ * 固定大小的缓冲区池，连接断开时归还缓冲区供新连接使用
+ */
+public class BufferPool
+{
+    private final int bufferSize;
+
+    private final RingBufferQueue<ByteBuffer> pool;
+
+    private final LongAdder allocated;
+
+    public BufferPool( String name, int bufferSize, int maxPooled )
+    {
+        this.bufferSize = bufferSize;
+        this.pool = new RingBufferQueue<ByteBuffer>( maxPooled );
+        this.allocated = MetricsRegistry.theRegistry.counter( "buffers." + name + ".allocated" );
+        MetricsRegistry.theRegistry.gauge( "buffers." + name + ".pooled", new MetricsRegistry.Gauge()
+        {
+            public long get()
+            {
+                return BufferPool.this.pool.size();
+            }
+        } );
+    }
+
+    /**
+     * Returns the size of the buffers
+     */
+    public int getBufferSize()
+    {
+        return this.bufferSize;
+    }
+
+    /**
+     * Borrows a cleared buffer
+     */
+    public ByteBuffer take()
+    {
+        ByteBuffer buffer = this.pool.poll();
+        if( buffer == null )
+        {
+            this.allocated.increment();
+            return ByteBuffer.allocate( this.bufferSize );
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer taken from this pool; it must not be used afterwards
+     */
+    public void give( ByteBuffer buffer )
+    {
+        if( buffer.capacity() != this.bufferSize )
+        {
+            throw new IllegalArgumentException( "Buffer of " + buffer.capacity() + " bytes returned to a pool of " + this.bufferSize );
+        }
+        this.pool.offer( buffer );
+    }
+}
@@ -0,0 +1,35 @@
+/**
+ * A ChannelRequestHandler manages a single client connection that is driven by an
+ * EventLoop instead of a dedicated thread
+ * 由EventLoop驱动（非阻塞）的连接处理器
+ */
+public interface ChannelRequestHandler
+{
+    /**
+     * Called on the event loop thread once the channel has been registered
+     *
+     * @param session   The session used to write back to the client
+     */
+    public void handleConnect( ChannelSession session );
+
+    /**
+     * Handles bytes read from the client; lines may be split across calls
+     *
+     * @param input     The bytes, from its position to its limit
+     * @return          false if the client should be disconnected
+     */
+    public boolean handleInput( java.nio.ByteBuffer input );
+
+    /**
+     * Called on the event loop thread when the session resumes reading after the handler
+     * paused it, to handle the input the handler held back
+     *
+     * @return          false if the client should be disconnected
+     */
+    public boolean resumeInput();
+
+    /**
+     * Called when the client closed the connection or the connection failed
+     */
+    public void handleDisconnect();
+}
@@ -0,0 +1,356 @@
+// Import the Java classes
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A ChannelSession is the state of one non-blocking client connection: its partial
+ * input line and its pending output
+ * 一个非阻塞连接的状态：未读完的行以及待写出的数据
+ */
+public class ChannelSession implements OutboundQueue.Listener
+{
+    private static final LongAdder bytesIn = MetricsRegistry.theRegistry.counter( "bytes.in" );
+    private static final LongAdder bytesOut = MetricsRegistry.theRegistry.counter( "bytes.out" );
+
+    /**
+     * The loop that owns this session; all channel I/O happens on its thread
+     */
+    private EventLoop loop;
+
+    /**
+     * The client channel
+     */
+    private SocketChannel channel;
+
+    /**
+     * Our registration with the loop's selector
+     */
+    private SelectionKey key;
+
+    /**
+     * The handler that processes our lines
+     */
+    private ChannelRequestHandler handler;
+
+    /**
+     * Buffers waiting to be written to the channel
+     */
+    private OutboundQueue writeQueue;
+
+    /**
+     * Buffers taken off the write queue to be written with one gathering write
+     */
+    private ByteBuffer[] gather = new ByteBuffer[ 64 ];
+
+    /**
+     * The range of gather that is still to be written
+     */
+    private int gatherStart = 0;
+    private int gatherEnd = 0;
+
+    /**
+     * Set while a flush task is pending on the loop, so that a burst of writes only
+     * wakes the loop once
+     */
+    private AtomicBoolean flushScheduled = new AtomicBoolean( false );
+
+    /**
+     * Set once the handler asked us to disconnect; we close after the pending output is written
+     */
+    private volatile boolean closing = false;
+
+    /**
+     * Set while the handler waits for something it must know before it reads on, such as
+     * the answer to a login
+     */
+    private boolean inputPaused = false;
+
+    /**
+     * Set once the channel has been closed
+     */
+    private boolean closed = false;
+
+    /**
+     * A PrintWriter view of this session, for handlers written against java.io
+     */
+    private PrintWriter writer;
+
+    /**
+     * Flushes our pending output on the loop thread
+     */
+    private Runnable flushTask = new Runnable()
+    {
+        public void run()
+        {
+            flushWrites();
+        }
+    };
+
+    /**
+     * Creates a new ChannelSession
+     */
+    public ChannelSession( EventLoop loop, SocketChannel channel, SelectionKey key, ChannelRequestHandler handler,
+                           int maxPending, SlowConsumerPolicy policy )
+    {
+        this.loop = loop;
+        this.channel = channel;
+        this.key = key;
+        this.handler = handler;
+        this.writeQueue = new OutboundQueue( maxPending, policy, this );
+        this.writer = new PrintWriter( new QueueWriter( this.writeQueue ) );
+    }
+
+    /**
+     * Returns a writer that queues its output on this session every time it is flushed
+     */
+    public PrintWriter getWriter()
+    {
+        return this.writer;
+    }
+
+    /**
+     * Returns the queue of output waiting to be written to the client
+     */
+    public OutboundQueue getOutboundQueue()
+    {
+        return this.writeQueue;
+    }
+
+    /**
+     * Queues the buffer to be written to the client; may be called from any thread
+     */
+    public void write( ByteBuffer buffer )
+    {
+        this.writeQueue.offer( buffer );
+    }
+
+    public void outputQueued()
+    {
+        if( this.loop.inEventLoop() )
+        {
+            flushWrites();
+        }
+        else if( this.flushScheduled.compareAndSet( false, true ) )
+        {
+            this.loop.execute( this.flushTask );
+        }
+    }
+
+    public void slowConsumer( int pending )
+    {
+        Log.warn( "Disconnecting slow client, {} messages pending", Integer.valueOf( pending ) );
+        if( this.loop.inEventLoop() )
+        {
+            disconnect();
+        }
+        else
+        {
+            this.loop.execute( new Runnable()
+            {
+                public void run()
+                {
+                    disconnect();
+                }
+            } );
+        }
+    }
+
+    /**
+     * Stops reading from the client until resumeReading(); must be called on the loop thread,
+     * by the handler
+     */
+    public void pauseReading()
+    {
+        this.inputPaused = true;
+        this.key.interestOps( this.key.interestOps() & ~SelectionKey.OP_READ );
+    }
+
+    /**
+     * Lets the handler carry on with its held back input and reads again; may be called from
+     * any thread
+     */
+    public void resumeReading()
+    {
+        this.loop.execute( new Runnable()
+        {
+            public void run()
+            {
+                if( closed || !inputPaused )
+                {
+                    return;
+                }
+                inputPaused = false;
+                if( !handler.resumeInput() )
+                {
+                    closeAfterWrites();
+                }
+                else if( !inputPaused && !writeQueue.isReadPaused() )
+                {
+                    key.interestOps( key.interestOps() | SelectionKey.OP_READ );
+                }
+            }
+        } );
+    }
+
+    /**
+     * Closes the channel once all of the pending output has been written
+     */
+    public void closeAfterWrites()
+    {
+        this.closing = true;
+        if( this.loop.inEventLoop() )
+        {
+            flushWrites();
+        }
+        else
+        {
+            this.loop.execute( this.flushTask );
+        }
+    }
+
+    /**
+     * Writes as much pending output as the channel accepts without blocking
+     */
+    void flushWrites()
+    {
+        this.flushScheduled.set( false );
+        if( this.closed )
+        {
+            return;
+        }
+        try
+        {
+            while( true )
+            {
+                // Top up the gather array from the queue
+                if( this.gatherStart == this.gatherEnd )
+                {
+                    this.gatherStart = 0;
+                    this.gatherEnd = 0;
+                }
+                ByteBuffer buffer;
+                while( this.gatherEnd < this.gather.length && ( buffer = this.writeQueue.poll() ) != null )
+                {
+                    this.gather[ this.gatherEnd++ ] = buffer;
+                }
+                if( this.gatherStart == this.gatherEnd )
+                {
+                    break;
+                }
+
+                bytesOut.add( this.channel.write( this.gather, this.gatherStart, this.gatherEnd - this.gatherStart ) );
+                while( this.gatherStart < this.gatherEnd && !this.gather[ this.gatherStart ].hasRemaining() )
+                {
+                    this.gather[ this.gatherStart++ ] = null;
+                }
+                if( this.gatherStart < this.gatherEnd )
+                {
+                    // The socket buffer is full; wait until the selector tells us it drained
+                    if( this.gatherStart > 0 )
+                    {
+                        // Move what is left to the front so that the array can be topped up again
+                        int remaining = this.gatherEnd - this.gatherStart;
+                        System.arraycopy( this.gather, this.gatherStart, this.gather, 0, remaining );
+                        Arrays.fill( this.gather, remaining, this.gatherEnd, null );
+                        this.gatherStart = 0;
+                        this.gatherEnd = remaining;
+                    }
+                    this.key.interestOps( this.key.interestOps() | SelectionKey.OP_WRITE );
+                    return;
+                }
+            }
+            int ops = this.key.interestOps() & ~SelectionKey.OP_WRITE;
+            if( !this.writeQueue.isReadPaused() && !this.inputPaused )
+            {
+                // We caught up; resume reading if we paused it
+                ops |= SelectionKey.OP_READ;
+            }
+            this.key.interestOps( ops );
+
+            if( this.closing )
+            {
+                disconnect();
+            }
+        }
+        catch( IOException e )
+        {
+            disconnect();
+        }
+    }
+
+    /**
+     * Reads whatever is available from the channel and hands it to the handler
+     */
+    void read( ByteBuffer readBuffer )
+    {
+        if( this.closing )
+        {
+            return;
+        }
+        if( this.writeQueue.isReadPaused() || this.inputPaused )
+        {
+            // Our client is not keeping up with its output, or our handler is waiting; stop
+            // reading until it can go on
+            this.key.interestOps( this.key.interestOps() & ~SelectionKey.OP_READ );
+            return;
+        }
+
+        readBuffer.clear();
+        int count;
+        try
+        {
+            count = this.channel.read( readBuffer );
+        }
+        catch( IOException e )
+        {
+            count = -1;
+        }
+        if( count < 0 )
+        {
+            disconnect();
+            return;
+        }
+        bytesIn.add( count );
+
+        // The handler splits the input into lines itself
+        readBuffer.flip();
+        if( !this.handler.handleInput( readBuffer ) )
+        {
+            closeAfterWrites();
+        }
+    }
+
+    /**
+     * Closes the channel and tells the handler that the connection is gone, whichever side
+     * ended it
+     */
+    void disconnect()
+    {
+        if( !this.closed )
+        {
+            close();
+            this.handler.handleDisconnect();
+        }
+    }
+
+    /**
+     * Closes the channel
+     */
+    private void close()
+    {
+        this.closed = true;
+        this.writeQueue.close();
+        this.key.cancel();
+        try
+        {
+            this.channel.close();
+        }
+        catch( IOException e ) {}
+    }
+}
@@ -2,118 +2,462 @@
 
 // Import the Java classes
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 
 /**
  * A ChatRequestHandler manages the communications for a single chat user
  */
-public class ChatRequestHandler implements RequestHandler {
+public class ChatRequestHandler implements RequestHandler, ChannelRequestHandler, CommandDecoder.Listener {
+    /**
+     * The most history lines a single HIST command returns
+     */
+    private static final int MAX_HISTORY = 500;
+
+    /**
+     * The most matches a single FIND command returns
+     */
+    private static final int MAX_FOUND = 20;
+
+    /**
+     * The longest line a client may send; the rest of a longer line is skipped
+     */
+    private static final int MAX_LINE_LENGTH = 8192;
+
+    /**
+     * The most of a line that goes into the log when its command fails
+     */
+    private static final int MAX_LOGGED_LENGTH = 80;
+
+    /**
+     * The most rooms a user may be in at once, and the longest room name
+     */
+    private static final int MAX_ROOMS = 256;
+    private static final int MAX_ROOM_NAME_LENGTH = 64;
+
+    /**
+     * How often each command was received, by command number, and other lines
+     */
+    private static final LongAdder[] commandCounts = new LongAdder[CommandDecoder.NAMES.length];
+    private static final LongAdder otherCommands = MetricsRegistry.theRegistry.counter("commands.other");
+
+    static {
+        for (int i = 0; i < CommandDecoder.NAMES.length; i++) {
+            commandCounts[i] = MetricsRegistry.theRegistry.counter("commands." + CommandDecoder.NAMES[i].toLowerCase());
+        }
+    }
+
+    private static final LongAdder bytesIn = MetricsRegistry.theRegistry.counter("bytes.in");
+
+    /**
+     * The size of the direct buffer a blocking connection reads into
+     */
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    /**
+     * The line buffers of the connections, handed on from the ones that left to the ones that arrive
+     */
+    private static final BufferPool lineBuffers = new BufferPool("line", MAX_LINE_LENGTH, 1024);
+
     /**
      * The user’s username once he logs in
      */
     private String username;
 
+    /**
+     * The username encoded, for the frames built straight from the client's bytes
+     */
+    private byte[] usernameBytes;
+
+    /**
+     * The rooms the user is in, by normalized name; only used by the connection's own thread
+     */
+    private Map<String, Room> rooms;
+
     /**
      * Has the user logged in yet?
      */
     private boolean loggedIn = false;
 
     /**
-     * Once a client has connected, this is the interface to read from the client
+     * The login that the user's shard has not answered yet, completed with true once the user
+     * was added, and the name it is for; we read no further commands until it is answered
+     */
+    private CompletableFuture<Boolean> login;
+    private String loginName;
+
+    /**
+     * The session of a client on the non-blocking transport, whose event loop must not wait
+     * for a login; null on the other transports, whose threads may
+     */
+    private ChannelSession session;
+
+    /**
+     * The input that followed a login the event loop could not wait for
+     */
+    private ByteBuffer heldInput;
+
+    /**
+     * Splits the client's input into commands, in a line buffer from the pool; both are
+     * set while the client is connected
      */
-    private BufferedReader in;
+    private CommandDecoder decoder;
+    private ByteBuffer lineBuffer;
+
+    /**
+     * Set while the decoder is running, when the line buffer must not be given back yet
+     */
+    private boolean decoding = false;
+
+    private boolean disconnected = false;
 
     /**
      * Once a client has connected, this is the interface to write out to the client
      */
     private PrintWriter out;
 
+    /**
+     * The queue of output waiting to be written to the client; out writes into it too
+     */
+    private OutboundQueue outbound;
+
+    /**
+     * The thread writing our output on the blocking and virtual transports; null on the
+     * non-blocking one, whose session writes it
+     */
+    private SocketWriter writer;
+
     /**
      * Handles the incoming request
      *
      * @param socket The socket communication back to the client
      */
     public void handleRequest(Socket socket) {
+        SocketWriter writer = null;
+        ByteBuffer input = null;
         try {
-            // Get input and output writers that we can use to communicate with the client through
-            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            this.out = new PrintWriter(socket.getOutputStream());
+            // Get input and output writers that we can use to communicate with the client through.
+            // Our output is queued and written by a writer thread of its own, so that a slow
+            // client never blocks the users who send messages to it
+            SocketChannel channel = socket.getChannel();
+            writer = new SocketWriter(socket, ChatServer.theServer.getMaxPendingMessages(),
+                    ChatServer.theServer.getSlowConsumerPolicy());
+            writer.start();
+            this.writer = writer;
+            this.outbound = writer.getQueue();
+            this.out = new PrintWriter(new QueueWriter(this.outbound));
 
             // Say "hi"
-            System.out.println("New user connected");
-            out.println("Welcome to the JavaSRC ChatServer!");
-            out.flush();
+            takeBuffers();
+            welcome();
 
-            // Keep reading lines until we get the "EXIT" command
-            String line = in.readLine();
+            // Keep reading until we get the "EXIT" command; read again only once the client
+            // has caught up with its output.  The channel reads straight into a pooled direct buffer
+            input = DirectBufferPool.thePool.take(READ_BUFFER_SIZE);
             boolean connected = true;
             while (connected) {
-                if (line.length() < 4) {
-                    // All commands are required to contain a colon
-                    showHelp();
-                } else {
-                    try {
-                        // Extract the command name
-                        String command = line.substring(0, 4);
-
-                        // Handle the command; a false return value = the user disconnected
-                        connected = handleCommand(command, line);
-                    } catch (Exception e1) {
-                        e1.printStackTrace();
+                input.clear();
+                int count = channel.read(input);
+                if (count < 0) {
+                    break;
+                }
+                bytesIn.add(count);
+                input.flip();
+                connected = handleInput(input);
+                if (connected) {
+                    this.outbound.awaitReadable();
+                }
+            }
+        } catch (IOException e) {
+            // The client reset the connection or went away mid-write; nothing we can fix
+            Log.debug("Connection closed: {}", e.toString());
+        } catch (Exception e) {
+            Log.error("Connection failed", e);
+        } finally {
+            // The client may have gone away without saying "EXIT"
+            handleDisconnect();
+            // The writer closes the socket once the output queued so far is written
+            if (writer != null) {
+                writer.finish();
+            } else {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                }
+            }
+            if (input != null) {
+                DirectBufferPool.thePool.give(input);
+            }
+        }
+    }
+
+    /**
+     * Handles a client connected through the non-blocking transport
+     *
+     * @param session The session used to write back to the client
+     */
+    public void handleConnect(ChannelSession session) {
+        this.session = session;
+        this.out = session.getWriter();
+        this.outbound = session.getOutboundQueue();
+        takeBuffers();
+        welcome();
+    }
+
+    /**
+     * Handles a client whose output goes straight to the specified queue, such as an
+     * in-memory one that has no connection behind it
+     *
+     * @param outbound The queue to write to the client through
+     */
+    public void handleConnect(OutboundQueue outbound) {
+        this.outbound = outbound;
+        this.out = new PrintWriter(new QueueWriter(outbound));
+        takeBuffers();
+        welcome();
+    }
+
+    /**
+     * Handles bytes read from the client, whatever the transport.  The decoder stops after a
+     * USER line until the user's shard has answered it: a connection thread waits for the
+     * answer here, while a non-blocking session keeps the rest of the input and stops reading
+     * until loginCompleted() resumes it.
+     *
+     * @return false once the user has exited
+     */
+    public boolean handleInput(ByteBuffer input) {
+        if (this.disconnected) {
+            return false;
+        }
+        this.decoding = true;
+        try {
+            while (true) {
+                if (this.login != null) {
+                    if (this.session != null && !this.login.isDone()) {
+                        holdInput(input);
+                        this.session.pauseReading();
+                        return true;
                     }
+                    finishLogin(this.login.join().booleanValue());
+                }
+                if (this.decoder.decode(input)) {
+                    return true;
+                }
+                if (this.login == null) {
+                    return false;
                 }
+            }
+        } finally {
+            this.decoding = false;
+            if (this.disconnected) {
+                // We were disconnected by one of our own commands
+                releaseBuffers();
+            }
+        }
+    }
 
-                // Read the next line from the client if they are still connected
-                if (connected) {
-                    line = in.readLine();
+    /**
+     * Carries on with the input that was held back while the login was answered
+     *
+     * @return false once the user has exited
+     */
+    public boolean resumeInput() {
+        ByteBuffer input = this.heldInput;
+        this.heldInput = null;
+        return handleInput(input != null ? input : ByteBuffer.allocate(0));
+    }
+
+    /**
+     * Keeps what is left of the input, which is the event loop's own buffer
+     */
+    private void holdInput(ByteBuffer input) {
+        this.heldInput = ByteBuffer.allocate(input.remaining());
+        this.heldInput.put(input).flip();
+    }
+
+    /**
+     * Called by the user's shard once it has answered the login, with SUCCESS or ERROR
+     * already queued for the client; may be called from any thread, even after the client
+     * disconnected
+     *
+     * @param added true if the user was added, false if the name was taken
+     */
+    public void loginCompleted(boolean added) {
+        this.login.complete(Boolean.valueOf(added));
+        if (this.session != null) {
+            this.session.resumeReading();
+        }
+    }
+
+    /**
+     * Takes the shard's answer to the login on our own thread
+     */
+    private void finishLogin(boolean added) {
+        String name = this.loginName;
+        this.login = null;
+        this.loginName = null;
+        if (added) {
+            this.username = name;
+            this.usernameBytes = name.getBytes(Charset.defaultCharset());
+            this.loggedIn = true;
+        }
+    }
+
+    /**
+     * Handles a single line, as if the client had sent it
+     *
+     * @return false once the user has exited
+     */
+    public boolean handleLine(String line) {
+        return handleInput(ByteBuffer.wrap((line + "\n").getBytes(Charset.defaultCharset())));
+    }
+
+    /**
+     * Handles one line from the decoder, which stays valid until we return
+     *
+     * @return false once the user has exited
+     */
+    public boolean handleCommand(CommandDecoder line) {
+        if (this.disconnected) {
+            // Such as a slow client cut off while we answered its previous line
+            return false;
+        }
+        int command = line.getCommand();
+        if (command >= 0) {
+            commandCounts[command].increment();
+        } else {
+            otherCommands.increment();
+        }
+
+        boolean connected = true;
+        if (command == CommandDecoder.TOO_SHORT) {
+            // All commands are four letters long
+            showHelp();
+        } else if (command == CommandDecoder.TOO_LONG) {
+            out.println("ERROR Lines may be at most " + MAX_LINE_LENGTH + " bytes long");
+            out.flush();
+        } else {
+            try {
+                // Handle the command; a false return value = the user disconnected
+                connected = handleCommand(command, line);
+            } catch (Exception e1) {
+                // Only the start of the line: it is the client's text and may be long
+                String text = line.toString();
+                if (text.length() > MAX_LOGGED_LENGTH) {
+                    text = text.substring(0, MAX_LOGGED_LENGTH) + "...";
                 }
+                Log.error("Command failed: {}", text, e1);
             }
+        }
 
+        if (!connected) {
             // Say goodbye
-            System.out.println("User exited: " + this.username);
+            Log.debug("User exited: {}", this.username);
             this.loggedIn = false;
             this.username = null;
+            this.usernameBytes = null;
             out.println("Goodbye");
             out.flush();
-        } catch (Exception e) {
-            e.printStackTrace();
         }
+
+        // Stop after a login until the shard has answered it; handleInput() carries on
+        return connected && this.login == null;
+    }
+
+    /**
+     * The connection was lost; drop the user from the chat
+     */
+    public void handleDisconnect() {
+        if (this.loggedIn) {
+            Log.debug("User disconnected: {}", this.username);
+            leaveRooms();
+            ChatServer.theServer.removeChatClient(this.username);
+        } else if (this.login != null) {
+            // The shard has not answered our login yet; drop the user if it adds it
+            final String name = this.loginName;
+            this.login.thenAccept(new Consumer<Boolean>() {
+                public void accept(Boolean added) {
+                    if (added.booleanValue()) {
+                        ChatServer.theServer.removeChatClient(name);
+                    }
+                }
+            });
+        }
+        this.loggedIn = false;
+        this.username = null;
+        this.usernameBytes = null;
+        this.disconnected = true;
+        if (!this.decoding) {
+            releaseBuffers();
+        }
+    }
+
+    /**
+     * Borrows the line buffer of a new connection
+     */
+    private void takeBuffers() {
+        this.lineBuffer = lineBuffers.take();
+        this.decoder = new CommandDecoder(this.lineBuffer.array(), this);
+    }
+
+    /**
+     * Gives the line buffer back once the connection is gone; the decoder goes with it
+     */
+    private void releaseBuffers() {
+        if (this.lineBuffer != null) {
+            lineBuffers.give(this.lineBuffer);
+            this.lineBuffer = null;
+            this.decoder = null;
+        }
+    }
+
+    /**
+     * Greets a newly connected client
+     */
+    private void welcome() {
+        Log.debug("New user connected");
+        out.println("Welcome to the JavaSRC ChatServer!");
+        out.flush();
     }
 
     /**
-     * Handles command processing
+     * Handles command processing; the arguments are only decoded where a String is kept
      */
-    private boolean handleCommand(String command, String line) {
-        if (command.equalsIgnoreCase("user")) {
+    private boolean handleCommand(int command, CommandDecoder line) {
+        if (command == CommandDecoder.USER) {
             if (!this.loggedIn) {
-                String argument = line.substring(5);
-                System.out.println("Received login command for: " + argument);
-                if (argument.length() == 0) {
+                String argument = line.getArgument();
+                Log.debug("Received login command for: {}", argument);
+                // A ':' would run into the message in "PRIV <user>:<message>" and in the history
+                if (argument.length() == 0 || argument.indexOf(':') >= 0) {
                     out.println("ERROR Invalid username");
                 } else {
-                    try {
-                        ChatServer.theServer.addChatClient(argument, this);
-                        this.username = argument;
-                        this.loggedIn = true;
-                        out.println("SUCCESS User " + this.username + " logged in");
-                        
-                    } catch (DuplicateLoginException dpe) {
-                        out.println("ERROR Username " + argument + " is already in use");
-                    }
+                    // The shard answers the client itself; we read on once it has
+                    this.login = new CompletableFuture<Boolean>();
+                    this.loginName = argument;
+                    ChatServer.theServer.addChatClient(argument, this);
                 }
             } else {
                 out.println("ERROR You are already logged in");
             }
-        } else if (command.equalsIgnoreCase("help")) {
+        } else if (command == CommandDecoder.HELP) {
             showHelp();
-        } else if (command.equalsIgnoreCase("exit")) {
-            System.out.println("Received exit command for user: " + this.username);
+        } else if (command == CommandDecoder.EXIT) {
+            Log.debug("Received exit command for user: {}", this.username);
+            leaveRooms();
             ChatServer.theServer.removeChatClient(this.username);
             return false;
         } else {
@@ -121,19 +465,20 @@ public class ChatRequestHandler implements RequestHandler {
             if (!this.loggedIn) {
                 out.println("ERROR You need to logon to send commands to the ChatServer");
                 out.flush();
-            } else if (command.equalsIgnoreCase("send")) {
-                String argument = line.substring(5);
-                ChatServer.theServer.sendMessage(this.username, argument);
-            } else if (command.equalsIgnoreCase("priv")) {
-                String argument = line.substring(5);
-                if (argument.indexOf(":") == -1) {
+            } else if (command == CommandDecoder.SEND) {
+                ChatServer.theServer.sendMessage(this.username, this.usernameBytes,
+                        line.getBuffer(), line.getArgumentOffset(), line.getArgumentLength());
+            } else if (command == CommandDecoder.PRIV) {
+                int colon = line.indexOf(':');
+                if (colon == -1) {
                     out.println("ERROR: Private messages need a recipient!");
                 } else {
-                    String recipient = argument.substring(0, argument.indexOf(":"));
-                    String message = argument.substring(argument.indexOf(":") + 1);
+                    int start = line.getArgumentOffset();
+                    String recipient = line.getString(start, colon - start);
+                    String message = line.getString(colon + 1, line.getLineLength() - colon - 1);
                     ChatServer.theServer.sendMessage(this.username, recipient, message);
                 }
-            } else if (command.equalsIgnoreCase("list")) {
+            } else if (command == CommandDecoder.LIST) {
                 Set users = ChatServer.theServer.getUsers();
                 StringBuffer sb = new StringBuffer();
                 for (Iterator i = users.iterator(); i.hasNext(); ) {
@@ -147,9 +492,34 @@ public class ChatRequestHandler implements RequestHandler {
                 } else {
                     out.println("LIST You are the only user online");
                 }
-            } else if (command.equalsIgnoreCase("emot")) {
-                String argument = line.substring(5);
-                ChatServer.theServer.sendEmotion(this.username, argument);
+            } else if (command == CommandDecoder.EMOT) {
+                ChatServer.theServer.sendEmotion(this.username, this.usernameBytes,
+                        line.getBuffer(), line.getArgumentOffset(), line.getArgumentLength());
+            } else if (command == CommandDecoder.HIST) {
+                showHistory(line.getArgument().trim());
+            } else if (command == CommandDecoder.FIND) {
+                find(line.getArgument().trim());
+            } else if (command == CommandDecoder.STAT) {
+                showStatistics();
+            } else if (command == CommandDecoder.JOIN) {
+                joinRoom(line.getArgument().trim());
+            } else if (command == CommandDecoder.PART) {
+                partRoom(line.getArgument().trim());
+            } else if (command == CommandDecoder.ROOM) {
+                int space = line.indexOf(' ');
+                if (space == -1) {
+                    out.println("ERROR Usage: ROOM <room> <message>");
+                } else {
+                    int start = line.getArgumentOffset();
+                    Room room = this.rooms == null ? null
+                            : this.rooms.get(UserRegistry.normalize(line.getString(start, space - start)));
+                    if (room == null) {
+                        out.println("ERROR You are not in room " + line.getString(start, space - start));
+                    } else {
+                        ChatServer.theServer.sendToRoom(room, this, this.usernameBytes,
+                                line.getBuffer(), space + 1, line.getLineLength() - space - 1);
+                    }
+                }
             }
         }
 
@@ -158,53 +528,190 @@ public class ChatRequestHandler implements RequestHandler {
         return true;
     }
 
+    /**
+     * Adds the user to a room; the confirmation is the room's own "JOIN <room> <user>"
+     */
+    private void joinRoom(String name) {
+        if (name.length() == 0 || name.length() > MAX_ROOM_NAME_LENGTH || name.indexOf(' ') != -1) {
+            out.println("ERROR Room names are 1 to " + MAX_ROOM_NAME_LENGTH + " characters without spaces");
+            return;
+        }
+        if (this.rooms == null) {
+            this.rooms = new HashMap<String, Room>();
+        }
+        String key = UserRegistry.normalize(name);
+        if (this.rooms.containsKey(key)) {
+            out.println("ERROR You are already in room " + name);
+        } else if (this.rooms.size() >= MAX_ROOMS) {
+            out.println("ERROR You may be in at most " + MAX_ROOMS + " rooms");
+        } else {
+            this.rooms.put(key, ChatServer.theServer.joinRoom(name, this));
+        }
+    }
+
+    /**
+     * Removes the user from a room; the confirmation is the room's own "PART <room> <user>"
+     */
+    private void partRoom(String name) {
+        Room room = this.rooms == null ? null : this.rooms.remove(UserRegistry.normalize(name));
+        if (room == null) {
+            out.println("ERROR You are not in room " + name);
+        } else {
+            ChatServer.theServer.partRoom(room, this, this.username);
+        }
+    }
+
+    /**
+     * Removes the user from all of its rooms, when it logs out
+     */
+    private void leaveRooms() {
+        if (this.rooms != null) {
+            for (Iterator<Room> i = this.rooms.values().iterator(); i.hasNext(); ) {
+                ChatServer.theServer.partRoom(i.next(), this, this.username);
+            }
+            this.rooms = null;
+        }
+    }
+
+    /**
+     * Sends the server's metrics, one "STAT <name> <value>" line each, to an administrator
+     */
+    private void showStatistics() {
+        if (!ChatServer.theServer.isAdmin(this.username)) {
+            out.println("ERROR STAT is only available to administrators");
+            return;
+        }
+        List<String> lines = MetricsRegistry.theRegistry.lines();
+        for (Iterator<String> i = lines.iterator(); i.hasNext(); ) {
+            out.println("STAT " + i.next());
+        }
+        out.println("STAT END");
+    }
+
+    /**
+     * Sends the lines of the history before the specified id, or the most recent ones:
+     * "HIST <n>" or "HIST <before-id> <n>"
+     */
+    private void showHistory(String argument) {
+        HistoryLog history = ChatServer.theServer.getHistory();
+        if (history == null) {
+            out.println("ERROR No history is kept");
+            return;
+        }
+        String[] arguments = argument.length() == 0 ? new String[0] : argument.split("\\s+");
+        long before = Long.MAX_VALUE;
+        int count = 20;
+        try {
+            if (arguments.length == 1) {
+                count = Integer.parseInt(arguments[0]);
+            } else if (arguments.length == 2) {
+                before = Long.parseLong(arguments[0]);
+                count = Integer.parseInt(arguments[1]);
+            } else if (arguments.length > 2) {
+                throw new NumberFormatException(argument);
+            }
+        } catch (NumberFormatException e) {
+            out.println("ERROR Usage: HIST <n> or HIST <before-id> <n>");
+            return;
+        }
+        List<HistoryLog.Entry> entries = history.read(before, Math.min(count, MAX_HISTORY));
+        for (int i = 0; i < entries.size(); i++) {
+            HistoryLog.Entry entry = entries.get(i);
+            out.println("HIST " + entry.id + " " + entry.line);
+        }
+        out.println("HIST END");
+    }
+
+    /**
+     * Sends the most recent history lines that contain all of the terms, newest first
+     */
+    private void find(String terms) {
+        SearchIndex search = ChatServer.theServer.getSearchIndex();
+        if (search == null) {
+            out.println("ERROR No history is kept");
+            return;
+        }
+        List<HistoryLog.Entry> entries = search.find(terms, MAX_FOUND);
+        for (int i = 0; i < entries.size(); i++) {
+            HistoryLog.Entry entry = entries.get(i);
+            out.println("FIND " + entry.id + " " + entry.line);
+        }
+        out.println("FIND END");
+    }
+
+    /**
+     * Returns the user's username, or null if the user has not logged in
+     */
+    public String getUsername() {
+        return this.username;
+    }
+
+    /**
+     * Tells the client why and closes its connection once its output is written; may be
+     * called from any thread.  The connection then goes the way of any other that drops.
+     */
+    public void evict(String reason) {
+        deliver(Frame.line("ERROR " + reason));
+        if (this.session != null) {
+            this.session.closeAfterWrites();
+        } else if (this.writer != null) {
+            this.writer.finish();
+        }
+    }
+
+    /**
+     * Queues an encoded frame for this user; the frame is shared with the other recipients
+     */
+    public void deliver(Frame frame) {
+        this.outbound.offer(frame.view());
+    }
+
+    /**
+     * Queues a frame of several lines for this user without one of them, such as the line
+     * that is about this user itself; the rest of the frame is still shared
+     */
+    public void deliverWithout(Frame frame, int line) {
+        ByteBuffer[] views = frame.viewsWithout(line);
+        for (int i = 0; i < views.length; i++) {
+            if (views[i].hasRemaining()) {
+                this.outbound.offer(views[i]);
+            }
+        }
+    }
+
     /**
      * A user sent, or broadcasted, the specified message to the group
      */
     public void sendMessage(String from, String message) {
-        out.println("MESG " + from + ":" + message);
-     
-
-        out.flush();
+        deliver(Frame.message("MESG", from, message));
     }
 
     /**
      * A user sent an emotion to the chat server
      */
     public void sendEmotion(String from, String message) {
-        out.println("EMOT " + from + ":" + message);
-     
-
-        out.flush();
+        deliver(Frame.message("EMOT", from, message));
     }
 
     /**
      * This user has received a private message from the specified user
      */
     public void privateMessage(String from, String message) {
-        out.println("PRIV " + from + ":" + message);
-     
-
-        out.flush();
+        deliver(Frame.message("PRIV", from, message));
     }
 
     /**
      * Notification that the specified user has entered the chat
      */
     public void newUser(String otherUser) {
-        out.println("USER " + otherUser);
-     
-
-        out.flush();
+        deliver(Frame.notification("USER", otherUser));
     }
 
     /**
      * Notification that the specified user has left the chat
      */
     public void removeUser(String otherUser) {
-        out.println("RUSR " + otherUser);
-     
-        out.flush();
+        deliver(Frame.notification("RUSR", otherUser));
     }
 
     /**
@@ -220,14 +727,29 @@ public class ChatRequestHandler implements RequestHandler {
         sb.append("  SEND <message>\r\n");
         sb.append("  PRIV <recipient>:<message>\r\n");
         sb.append("  EMOT <emotion message>\r\n");
+        sb.append("  HIST [<before-id>] <n>\r\n");
+        sb.append("  FIND <terms>\r\n");
+        sb.append("  JOIN <room>\r\n");
+        sb.append("  PART <room>\r\n");
+        sb.append("  ROOM <room> <message>\r\n");
         sb.append(" MANAGEMENT COMMAND SUMMARY:\r\n");
         sb.append("  LIST\r\n");
+        sb.append("  STAT\r\n");
         sb.append(" NOTIFICATION SUMMARY\r\n");
         sb.append("  MESG <user>:<message>\r\n");
         sb.append("  PRIV <user>:<message>\r\n");
         sb.append("  EMOT <user>:<message>\r\n");
         sb.append("  USER <user>\r\n");
         sb.append("  RUSR <user>\r\n");
+        sb.append("  JOIN <room> <user>\r\n");
+        sb.append("  PART <room> <user>\r\n");
+        sb.append("  ROOM <room> <user>:<message>\r\n");
+        sb.append("  HIST <id> <MESG|EMOT> <user>:<message>\r\n");
+        sb.append("  HIST END\r\n");
+        sb.append("  FIND <id> <MESG|EMOT> <user>:<message>\r\n");
+        sb.append("  FIND END\r\n");
+        sb.append("  STAT <metric> <value>\r\n");
+        sb.append("  STAT END\r\n");
 
 
         out.println(sb.toString());
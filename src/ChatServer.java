@@ -1,8 +1,14 @@
 // Import the Java classes
-import java.util.Iterator;
-import java.util.Map;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 
 
@@ -17,10 +23,83 @@ public class ChatServer extends AbstractServer
     public static ChatServer theServer = null;
 
     /**
-     * A Map of usernames to chat clients
-     * 在线的用户
+     * The shards that own the logged in users; a user lives on the shard its normalized
+     * username hashes to
+     * 在线的用户，按用户名散列到各个分片
      */
-    private Map chatClients = new TreeMap();
+    private ChatShard[] shards;
+
+    /**
+     * The number of shards to create when the server starts
+     */
+    private int shardCount = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Links this server to the other nodes of the cluster; null when running alone
+     * 集群节点，单机运行时为null
+     */
+    private ClusterNode cluster;
+
+    /**
+     * How long presence changes are collected before they are sent, in milliseconds;
+     * 0 sends every change right away
+     * 上线/下线通知的合并窗口（毫秒），0表示立即发送
+     */
+    private long presenceWindowMillis = 100;
+
+    /**
+     * Batches presence changes; null when they are sent right away
+     */
+    private PresenceBatcher presence;
+
+    /**
+     * Where the history of the room is kept; null keeps no history
+     * 历史消息的存放目录，为null时不保存历史消息
+     */
+    private String historyDir = "history";
+
+    /**
+     * How many segments of the history are kept
+     */
+    private int historySegments = HistoryLog.DEFAULT_MAX_SEGMENTS;
+
+    /**
+     * The history of the room; null when no history is kept
+     */
+    private HistoryLog history;
+
+    /**
+     * Searches the history; null when no history is kept
+     */
+    private SearchIndex search;
+
+    /**
+     * Where private messages for users who are not logged in are kept; null drops them
+     * 离线私信的存放目录，为null时不保存离线私信
+     */
+    private String inboxDir = "inbox";
+
+    /**
+     * How long an offline private message is kept, in milliseconds
+     */
+    private long inboxTtlMillis = 7L * 24 * 60 * 60 * 1000;
+
+    /**
+     * The offline private messages; null when they are dropped
+     */
+    private OfflineInbox inbox;
+
+    /**
+     * The normalized names of the users who may read the metrics with STAT
+     */
+    private Set<String> admins = new TreeSet<String>();
+
+    /**
+     * The rooms that have members, by normalized name; a room's members are kept by the
+     * shards their users live on
+     * 有成员的聊天室，按名字（不区分大小写）查找
+     */
+    private ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<String, Room>();
 
     /**
      * Creates a new chat server listening on port 9988
@@ -28,27 +107,283 @@ public class ChatServer extends AbstractServer
     public ChatServer()
     {
         super( 9988, 50, "ChatRequestHandler", 2000, 5, 50 );
+        setRequestHandlerFactory( new RequestHandlerFactory()
+        {
+            public Object newHandler()
+            {
+                return new ChatRequestHandler();
+            }
+        } );
+        MetricsRegistry.theRegistry.gauge( "rooms.active", new MetricsRegistry.Gauge()
+        {
+            public long get()
+            {
+                return rooms.size();
+            }
+        } );
         theServer = this;
     }
 
     /**
-     * Adds a new chat client
-     * 添加一个新的客户
+     * Sets the number of shards; must be called before startServer()
+     */
+    public void setShardCount( int shardCount )
+    {
+        this.shardCount = Math.max( 1, shardCount );
+    }
+
+    /**
+     * Sets how long presence changes are collected before they are sent; must be called
+     * before startServer()
+     */
+    public void setPresenceWindow( long presenceWindowMillis )
+    {
+        this.presenceWindowMillis = Math.max( 0, presenceWindowMillis );
+    }
+
+    /**
+     * Sets the directory the history is kept in, or null to keep none; must be called
+     * before startServer()
+     */
+    public void setHistoryDir( String historyDir )
+    {
+        this.historyDir = historyDir;
+    }
+
+    /**
+     * Sets how many segments of the history are kept before the oldest lines are dropped;
+     * must be called before startServer()
+     */
+    public void setHistorySegments( int historySegments )
+    {
+        this.historySegments = historySegments;
+    }
+
+    /**
+     * Returns the history of the room, or null when no history is kept
+     */
+    public HistoryLog getHistory()
+    {
+        return this.history;
+    }
+
+    /**
+     * Sets the directory offline private messages are kept in, or null to drop them, and how
+     * long they are kept; must be called before startServer()
+     */
+    public void setInbox( String inboxDir, long inboxTtlMillis )
+    {
+        this.inboxDir = inboxDir;
+        this.inboxTtlMillis = inboxTtlMillis;
+    }
+
+    /**
+     * Sets the users who may read the metrics with STAT.  Usernames are not authenticated,
+     * so only name users here on a server whose clients are trusted.
+     */
+    public void setAdmins( String[] usernames )
+    {
+        Set<String> admins = new TreeSet<String>();
+        for( int i=0; i<usernames.length; i++ )
+        {
+            if( usernames[ i ].trim().length() > 0 )
+            {
+                admins.add( UserRegistry.normalize( usernames[ i ] ) );
+            }
+        }
+        this.admins = admins;
+    }
+
+    /**
+     * Returns true if the specified user may read the metrics
+     */
+    public boolean isAdmin( String username )
+    {
+        return username != null && this.admins.contains( UserRegistry.normalize( username ) );
+    }
+
+    /**
+     * Returns the index over the history, or null when no history is kept
+     */
+    public SearchIndex getSearchIndex()
+    {
+        return this.search;
+    }
+
+    /**
+     * Creates and starts the shards
+     */
+    public void startShards()
+    {
+        this.shards = new ChatShard[ this.shardCount ];
+        for( int i=0; i<this.shardCount; i++ )
+        {
+            this.shards[ i ] = new ChatShard( i, this.shardCount );
+        }
+        for( int i=0; i<this.shardCount; i++ )
+        {
+            this.shards[ i ].setShards( this.shards );
+            this.shards[ i ].start();
+        }
+    }
+
+    /**
+     * Joins this server to a cluster; must be called before startServer()
      */
-    public void addChatClient( String name, ChatRequestHandler client ) throws DuplicateLoginException
+    public void setCluster( ClusterNode cluster )
     {
-        if( this.chatClients.containsKey( name ) )
+        this.cluster = cluster;
+    }
+
+    /**
+     * Starts this server
+     */
+    public void startServer()
+    {
+        startShards();
+        if( this.presenceWindowMillis > 0 )
+        {
+            this.presence = new PresenceBatcher( this, this.presenceWindowMillis );
+            this.presence.start();
+        }
+        if( this.historyDir != null )
+        {
+            try
+            {
+                this.history = new HistoryLog( new File( this.historyDir ), this.historySegments );
+                this.search = new SearchIndex( this.history );
+                this.history.start();
+                this.search.start();
+            }
+            catch( IOException e )
+            {
+                // Chatting works without it; HIST reports that there is no history
+                Log.error( "Cannot open the history in {}", this.historyDir, e );
+            }
+        }
+        if( this.inboxDir != null )
         {
-            throw new DuplicateLoginException( name );
+            try
+            {
+                this.inbox = new OfflineInbox( new File( this.inboxDir ), this.inboxTtlMillis );
+                this.inbox.start();
+            }
+            catch( IOException e )
+            {
+                // Private messages to users who are not logged in are dropped, as before
+                Log.error( "Cannot open the inbox in {}", this.inboxDir, e );
+            }
         }
-        for( Iterator i=this.chatClients.keySet().iterator(); i.hasNext(); )
+        if( this.cluster != null )
         {
-            String username = ( String )i.next();
-            System.out.println( "notifying user: " + username + " that a new user was added: " + name );
-            ChatRequestHandler user = ( ChatRequestHandler )this.chatClients.get( username );
-            user.newUser( name );
+            try
+            {
+                this.cluster.start();
+            }
+            catch( Exception e )
+            {
+                Log.error( "Cannot start the cluster node", e );
+            }
         }
-        this.chatClients.put( name, client );
+        super.startServer();
+        MetricsRegistry.theRegistry.enableJmx();
+    }
+
+    /**
+     * Stops this server
+     */
+    public void stopServer()
+    {
+        super.stopServer();
+        if( this.cluster != null )
+        {
+            this.cluster.shutdown();
+        }
+        if( this.presence != null )
+        {
+            this.presence.shutdown();
+        }
+        if( this.history != null )
+        {
+            this.search.shutdown();
+            this.history.shutdown();
+        }
+        if( this.inbox != null )
+        {
+            this.inbox.shutdown();
+        }
+        for( int i=0; i<this.shards.length; i++ )
+        {
+            this.shards[ i ].shutdown();
+        }
+    }
+
+    /**
+     * Returns the index of the shard that owns the specified user
+     */
+    public static int shardIndex( String username, int shardCount )
+    {
+        return ( UserRegistry.normalize( username ).hashCode() & 0x7fffffff ) % shardCount;
+    }
+
+    /**
+     * Returns the shard that owns the specified user
+     */
+    private ChatShard shardFor( String username )
+    {
+        return this.shards[ shardIndex( username, this.shards.length ) ];
+    }
+
+    /**
+     * Adds a new chat client.  The caller does not wait: the user's shard does the duplicate
+     * check and the insert, answers the client with SUCCESS or ERROR through its outbound
+     * queue, and then tells it the outcome through loginCompleted().
+     * 添加一个新的客户，由用户所在的分片回复登录结果，调用者不等待
+     */
+    public void addChatClient( final String name, final ChatRequestHandler client )
+    {
+        final ChatShard shard = shardFor( name );
+        shard.submit( new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    // Users on other nodes are recorded on this shard too, so neither check
+                    // can miss a user that is added meanwhile
+                    if( cluster != null && cluster.isRemoteUser( name ) )
+                    {
+                        throw new DuplicateLoginException( name );
+                    }
+                    shard.getRoster().add( name, client );
+                }
+                catch( DuplicateLoginException dpe )
+                {
+                    client.deliver( Frame.line( "ERROR Username " + name + " is already in use" ) );
+                    client.loginCompleted( false );
+                    return;
+                }
+                client.deliver( Frame.line( "SUCCESS User " + name + " logged in" ) );
+
+                // Hand over the private messages that were sent while the user was away
+                deliverOfflineMessages( shard, client, name );
+                client.loginCompleted( true );
+
+                if( presence == null )
+                {
+                    shard.broadcast( Frame.notification( "USER", name ), client );
+                }
+                else
+                {
+                    presence.userJoined( name );
+                    shard.joinBatched( client );
+                }
+                if( cluster != null )
+                {
+                    cluster.userJoined( name );
+                }
+            }
+        } );
     }
 
     /**
@@ -57,14 +392,11 @@ public class ChatServer extends AbstractServer
      */
     public void sendMessage( String user, String message )
     {
-        for( Iterator i=this.chatClients.keySet().iterator(); i.hasNext(); )
+        broadcast( user, Frame.message( "MESG", user, message ) );
+        recordHistory( "MESG", user, message );
+        if( this.cluster != null )
         {
-            String username = ( String )i.next();
-            if( !username.equalsIgnoreCase( user ) )
-            {
-                ChatRequestHandler client = ( ChatRequestHandler )this.chatClients.get( username );
-                client.sendMessage( user, message );
-            }
+            this.cluster.broadcast( "MESG", user, message );
         }
     }
 
@@ -74,33 +406,276 @@ public class ChatServer extends AbstractServer
      */
     public void sendEmotion( String user, String message )
     {
-        for( Iterator i=this.chatClients.keySet().iterator(); i.hasNext(); )
+        broadcast( user, Frame.message( "EMOT", user, message ) );
+        recordHistory( "EMOT", user, message );
+        if( this.cluster != null )
+        {
+            this.cluster.broadcast( "EMOT", user, message );
+        }
+    }
+
+    /**
+     * Sends a message to all users from its encoded bytes, such as a slice of the line the
+     * sender's client sent; the bytes go into the frame as they are, and are only decoded
+     * when the history or the cluster needs the text.  They are not used after this returns.
+     */
+    public void sendMessage( String user, byte[] userBytes, byte[] message, int offset, int length )
+    {
+        broadcastEncoded( "MESG", user, userBytes, message, offset, length );
+    }
+
+    /**
+     * Sends an emotion to all users from its encoded bytes, as above
+     */
+    public void sendEmotion( String user, byte[] userBytes, byte[] message, int offset, int length )
+    {
+        broadcastEncoded( "EMOT", user, userBytes, message, offset, length );
+    }
+
+    private void broadcastEncoded( String command, String user, byte[] userBytes, byte[] message, int offset, int length )
+    {
+        broadcast( user, Frame.message( command, userBytes, message, offset, length ) );
+        if( this.history != null || this.cluster != null )
         {
-            String username = ( String )i.next();
-            if( !username.equalsIgnoreCase( user ) )
+            String text = new String( message, offset, length, Charset.defaultCharset() );
+            recordHistory( command, user, text );
+            if( this.cluster != null )
             {
-                ChatRequestHandler client = ( ChatRequestHandler )this.chatClients.get( username );
-                client.sendEmotion( user, message );
+                this.cluster.broadcast( command, user, text );
             }
         }
     }
 
+    /**
+     * Queues a broadcast line for the history; the line is written by the history's own
+     * thread, so delivery never waits for the disk
+     */
+    public void recordHistory( String command, String from, String message )
+    {
+        if( this.history != null )
+        {
+            this.history.append( command + " " + from + ":" + message );
+        }
+    }
+
+    /**
+     * Sends a user's USER line ahead of its first message, when the line is still waiting in
+     * the presence batch: the batch goes out from another shard, and could reach the other
+     * users after the message, which goes out from this one.  Runs on the user's shard.
+     */
+    private void announceBatchedJoin( ChatShard shard, ChatRequestHandler sender, String name )
+    {
+        if( sender != null && shard.takeJoinBatched( sender ) && this.presence.takeJoined( name ) )
+        {
+            shard.broadcastPresence( Frame.notification( "USER", name ), Collections.singletonList( name ) );
+        }
+    }
+
+    /**
+     * Sends a frame to all users except the sender; the frame is encoded once and shared.
+     * The sender's shard delivers it to its own users and forwards it to the other shards.
+     * 把编码好的消息帧发送给除发送者以外的所有用户
+     */
+    private void broadcast( final String user, final Frame frame )
+    {
+        final ChatShard shard = shardFor( user );
+        final long submitted = System.nanoTime();
+        shard.submit( new Runnable()
+        {
+            public void run()
+            {
+                ChatRequestHandler sender = shard.getRoster().get( user );
+                announceBatchedJoin( shard, sender, user );
+                shard.broadcast( frame, sender, submitted );
+            }
+        } );
+    }
+
+
+    /**
+     * Adds the user to the room, creating the room if it has no members yet; the room's
+     * members, the user included, are told with "JOIN <room> <user>"
+     *
+     * @return  the room, which the user must hand back to partRoom() when it leaves
+     */
+    public Room joinRoom( String name, final ChatRequestHandler client )
+    {
+        String key = UserRegistry.normalize( name );
+        Room room;
+        while( true )
+        {
+            room = this.rooms.get( key );
+            if( room == null )
+            {
+                Room created = new Room( name.trim(), this.shards.length );
+                room = this.rooms.putIfAbsent( key, created );
+                if( room == null )
+                {
+                    room = created;
+                }
+            }
+            if( room.acquire() )
+            {
+                break;
+            }
+            // Its last member just left; make way for a new room of the same name
+            this.rooms.remove( key, room );
+        }
+
+        // The member is added on the user's shard, ahead of anything the user sends next
+        final Room joined = room;
+        final ChatShard shard = shardFor( client.getUsername() );
+        final Frame frame = Frame.notification( "JOIN", room.getName() + " " + client.getUsername() );
+        shard.submit( new Runnable()
+        {
+            public void run()
+            {
+                joined.add( shard.getShardNumber(), client );
+                shard.broadcast( joined, frame, null, System.nanoTime() );
+            }
+        } );
+        return room;
+    }
+
+    /**
+     * Removes the user from a room it joined; the room's members, the user included, are
+     * told with "PART <room> <user>", and the room is dropped once it has no members left
+     */
+    public void partRoom( final Room room, final ChatRequestHandler client, String username )
+    {
+        final ChatShard shard = shardFor( username );
+        final Frame frame = Frame.notification( "PART", room.getName() + " " + username );
+        shard.submit( new Runnable()
+        {
+            public void run()
+            {
+                shard.broadcast( room, frame, null, System.nanoTime() );
+                room.remove( shard.getShardNumber(), client );
+            }
+        } );
+        if( room.release() )
+        {
+            this.rooms.remove( UserRegistry.normalize( room.getName() ), room );
+        }
+    }
+
+    /**
+     * Sends a message to the members of a room the sender has joined, except the sender,
+     * from its encoded bytes; they are not used after this returns
+     */
+    public void sendToRoom( final Room room, final ChatRequestHandler sender, byte[] userBytes, byte[] message, int offset, int length )
+    {
+        final Frame frame = Frame.roomMessage( room.getNameBytes(), userBytes, message, offset, length );
+        final String name = sender.getUsername();
+        final ChatShard shard = shardFor( name );
+        final long submitted = System.nanoTime();
+        shard.submit( new Runnable()
+        {
+            public void run()
+            {
+                announceBatchedJoin( shard, sender, name );
+                shard.broadcast( room, frame, sender, submitted );
+            }
+        } );
+    }
 
     /**
      * Sends a message to a specific user
      * 发送私有信心给指定用户
      */
-    public void sendMessage( String from, String to, String message )
+    public void sendMessage( final String from, final String to, final String message )
     {
-        for( Iterator i=this.chatClients.keySet().iterator(); i.hasNext(); )
+        if( this.cluster != null && !shardFor( to ).getRoster().contains( to ) )
         {
-            String username = ( String )i.next();
-            if( username.equalsIgnoreCase( to ) )
+            // Not one of ours: hand it to the node that owns the recipient
+            if( this.cluster.sendPrivate( from, to, message ) )
             {
-                ChatRequestHandler client = ( ChatRequestHandler )this.chatClients.get( username );
-                client.privateMessage( from, message );
+                return;
             }
         }
+
+        // Goes through the sender's shard, so that a user's messages stay in order; the
+        // recipient's shard queues it for the inbox if the recipient is not logged in
+        final Frame frame = Frame.message( "PRIV", from, message );
+        final ChatShard shard = shardFor( from );
+        final Runnable ifOffline = this.inbox == null ? null : new Runnable()
+        {
+            public void run()
+            {
+                inbox.store( to, from, message );
+            }
+        };
+        shard.submit( new Runnable()
+        {
+            public void run()
+            {
+                announceBatchedJoin( shard, shard.getRoster().get( from ), from );
+                shard.sendTo( to, frame, ifOffline );
+            }
+        } );
+    }
+
+    /**
+     * Sends a user who just logged in the private messages that were kept for it, in one
+     * frame; called by the login on the user's shard.  The inbox is read on its own thread,
+     * and the shard holds back what is sent to the user meanwhile, so the kept messages still
+     * go out ahead of any private message sent to the user after them.
+     */
+    private void deliverOfflineMessages( final ChatShard shard, final ChatRequestHandler client, final String username )
+    {
+        if( this.inbox == null )
+        {
+            return;
+        }
+        this.inbox.loggedIn( username );
+        boolean reading = this.inbox.take( username, new Consumer<List<OfflineInbox.Message>>()
+        {
+            public void accept( final List<OfflineInbox.Message> messages )
+            {
+                shard.submit( new Runnable()
+                {
+                    public void run()
+                    {
+                        offlineMessagesRead( shard, client, username, messages );
+                    }
+                } );
+            }
+        } );
+        if( reading )
+        {
+            shard.hold( client );
+        }
+    }
+
+    /**
+     * Sends a user its kept private messages, and then what was held back while they were
+     * read; runs on the user's shard
+     */
+    private void offlineMessagesRead( ChatShard shard, ChatRequestHandler client, String username, List<OfflineInbox.Message> messages )
+    {
+        List<Frame> held = shard.release( client );
+
+        // The user may have left, and even logged in again, before they were read
+        client = shard.getRoster().get( username );
+        if( client == null )
+        {
+            this.inbox.restore( username, messages );
+            return;
+        }
+        if( !messages.isEmpty() )
+        {
+            List<String> lines = new ArrayList<String>( messages.size() );
+            for( int i=0; i<messages.size(); i++ )
+            {
+                OfflineInbox.Message m = messages.get( i );
+                lines.add( "PRIV " + m.from + ":" + m.message );
+            }
+            client.deliver( Frame.lines( lines ) );
+        }
+        for( int i=0; held != null && i<held.size(); i++ )
+        {
+            client.deliver( held.get( i ) );
+        }
     }
 
     /**
@@ -109,32 +684,312 @@ public class ChatServer extends AbstractServer
      */
     public Set getUsers()
     {
-        return this.chatClients.keySet();
+        Set<String> users = getLocalUsers();
+        if( this.cluster != null )
+        {
+            this.cluster.addRemoteUsers( users );
+        }
+        return users;
     }
 
     /**
-     * Removes the specified chat client from the chat
+     * Returns a Set containing the users that are logged in on this node
      */
-    public void removeChatClient( String name )
+    public Set<String> getLocalUsers()
     {
-        if( name != null && this.chatClients.containsKey( name ) )
+        Set<String> users = new TreeSet<String>();
+        for( int i=0; i<this.shards.length; i++ )
         {
-            this.chatClients.remove( name );
-            for( Iterator i=this.chatClients.keySet().iterator(); i.hasNext(); )
+            users.addAll( this.shards[ i ].getRoster().getUsernames() );
+        }
+        return users;
+    }
+
+    /**
+     * Tells the users on this node that the specified user came online or went offline,
+     * batched with the other changes of the current window when batching is enabled
+     */
+    public void announcePresence( String username, boolean joined )
+    {
+        if( this.presence != null )
+        {
+            if( joined )
+            {
+                this.presence.userJoined( username );
+            }
+            else
+            {
+                this.presence.userLeft( username );
+            }
+        }
+        else
+        {
+            deliverPresence( Frame.notification( joined ? "USER" : "RUSR", username ), Collections.singletonList( username ) );
+        }
+    }
+
+    /**
+     * Sends a frame to every user logged in on this node
+     */
+    public void deliverToLocalUsers( final Frame frame )
+    {
+        final ChatShard shard = this.shards[ 0 ];
+        shard.submit( new Runnable()
+        {
+            public void run()
+            {
+                shard.broadcast( frame, null );
+            }
+        } );
+    }
+
+    /**
+     * Sends a frame of USER and RUSR lines to every user logged in on this node; no user is
+     * sent the line that names it
+     *
+     * @param named  The user each line of the frame is about, in the order of the lines
+     */
+    public void deliverPresence( final Frame frame, final List<String> named )
+    {
+        final ChatShard shard = this.shards[ 0 ];
+        shard.submit( new Runnable()
+        {
+            public void run()
+            {
+                shard.broadcastPresence( frame, named );
+            }
+        } );
+    }
+
+    /**
+     * Sends a private message that another node forwarded to a user of ours; if the user
+     * has left meanwhile, it goes to the inbox as if it had been sent here
+     */
+    public void deliverForwardedMessage( final String from, final String to, final String message )
+    {
+        final Frame frame = Frame.message( "PRIV", from, message );
+        final ChatShard shard = shardFor( to );
+        final Runnable ifOffline = this.inbox == null ? null : new Runnable()
+        {
+            public void run()
+            {
+                inbox.store( to, from, message );
+            }
+        };
+        shard.submit( new Runnable()
+        {
+            public void run()
+            {
+                shard.sendTo( to, frame, ifOffline );
+            }
+        } );
+    }
+
+    /**
+     * A user logged in on another node; recorded on the user's shard, in turn with the
+     * logins here.  When the name is logged in here too, both nodes added it before they
+     * heard of each other, and both keep it on the node with the smaller id: if that is the
+     * other one, our user is told to go.
+     */
+    public void remoteUserJoined( final String name, final ClusterLink link )
+    {
+        final ChatShard shard = shardFor( name );
+        shard.submit( new Runnable()
+        {
+            public void run()
+            {
+                ChatRequestHandler local = shard.getRoster().get( name );
+                if( local != null )
+                {
+                    if( cluster.getNodeId().compareTo( link.getPeerId() ) < 0 )
+                    {
+                        // Ours keeps it; the other node tells its user to go
+                        return;
+                    }
+                    Log.warn( "User {} also logged in on node {}, which keeps the name", name, link.getPeerId() );
+                    local.evict( "Username " + name + " is already in use on another server" );
+                }
+                if( cluster.addRemoteUser( name, link ) )
+                {
+                    announcePresence( name, true );
+                }
+            }
+        } );
+    }
+
+    /**
+     * A user logged out of another node; recorded on the user's shard, after its login
+     */
+    public void remoteUserLeft( final String name, final ClusterLink link )
+    {
+        final ChatShard shard = shardFor( name );
+        shard.submit( new Runnable()
+        {
+            public void run()
             {
-                String username = ( String )i.next();
-                ChatRequestHandler user = ( ChatRequestHandler )this.chatClients.get( username );
-                user.removeUser( name );
+                if( cluster.removeRemoteUser( name, link ) )
+                {
+                    announcePresence( name, false );
+                }
             }
+        } );
+    }
+
+    /**
+     * Removes the specified chat client from the chat
+     */
+    public void removeChatClient( final String name )
+    {
+        if( name == null )
+        {
+            return;
         }
+        final ChatShard shard = shardFor( name );
+        shard.submit( new Runnable()
+        {
+            public void run()
+            {
+                ChatRequestHandler client = shard.getRoster().remove( name );
+                if( client != null )
+                {
+                    shard.takeJoinBatched( client );
+
+                    // A user that lost its name to another node leaves nobody gone
+                    if( cluster == null || !cluster.isRemoteUser( name ) )
+                    {
+                        announcePresence( name, false );
+                    }
+                    if( cluster != null )
+                    {
+                        cluster.userLeft( name );
+                    }
+                }
+            }
+        } );
     }
 
     /**
      * Creates a new stand-alone chat server
+     *
+     * Usage: ChatServer [-nio [eventLoops] | -virtual] [-slow drop|disconnect|pause [maxPending]] [-shards n]
+     *                   [-presence ms] [-history dir|off [segments]] [-inbox dir|off [ttlHours]] [-port port] [-node id -peerPort port [-peers host:port,...]]
+     *   -nio       serve all clients from a fixed number of event loop threads
+     *              (defaults to one per CPU) instead of one pooled thread per client
+     *   -virtual   serve every client on its own virtual thread, without a thread limit
+     *   -slow      what to do with a client that has more than maxPending (default 1000)
+     *              messages waiting: drop the oldest, disconnect it, or stop reading from it
+     *   -shards    the number of threads that the users are partitioned over (defaults to
+     *              one per CPU)
+     *   -presence  how long USER/RUSR notifications are collected and sent as one batch
+     *              (defaults to 100ms, 0 sends each one right away)
+     *   -history   the directory the history of the room is kept in (defaults to "history"),
+     *              or off to keep no history, and how many 64MB segments of it are kept
+     *              before the oldest lines are dropped (defaults to 16)
+     *   -inbox     the directory private messages to users who are not logged in are kept in
+     *              (defaults to "inbox"), or off to drop them, and how many hours they are
+     *              kept (defaults to a week)
+     *   -port      the port clients connect to (defaults to 9988)
+     *   -admins    the comma separated users who may read the metrics with STAT
+     *   -log       the directory the log is written to (defaults to "logs"), or console,
+     *              and the lowest level that is logged: debug, info (the default), warn,
+     *              error or off
+     *   -node id -peerPort port [-peers host:port,...]
+     *              run as node "id" of a cluster: listen for other nodes on peerPort and
+     *              dial the listed peers
      */
     public static void main( String[] args )
     {
         ChatServer cs = new ChatServer();
+        String nodeId = null;
+        int peerPort = 0;
+        String[] peers = new String[ 0 ];
+        String logDir = "logs";
+        for( int i=0; i<args.length; i++ )
+        {
+            if( args[ i ].equals( "-nio" ) )
+            {
+                int loops = Runtime.getRuntime().availableProcessors();
+                if( i + 1 < args.length && args[ i + 1 ].matches( "\\d+" ) )
+                {
+                    loops = Integer.parseInt( args[ ++i ] );
+                }
+                cs.setReactorThreads( loops );
+            }
+            else if( args[ i ].equals( "-virtual" ) )
+            {
+                cs.setVirtualThreads( true );
+            }
+            else if( args[ i ].equals( "-slow" ) && i + 1 < args.length )
+            {
+                SlowConsumerPolicy policy = SlowConsumerPolicy.parse( args[ ++i ] );
+                int maxPending = cs.getMaxPendingMessages();
+                if( i + 1 < args.length && args[ i + 1 ].matches( "\\d+" ) )
+                {
+                    maxPending = Integer.parseInt( args[ ++i ] );
+                }
+                cs.setSlowConsumerPolicy( policy, maxPending );
+            }
+            else if( args[ i ].equals( "-shards" ) && i + 1 < args.length )
+            {
+                cs.setShardCount( Integer.parseInt( args[ ++i ] ) );
+            }
+            else if( args[ i ].equals( "-presence" ) && i + 1 < args.length )
+            {
+                cs.setPresenceWindow( Long.parseLong( args[ ++i ] ) );
+            }
+            else if( args[ i ].equals( "-history" ) && i + 1 < args.length )
+            {
+                String dir = args[ ++i ];
+                cs.setHistoryDir( dir.equals( "off" ) ? null : dir );
+                if( i + 1 < args.length && args[ i + 1 ].matches( "\\d+" ) )
+                {
+                    cs.setHistorySegments( Integer.parseInt( args[ ++i ] ) );
+                }
+            }
+            else if( args[ i ].equals( "-inbox" ) && i + 1 < args.length )
+            {
+                String dir = args[ ++i ];
+                long ttlHours = 7 * 24;
+                if( i + 1 < args.length && args[ i + 1 ].matches( "\\d+" ) )
+                {
+                    ttlHours = Long.parseLong( args[ ++i ] );
+                }
+                cs.setInbox( dir.equals( "off" ) ? null : dir, ttlHours * 60 * 60 * 1000 );
+            }
+            else if( args[ i ].equals( "-port" ) && i + 1 < args.length )
+            {
+                cs.setPort( Integer.parseInt( args[ ++i ] ) );
+            }
+            else if( args[ i ].equals( "-admins" ) && i + 1 < args.length )
+            {
+                cs.setAdmins( args[ ++i ].split( "," ) );
+            }
+            else if( args[ i ].equals( "-log" ) && i + 1 < args.length )
+            {
+                logDir = args[ ++i ];
+                if( i + 1 < args.length && !args[ i + 1 ].startsWith( "-" ) )
+                {
+                    Log.setLevel( Log.parseLevel( args[ ++i ] ) );
+                }
+            }
+            else if( args[ i ].equals( "-node" ) && i + 1 < args.length )
+            {
+                nodeId = args[ ++i ];
+            }
+            else if( args[ i ].equals( "-peerPort" ) && i + 1 < args.length )
+            {
+                peerPort = Integer.parseInt( args[ ++i ] );
+            }
+            else if( args[ i ].equals( "-peers" ) && i + 1 < args.length )
+            {
+                peers = args[ ++i ].split( "," );
+            }
+        }
+        Log.setDirectory( logDir.equals( "console" ) ? null : new File( logDir ), 10L * 1024 * 1024, 5 );
+        if( nodeId != null )
+        {
+            cs.setCluster( new ClusterNode( cs, nodeId, peerPort, peers ) );
+        }
         cs.startServer();
 
 
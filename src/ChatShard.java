@@ -0,0 +1,481 @@
+// Import the Java classes
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A ChatShard owns a slice of the logged in users and is the only thread that changes it.
+ * Connection threads hand it work through its ingress queue; other shards hand it work
+ * through one single-producer/single-consumer mailbox each, so shards never share a lock.
+ * 聊天分片：独占一部分在线用户，由专属线程处理
+ */
+public class ChatShard extends Thread
+{
+    /**
+     * How long broadcasts take to reach the outbound queues of all users
+     */
+    private static final LatencyHistogram fanOutTimes = MetricsRegistry.theRegistry.histogram( "broadcast.fanout" );
+
+    /**
+     * How long messages to rooms take to reach the outbound queues of the room's members
+     */
+    private static final LatencyHistogram roomFanOutTimes = MetricsRegistry.theRegistry.histogram( "room.fanout" );
+
+    /**
+     * Our shard number, also our index in every shard's mailboxes
+     */
+    private int shardNumber;
+
+    /**
+     * All of the shards, including this one
+     */
+    private ChatShard[] shards;
+
+    /**
+     * The users that live on this shard; only changed by our thread, safe to read from any
+     */
+    private UserRegistry roster = new UserRegistry();
+
+    /**
+     * Work submitted by threads that are not shards
+     */
+    private Queue<Runnable> ingress = new ConcurrentLinkedQueue<Runnable>();
+
+    /**
+     * Work from the other shards: mailboxes[ i ] is written only by shard i
+     */
+    private SpscQueue<Runnable>[] mailboxes;
+
+    /**
+     * Set while our thread is parked, so that producers only unpark it when needed
+     */
+    private AtomicBoolean sleeping = new AtomicBoolean( false );
+
+    private volatile boolean running = true;
+
+    /**
+     * The frames sent to users whose offline messages are still being read, which go out
+     * after those; only used by our thread
+     */
+    private Map<ChatRequestHandler, List<Frame>> held = new HashMap<ChatRequestHandler, List<Frame>>();
+
+    /**
+     * Our users whose USER line may still be waiting in the presence batch; only used by our thread
+     */
+    private Set<ChatRequestHandler> unannounced = new HashSet<ChatRequestHandler>();
+
+    /**
+     * Creates a new ChatShard
+     */
+    @SuppressWarnings( { "unchecked", "rawtypes" } )
+    public ChatShard( int shardNumber, int shardCount )
+    {
+        super( "ChatShard-" + shardNumber );
+        this.shardNumber = shardNumber;
+        this.mailboxes = new SpscQueue[ shardCount ];
+        for( int i=0; i<shardCount; i++ )
+        {
+            this.mailboxes[ i ] = new SpscQueue<Runnable>();
+        }
+        setDaemon( true );
+    }
+
+    /**
+     * Tells the shard about its siblings; must be called before it is started
+     */
+    public void setShards( ChatShard[] shards )
+    {
+        this.shards = shards;
+    }
+
+    /**
+     * Returns our shard number
+     */
+    public int getShardNumber()
+    {
+        return this.shardNumber;
+    }
+
+    /**
+     * Returns the users that live on this shard
+     */
+    public UserRegistry getRoster()
+    {
+        return this.roster;
+    }
+
+    /**
+     * Runs the task on this shard; may be called from any thread
+     */
+    public void submit( Runnable task )
+    {
+        Thread current = Thread.currentThread();
+        if( current instanceof ChatShard )
+        {
+            // Shards talk to each other through their mailboxes
+            post( ( ChatShard )current, task );
+            return;
+        }
+        this.ingress.add( task );
+        wakeUp();
+    }
+
+    /**
+     * Runs the task on this shard; must be called from the thread of shard "from"
+     */
+    private void post( ChatShard from, Runnable task )
+    {
+        this.mailboxes[ from.shardNumber ].offer( task );
+        wakeUp();
+    }
+
+    private void wakeUp()
+    {
+        if( this.sleeping.get() && this.sleeping.compareAndSet( true, false ) )
+        {
+            LockSupport.unpark( this );
+        }
+    }
+
+    /**
+     * Sends the frame to every user of every shard except the sender; must be called on
+     * this shard's thread, where the sender lives
+     */
+    public void broadcast( Frame frame, ChatRequestHandler sender )
+    {
+        broadcast( frame, sender, System.nanoTime() );
+    }
+
+    /**
+     * Same as above; the time from startNanos until the last shard has queued the frame for
+     * its users is recorded as the broadcast's fan-out latency
+     */
+    public void broadcast( final Frame frame, ChatRequestHandler sender, final long startNanos )
+    {
+        final AtomicInteger remaining = new AtomicInteger( this.shards.length );
+        deliverLocal( frame, sender );
+        fannedOut( remaining, startNanos, fanOutTimes );
+        for( int i=0; i<this.shards.length; i++ )
+        {
+            if( i != this.shardNumber )
+            {
+                this.shards[ i ].post( this, new Runnable()
+                {
+                    public void run()
+                    {
+                        ChatShard shard = ( ChatShard )Thread.currentThread();
+                        shard.deliverLocal( frame, null );
+                        fannedOut( remaining, startNanos, fanOutTimes );
+                    }
+                } );
+            }
+        }
+    }
+
+    /**
+     * Sends a frame of presence notifications to every user of every shard; the user that
+     * each line names gets the frame without that line.  Must be called on this shard's thread.
+     *
+     * @param named  The user each line of the frame is about, in the order of the lines
+     */
+    public void broadcastPresence( final Frame frame, final List<String> named )
+    {
+        final long startNanos = System.nanoTime();
+        final AtomicInteger remaining = new AtomicInteger( this.shards.length );
+        deliverPresence( frame, named );
+        fannedOut( remaining, startNanos, fanOutTimes );
+        for( int i=0; i<this.shards.length; i++ )
+        {
+            if( i != this.shardNumber )
+            {
+                this.shards[ i ].post( this, new Runnable()
+                {
+                    public void run()
+                    {
+                        ChatShard shard = ( ChatShard )Thread.currentThread();
+                        shard.deliverPresence( frame, named );
+                        fannedOut( remaining, startNanos, fanOutTimes );
+                    }
+                } );
+            }
+        }
+    }
+
+    /**
+     * Sends the frame to the members of the room on every shard except the sender; must be
+     * called on this shard's thread, where the sender lives.  Only the shards that have
+     * members of the room are involved.
+     */
+    public void broadcast( final Room room, final Frame frame, ChatRequestHandler sender, final long startNanos )
+    {
+        // Decide once which shards to involve, so that the count matches the tasks posted
+        int[] targets = new int[ this.shards.length ];
+        int targetCount = 0;
+        for( int i=0; i<this.shards.length; i++ )
+        {
+            if( i != this.shardNumber && room.hasMembers( i ) )
+            {
+                targets[ targetCount++ ] = i;
+            }
+        }
+        final AtomicInteger remaining = new AtomicInteger( targetCount + 1 );
+        room.deliver( this.shardNumber, frame, sender );
+        fannedOut( remaining, startNanos, roomFanOutTimes );
+        for( int t=0; t<targetCount; t++ )
+        {
+            this.shards[ targets[ t ] ].post( this, new Runnable()
+            {
+                public void run()
+                {
+                    ChatShard shard = ( ChatShard )Thread.currentThread();
+                    room.deliver( shard.shardNumber, frame, null );
+                    fannedOut( remaining, startNanos, roomFanOutTimes );
+                }
+            } );
+        }
+    }
+
+    /**
+     * Called by every shard once it has delivered a broadcast; the last one records the latency
+     */
+    private static void fannedOut( AtomicInteger remaining, long startNanos, LatencyHistogram times )
+    {
+        if( remaining.decrementAndGet() == 0 )
+        {
+            times.record( System.nanoTime() - startNanos );
+        }
+    }
+
+    /**
+     * Sends the frame to the specified user, wherever it lives; must be called on this shard's thread
+     */
+    public void sendTo( final String username, final Frame frame )
+    {
+        sendTo( username, frame, null );
+    }
+
+    /**
+     * Sends the frame to the specified user, wherever it lives, or runs ifOffline on the user's
+     * shard when the user is not logged in; must be called on this shard's thread.  Logins
+     * happen on the same shard, so the user cannot log in while ifOffline runs.
+     */
+    public void sendTo( final String username, final Frame frame, final Runnable ifOffline )
+    {
+        ChatShard target = this.shards[ ChatServer.shardIndex( username, this.shards.length ) ];
+        if( target == this )
+        {
+            if( !deliverTo( username, frame ) && ifOffline != null )
+            {
+                ifOffline.run();
+            }
+            return;
+        }
+        target.post( this, new Runnable()
+        {
+            public void run()
+            {
+                if( !( ( ChatShard )Thread.currentThread() ).deliverTo( username, frame ) && ifOffline != null )
+                {
+                    ifOffline.run();
+                }
+            }
+        } );
+    }
+
+    /**
+     * Sends the frame to all of our users except one
+     */
+    private void deliverLocal( Frame frame, ChatRequestHandler except )
+    {
+        for( Iterator<ChatRequestHandler> i=this.roster.clients().iterator(); i.hasNext(); )
+        {
+            ChatRequestHandler client = i.next();
+            if( client != except )
+            {
+                client.deliver( frame );
+            }
+        }
+    }
+
+    /**
+     * Sends a frame of presence notifications to all of our users, leaving out of it the
+     * line about the user itself; only the named users that live here are among ours
+     */
+    private void deliverPresence( Frame frame, List<String> named )
+    {
+        Map<ChatRequestHandler, Integer> lines = new HashMap<ChatRequestHandler, Integer>();
+        for( int i=0; i<named.size(); i++ )
+        {
+            ChatRequestHandler client = this.roster.get( named.get( i ) );
+            if( client != null )
+            {
+                lines.put( client, Integer.valueOf( i ) );
+            }
+        }
+        for( Iterator<ChatRequestHandler> i=this.roster.clients().iterator(); i.hasNext(); )
+        {
+            ChatRequestHandler client = i.next();
+            Integer line = lines.get( client );
+            if( line == null )
+            {
+                client.deliver( frame );
+            }
+            else
+            {
+                client.deliverWithout( frame, line.intValue() );
+            }
+        }
+    }
+
+    /**
+     * Sends the frame to one of our users, if that user is logged in
+     *
+     * @return  false if the user is not logged in
+     */
+    private boolean deliverTo( String username, Frame frame )
+    {
+        ChatRequestHandler client = this.roster.get( username );
+        if( client == null )
+        {
+            return false;
+        }
+        List<Frame> frames = this.held.isEmpty() ? null : this.held.get( client );
+        if( frames != null )
+        {
+            frames.add( frame );
+        }
+        else
+        {
+            client.deliver( frame );
+        }
+        return true;
+    }
+
+    /**
+     * Notes that one of our users was handed to the presence batch; must be called on our thread
+     */
+    public void joinBatched( ChatRequestHandler client )
+    {
+        this.unannounced.add( client );
+    }
+
+    /**
+     * Forgets that one of our users was handed to the presence batch; must be called on our thread
+     *
+     * @return  true if it was, and this is the first time we are asked
+     */
+    public boolean takeJoinBatched( ChatRequestHandler client )
+    {
+        return !this.unannounced.isEmpty() && this.unannounced.remove( client );
+    }
+
+    /**
+     * Holds back the frames sent to one of our users until release(); must be called on our thread
+     */
+    public void hold( ChatRequestHandler client )
+    {
+        this.held.put( client, new ArrayList<Frame>() );
+    }
+
+    /**
+     * Stops holding back the frames sent to one of our users; must be called on our thread
+     *
+     * @return  The frames that were held back, oldest first
+     */
+    public List<Frame> release( ChatRequestHandler client )
+    {
+        return this.held.remove( client );
+    }
+
+    /**
+     * Stops the shard
+     */
+    public void shutdown()
+    {
+        this.running = false;
+        LockSupport.unpark( this );
+    }
+
+    /**
+     * The shard's main processing loop
+     */
+    public void run()
+    {
+        while( running )
+        {
+            if( !runTasks() )
+            {
+                // Nothing to do; announce that we are going to sleep, then check once more
+                // so that a task submitted in between cannot be missed
+                this.sleeping.set( true );
+                if( !hasTasks() && running )
+                {
+                    LockSupport.park( this );
+                }
+                this.sleeping.set( false );
+            }
+        }
+    }
+
+    /**
+     * Runs the pending tasks
+     *
+     * @return  true if there were any
+     */
+    private boolean runTasks()
+    {
+        boolean worked = false;
+        Runnable task;
+        while( ( task = this.ingress.poll() ) != null )
+        {
+            runTask( task );
+            worked = true;
+        }
+        for( int i=0; i<this.mailboxes.length; i++ )
+        {
+            while( ( task = this.mailboxes[ i ].poll() ) != null )
+            {
+                runTask( task );
+                worked = true;
+            }
+        }
+        return worked;
+    }
+
+    private void runTask( Runnable task )
+    {
+        try
+        {
+            task.run();
+        }
+        catch( Exception e )
+        {
+            Log.error( "Shard task failed", e );
+        }
+    }
+
+    private boolean hasTasks()
+    {
+        if( !this.ingress.isEmpty() )
+        {
+            return true;
+        }
+        for( int i=0; i<this.mailboxes.length; i++ )
+        {
+            if( !this.mailboxes[ i ].isEmpty() )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,158 @@
+// Import the Java classes
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A ClusterLink is the TCP connection to one peer node.  Each line on the link is one
+ * event, with its fields separated by tabs:
+ *
+ *   NODE  <nodeId>                     first line in each direction
+ *   JOIN  <user>                       a user logged in on the sending node
+ *   LEAV  <user>                       a user left the sending node
+ *   MESG  <from> <message>             a broadcast, sent once per node
+ *   EMOT  <from> <message>
+ *   PRIV  <to> <from> <message>        a private message for a user of the receiving node
+ *
+ * 与另一个集群节点之间的连接
+ */
+public class ClusterLink extends Thread
+{
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    private ClusterNode node;
+
+    private Socket socket;
+
+    /**
+     * True if we dialed the peer, false if the peer dialed us
+     */
+    private boolean dialed;
+
+    /**
+     * The peer's node id, once it has said hello
+     */
+    private volatile String peerId;
+
+    /**
+     * Writes our events to the peer without blocking the chat
+     */
+    private SocketWriter writer;
+
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a new ClusterLink
+     */
+    public ClusterLink( ClusterNode node, Socket socket, boolean dialed ) throws IOException
+    {
+        super( "ClusterLink-" + socket.getRemoteSocketAddress() );
+        this.node = node;
+        this.socket = socket;
+        this.dialed = dialed;
+
+        // A peer that cannot keep up is dropped; it resynchronizes when it reconnects
+        this.writer = new SocketWriter( socket, 100000, SlowConsumerPolicy.DISCONNECT );
+        setDaemon( true );
+    }
+
+    /**
+     * Returns the peer's node id, or null before the handshake
+     */
+    public String getPeerId()
+    {
+        return this.peerId;
+    }
+
+    /**
+     * Returns true if we dialed the peer
+     */
+    public boolean isDialed()
+    {
+        return this.dialed;
+    }
+
+    public boolean isClosed()
+    {
+        return this.closed;
+    }
+
+    /**
+     * Sends an event to the peer
+     */
+    public void send( String command, String... fields )
+    {
+        StringBuilder sb = new StringBuilder( command );
+        for( int i=0; i<fields.length; i++ )
+        {
+            sb.append( '\t' ).append( fields[ i ] );
+        }
+        sb.append( '\n' );
+        this.writer.getQueue().offer( UTF8.encode( sb.toString() ) );
+    }
+
+    /**
+     * Closes the link
+     */
+    public void close()
+    {
+        this.closed = true;
+        try
+        {
+            this.socket.close();
+        }
+        catch( IOException e ) {}
+    }
+
+    /**
+     * The link's main processing loop: reads the peer's events
+     */
+    public void run()
+    {
+        this.writer.start();
+        send( "NODE", this.node.getNodeId() );
+        try
+        {
+            BufferedReader in = new BufferedReader( new InputStreamReader( this.socket.getInputStream(), UTF8 ) );
+            String line;
+            while( ( line = in.readLine() ) != null )
+            {
+                // The last field is free text and may contain tabs itself
+                int limit = line.startsWith( "PRIV" ) ? 4 : ( line.startsWith( "MESG" ) || line.startsWith( "EMOT" ) ) ? 3 : 2;
+                String[] fields = line.split( "\t", limit );
+                if( fields[ 0 ].equals( "NODE" ) && fields.length > 1 )
+                {
+                    this.peerId = fields[ 1 ];
+                    if( !this.node.linkEstablished( this ) )
+                    {
+                        break;
+                    }
+                }
+                else if( this.peerId == null )
+                {
+                    Log.warn( "Cluster peer sent {} before saying hello, closing", fields[ 0 ] );
+                    break;
+                }
+                else
+                {
+                    this.node.handleEvent( this, fields );
+                }
+            }
+        }
+        catch( SocketException se )
+        {
+            // The peer went away, or we closed the link
+        }
+        catch( Exception e )
+        {
+            Log.error( "Cluster link failed", e );
+        }
+        close();
+        this.writer.finish();
+        this.node.linkClosed( this );
+    }
+}
@@ -0,0 +1,385 @@
+// Import the Java classes
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A ClusterNode joins this ChatServer to other ChatServer processes.  Nodes keep a link
+ * to every peer, gossip the users that log in and out, forward each broadcast once per
+ * peer node, and route private messages straight to the node that owns the recipient.
+ * 集群节点：与其他ChatServer进程互联
+ */
+public class ClusterNode
+{
+    /**
+     * Our node id; must be unique in the cluster
+     */
+    private String nodeId;
+
+    /**
+     * The port that peers connect to
+     */
+    private int peerPort;
+
+    /**
+     * The peers we dial, as host:port
+     */
+    private String[] peers;
+
+    /**
+     * The server that our local users are on
+     */
+    private ChatServer server;
+
+    /**
+     * Peer node id to the link to that node
+     */
+    private Map<String, ClusterLink> links = new ConcurrentHashMap<String, ClusterLink>();
+
+    /**
+     * Normalized username to the remote user of that name
+     */
+    private Map<String, RemoteUser> remoteUsers = new ConcurrentHashMap<String, RemoteUser>();
+
+    private ServerSocket serverSocket;
+
+    private volatile boolean running = true;
+
+    /**
+     * Creates a new ClusterNode
+     *
+     * @param nodeId    Our node id
+     * @param peerPort  The port that peers connect to
+     * @param peers     The peers we dial, as host:port; may be empty if the peers dial us
+     */
+    public ClusterNode( ChatServer server, String nodeId, int peerPort, String[] peers )
+    {
+        this.server = server;
+        this.nodeId = nodeId;
+        this.peerPort = peerPort;
+        this.peers = peers;
+    }
+
+    public String getNodeId()
+    {
+        return this.nodeId;
+    }
+
+    /**
+     * Starts listening for peers and dialing them
+     */
+    public void start() throws IOException
+    {
+        // Opened through channels, which SocketWriter writes to
+        this.serverSocket = ServerSocketChannel.open().socket();
+        this.serverSocket.setReuseAddress( true );
+        this.serverSocket.bind( new InetSocketAddress( this.peerPort ) );
+
+        Thread acceptor = new Thread( "ClusterAcceptor" )
+        {
+            public void run()
+            {
+                while( running )
+                {
+                    try
+                    {
+                        Socket socket = serverSocket.accept();
+                        socket.setTcpNoDelay( true );
+                        new ClusterLink( ClusterNode.this, socket, false ).start();
+                    }
+                    catch( IOException e )
+                    {
+                        if( running )
+                        {
+                            Log.error( "Cannot accept a cluster peer", e );
+                        }
+                    }
+                }
+            }
+        };
+        acceptor.setDaemon( true );
+        acceptor.start();
+
+        for( int i=0; i<this.peers.length; i++ )
+        {
+            startDialer( this.peers[ i ] );
+        }
+        Log.info( "Cluster node {} listening for peers on port {}", this.nodeId, Integer.valueOf( this.peerPort ) );
+    }
+
+    /**
+     * Keeps a link to the specified peer open, reconnecting when it drops
+     */
+    private void startDialer( final String peer )
+    {
+        Thread dialer = new Thread( "ClusterDialer-" + peer )
+        {
+            public void run()
+            {
+                String host = peer.substring( 0, peer.lastIndexOf( ':' ) );
+                int port = Integer.parseInt( peer.substring( peer.lastIndexOf( ':' ) + 1 ) );
+                while( running )
+                {
+                    try
+                    {
+                        Socket socket = SocketChannel.open( new InetSocketAddress( host, port ) ).socket();
+                        socket.setTcpNoDelay( true );
+                        ClusterLink link = new ClusterLink( ClusterNode.this, socket, true );
+                        link.start();
+                        link.join();
+                    }
+                    catch( IOException e )
+                    {
+                        // The peer is not up yet; try again
+                    }
+                    catch( InterruptedException ie )
+                    {
+                        return;
+                    }
+                    try
+                    {
+                        Thread.sleep( 2000 );
+                    }
+                    catch( InterruptedException ie )
+                    {
+                        return;
+                    }
+                }
+            }
+        };
+        dialer.setDaemon( true );
+        dialer.start();
+    }
+
+    /**
+     * Stops the node and closes every link
+     */
+    public void shutdown()
+    {
+        this.running = false;
+        try
+        {
+            this.serverSocket.close();
+        }
+        catch( Exception e ) {}
+        for( Iterator<ClusterLink> i=this.links.values().iterator(); i.hasNext(); )
+        {
+            i.next().close();
+        }
+    }
+
+    /**
+     * Called when a peer has said hello.  If two nodes dial each other, both keep the link
+     * that was dialed by the node with the smaller id.
+     *
+     * @return  false if the link is redundant and must be closed
+     */
+    synchronized boolean linkEstablished( ClusterLink link )
+    {
+        String peerId = link.getPeerId();
+        if( peerId.equals( this.nodeId ) )
+        {
+            Log.warn( "Cluster node {} connected to itself, closing", this.nodeId );
+            return false;
+        }
+
+        ClusterLink existing = this.links.get( peerId );
+        if( existing != null && !existing.isClosed() )
+        {
+            String dialer = link.isDialed() ? this.nodeId : peerId;
+            boolean preferred = dialer.compareTo( this.nodeId ) <= 0 && dialer.compareTo( peerId ) <= 0;
+            if( !preferred )
+            {
+                return false;
+            }
+            // Replace the other link; the peer makes the same decision
+            this.links.put( peerId, link );
+            existing.close();
+        }
+        else
+        {
+            this.links.put( peerId, link );
+        }
+        Log.info( "Cluster node {} linked with {}", this.nodeId, peerId );
+
+        // Tell the peer about all of our users
+        for( Iterator<String> i=this.server.getLocalUsers().iterator(); i.hasNext(); )
+        {
+            link.send( "JOIN", i.next() );
+        }
+        return true;
+    }
+
+    /**
+     * Called when a link has closed; forgets the peer's users unless another link replaced it
+     */
+    synchronized void linkClosed( ClusterLink link )
+    {
+        String peerId = link.getPeerId();
+        if( peerId == null || !this.links.remove( peerId, link ) )
+        {
+            return;
+        }
+        Log.warn( "Cluster node {} lost its link with {}", this.nodeId, peerId );
+        for( Iterator<RemoteUser> i=this.remoteUsers.values().iterator(); i.hasNext(); )
+        {
+            RemoteUser user = i.next();
+            if( user.link == link )
+            {
+                i.remove();
+                this.server.announcePresence( user.name, false );
+            }
+        }
+    }
+
+    /**
+     * Handles an event from a peer
+     */
+    void handleEvent( ClusterLink link, String[] fields )
+    {
+        String command = fields[ 0 ];
+        if( command.equals( "JOIN" ) && fields.length >= 2 )
+        {
+            this.server.remoteUserJoined( fields[ 1 ], link );
+        }
+        else if( command.equals( "LEAV" ) && fields.length >= 2 )
+        {
+            this.server.remoteUserLeft( fields[ 1 ], link );
+        }
+        else if( ( command.equals( "MESG" ) || command.equals( "EMOT" ) ) && fields.length >= 3 )
+        {
+            this.server.deliverToLocalUsers( Frame.message( command, fields[ 1 ], fields[ 2 ] ) );
+            this.server.recordHistory( command, fields[ 1 ], fields[ 2 ] );
+        }
+        else if( command.equals( "PRIV" ) && fields.length >= 4 )
+        {
+            this.server.deliverForwardedMessage( fields[ 2 ], fields[ 1 ], fields[ 3 ] );
+        }
+    }
+
+    /**
+     * Records a user that logged in on the node at the other end of the link.  When two
+     * other nodes both have a user of that name, the one with the smaller id keeps it, as
+     * they decide between themselves; called on the user's shard.
+     *
+     * @return  true if no other node had a user of that name
+     */
+    boolean addRemoteUser( String name, ClusterLink link )
+    {
+        if( link.isClosed() )
+        {
+            return false;
+        }
+        String key = UserRegistry.normalize( name );
+        RemoteUser existing = this.remoteUsers.get( key );
+        if( existing != null && existing.link != link && !existing.link.isClosed()
+                && existing.link.getPeerId().compareTo( link.getPeerId() ) < 0 )
+        {
+            return false;
+        }
+        this.remoteUsers.put( key, new RemoteUser( name, link ) );
+        return existing == null;
+    }
+
+    /**
+     * Forgets a user that logged out of the node at the other end of the link; called on
+     * the user's shard
+     *
+     * @return  true if the user was recorded for that link
+     */
+    boolean removeRemoteUser( String name, ClusterLink link )
+    {
+        String key = UserRegistry.normalize( name );
+        RemoteUser user = this.remoteUsers.get( key );
+        return user != null && user.link == link && this.remoteUsers.remove( key, user );
+    }
+
+    /**
+     * Returns true if the specified user is logged in on another node
+     */
+    public boolean isRemoteUser( String username )
+    {
+        return this.remoteUsers.containsKey( UserRegistry.normalize( username ) );
+    }
+
+    /**
+     * Adds the names of the users on other nodes to the set
+     */
+    public void addRemoteUsers( Set<String> users )
+    {
+        for( Iterator<RemoteUser> i=this.remoteUsers.values().iterator(); i.hasNext(); )
+        {
+            users.add( i.next().name );
+        }
+    }
+
+    /**
+     * A local user logged in
+     */
+    public void userJoined( String username )
+    {
+        sendToAll( "JOIN", username );
+    }
+
+    /**
+     * A local user left
+     */
+    public void userLeft( String username )
+    {
+        sendToAll( "LEAV", username );
+    }
+
+    /**
+     * A local user broadcast a message or emotion; sent once to every node
+     */
+    public void broadcast( String command, String from, String message )
+    {
+        sendToAll( command, from, message );
+    }
+
+    /**
+     * Sends a private message to the node that owns the recipient
+     *
+     * @return  false if the recipient is not logged in on any other node
+     */
+    public boolean sendPrivate( String from, String to, String message )
+    {
+        RemoteUser user = this.remoteUsers.get( UserRegistry.normalize( to ) );
+        if( user == null )
+        {
+            return false;
+        }
+        user.link.send( "PRIV", user.name, from, message );
+        return true;
+    }
+
+    private void sendToAll( String command, String... fields )
+    {
+        for( Iterator<ClusterLink> i=this.links.values().iterator(); i.hasNext(); )
+        {
+            i.next().send( command, fields );
+        }
+    }
+
+    /**
+     * A user that is logged in on another node
+     */
+    private static class RemoteUser
+    {
+        final String name;
+        final ClusterLink link;
+
+        RemoteUser( String name, ClusterLink link )
+        {
+            this.name = name;
+            this.link = link;
+        }
+    }
+}
@@ -0,0 +1,281 @@
+// Import the Java classes
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A CommandDecoder splits the bytes a client sends into lines and looks up each line's
+ * command, without decoding the line into a String.  The line stays in the decoder's buffer,
+ * where the listener reads the command and the argument as slices; only the parts that have
+ * to be kept are turned into Strings.
+ *
+ * A command is the first four bytes of the line in any case, found in a table keyed by the
+ * four bytes folded to upper case; the argument starts after the fifth byte.  A line is at
+ * most maxLineLength bytes: the rest of a longer one is skipped up to its newline and the
+ * line is reported as TOO_LONG, so a client that never sends a newline cannot make us grow.
+ * 直接在字节上解析命令：查表识别命令，参数以切片形式提供，并限制行的最大长度
+ */
+public class CommandDecoder
+{
+    public static final int USER = 0;
+    public static final int HELP = 1;
+    public static final int EXIT = 2;
+    public static final int SEND = 3;
+    public static final int PRIV = 4;
+    public static final int LIST = 5;
+    public static final int EMOT = 6;
+    public static final int HIST = 7;
+    public static final int FIND = 8;
+    public static final int STAT = 9;
+    public static final int JOIN = 10;
+    public static final int PART = 11;
+    public static final int ROOM = 12;
+
+    /**
+     * The names of the commands, by number
+     */
+    public static final String[] NAMES = { "USER", "HELP", "EXIT", "SEND", "PRIV", "LIST", "EMOT", "HIST", "FIND", "STAT", "JOIN", "PART", "ROOM" };
+
+    /**
+     * A line whose first four bytes are not a command
+     */
+    public static final int UNKNOWN = -1;
+
+    /**
+     * A line shorter than a command
+     */
+    public static final int TOO_SHORT = -2;
+
+    /**
+     * A line longer than maxLineLength; its argument is empty
+     */
+    public static final int TOO_LONG = -3;
+
+    /**
+     * Told about every line, which it may only read until it returns
+     */
+    public interface Listener
+    {
+        /**
+         * @return  false to stop decoding, such as after EXIT
+         */
+        boolean handleCommand( CommandDecoder line );
+    }
+
+    /**
+     * The command table: an open-addressing hash table of the folded four-byte keys and the
+     * command numbers, with room to spare so that most lookups take one probe
+     */
+    private static final int TABLE_SIZE = 32;
+    private static final int[] tableKeys = new int[ TABLE_SIZE ];
+    private static final int[] tableCommands = new int[ TABLE_SIZE ];
+
+    static
+    {
+        for( int i=0; i<TABLE_SIZE; i++ )
+        {
+            tableCommands[ i ] = UNKNOWN;
+        }
+        for( int command=0; command<NAMES.length; command++ )
+        {
+            String name = NAMES[ command ];
+            int key = ( name.charAt( 0 ) << 24 ) | ( name.charAt( 1 ) << 16 ) | ( name.charAt( 2 ) << 8 ) | name.charAt( 3 );
+            int slot = slot( key );
+            while( tableCommands[ slot ] != UNKNOWN )
+            {
+                slot = ( slot + 1 ) & ( TABLE_SIZE - 1 );
+            }
+            tableKeys[ slot ] = key;
+            tableCommands[ slot ] = command;
+        }
+    }
+
+    private static int slot( int key )
+    {
+        return ( key * 0x9E3779B1 ) >>> 27;
+    }
+
+    private Listener listener;
+
+    private int maxLineLength;
+
+    /**
+     * The line being read, then the line being handled
+     */
+    private byte[] line;
+
+    private int lineLength;
+
+    /**
+     * Set while the rest of a line that was too long is being skipped
+     */
+    private boolean skipping;
+
+    private int command;
+
+    /**
+     * Creates a decoder that reads lines into the specified buffer, which also sets the
+     * longest line; the buffer may be a pooled one
+     */
+    public CommandDecoder( byte[] line, Listener listener )
+    {
+        this.maxLineLength = line.length;
+        this.listener = listener;
+        this.line = line;
+    }
+
+    /**
+     * Decodes the bytes that remain in the buffer, telling the listener about every line
+     *
+     * @return  false once the listener asked to stop; the rest of the buffer is left unread
+     */
+    public boolean decode( ByteBuffer input )
+    {
+        while( input.hasRemaining() )
+        {
+            byte b = input.get();
+            if( b == '\n' )
+            {
+                if( !endLine() )
+                {
+                    return false;
+                }
+            }
+            else if( this.lineLength < this.maxLineLength )
+            {
+                this.line[ this.lineLength++ ] = b;
+            }
+            else
+            {
+                this.skipping = true;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Looks up the command of the line that just ended and hands the line to the listener
+     */
+    private boolean endLine()
+    {
+        // Strip the carriage return, as BufferedReader.readLine() does
+        if( this.lineLength > 0 && this.line[ this.lineLength - 1 ] == '\r' && !this.skipping )
+        {
+            this.lineLength--;
+        }
+        if( this.skipping )
+        {
+            this.command = TOO_LONG;
+            this.lineLength = 0;
+        }
+        else if( this.lineLength < 4 )
+        {
+            this.command = TOO_SHORT;
+        }
+        else
+        {
+            this.command = lookup( this.line );
+        }
+        boolean more = this.listener.handleCommand( this );
+        this.lineLength = 0;
+        this.skipping = false;
+        return more;
+    }
+
+    /**
+     * Returns the number of the command in the first four bytes, or UNKNOWN
+     */
+    private static int lookup( byte[] bytes )
+    {
+        int key = ( upper( bytes[ 0 ] ) << 24 ) | ( upper( bytes[ 1 ] ) << 16 ) | ( upper( bytes[ 2 ] ) << 8 ) | upper( bytes[ 3 ] );
+        for( int slot=slot( key ); tableCommands[ slot ] != UNKNOWN; slot=( slot + 1 ) & ( TABLE_SIZE - 1 ) )
+        {
+            if( tableKeys[ slot ] == key )
+            {
+                return tableCommands[ slot ];
+            }
+        }
+        return UNKNOWN;
+    }
+
+    private static int upper( byte b )
+    {
+        return b >= 'a' && b <= 'z' ? b - ( 'a' - 'A' ) : b & 0xff;
+    }
+
+    /**
+     * Returns the command of the current line: one of the command numbers, UNKNOWN,
+     * TOO_SHORT or TOO_LONG
+     */
+    public int getCommand()
+    {
+        return this.command;
+    }
+
+    /**
+     * Returns the buffer the current line is in; valid until the listener returns
+     */
+    public byte[] getBuffer()
+    {
+        return this.line;
+    }
+
+    /**
+     * Returns the length of the current line, without its line terminator
+     */
+    public int getLineLength()
+    {
+        return this.lineLength;
+    }
+
+    /**
+     * Returns where the argument starts in the buffer: after the command and one separator
+     */
+    public int getArgumentOffset()
+    {
+        return Math.min( 5, this.lineLength );
+    }
+
+    public int getArgumentLength()
+    {
+        return this.lineLength - getArgumentOffset();
+    }
+
+    /**
+     * Returns the position of the first occurrence of the byte in the argument, or -1
+     */
+    public int indexOf( char c )
+    {
+        for( int i=getArgumentOffset(); i<this.lineLength; i++ )
+        {
+            if( this.line[ i ] == c )
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Decodes the specified part of the buffer
+     */
+    public String getString( int offset, int length )
+    {
+        return new String( this.line, offset, length, Charset.defaultCharset() );
+    }
+
+    /**
+     * Decodes the argument
+     */
+    public String getArgument()
+    {
+        return getString( getArgumentOffset(), getArgumentLength() );
+    }
+
+    /**
+     * Decodes the whole line
+     */
+    public String toString()
+    {
+        return getString( 0, this.lineLength );
+    }
+}
@@ -0,0 +1,318 @@
+// Import the Java classes
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The DirectBufferPool lends the direct buffers that the transports read from and write to
+ * their sockets, so that a socket read or write never copies through a temporary buffer and
+ * connections that come and go do not allocate direct memory of their own.
+ *
+ * Buffers come in size classes, the powers of two from MIN_SIZE to MAX_SIZE: take() rounds
+ * the requested size up to its class and returns a buffer of exactly that capacity.  Each
+ * class keeps a bounded shared pool, and a thread that lives as long as the server, such
+ * as a RequestThread, can keep a few buffers of each class for itself, so that taking and
+ * giving back a buffer for every connection it serves does not touch the shared pool at
+ * all.  Threads that come and go with their connections, virtual or not, would take their
+ * caches with them, so they use the shared pool.  Larger buffers are allocated for the
+ * caller and left to the garbage collector.
+ *
+ * While the log level is DEBUG every buffer taken is tracked, and a buffer that is garbage
+ * collected without having been given back is logged with the stack trace of its take().
+ *
+ * Published as "buffers.direct.allocated", "buffers.direct.pooled" and
+ * "buffers.direct.leaked".
+ * 按大小分级的直接缓冲区池，带线程本地缓存，调试模式下检测未归还的缓冲区
+ */
+public class DirectBufferPool
+{
+    public static final int MIN_SIZE = 512;
+    public static final int MAX_SIZE = 64 * 1024;
+
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros( MIN_SIZE );
+    private static final int CLASSES = Integer.numberOfTrailingZeros( MAX_SIZE ) - MIN_SHIFT + 1;
+
+    /**
+     * The buffers of each class a thread with a cache keeps for itself
+     */
+    private static final int THREAD_CACHE_SIZE = 4;
+
+    /**
+     * The direct memory each class may keep in its shared pool
+     */
+    private static final int POOLED_BYTES_PER_CLASS = 8 * 1024 * 1024;
+
+    /**
+     * The one pool of the server
+     */
+    public static final DirectBufferPool thePool = new DirectBufferPool();
+
+    private final RingBufferQueue<ByteBuffer>[] shared;
+
+    /**
+     * The caches of the threads that asked for one
+     */
+    private final ThreadLocal<ByteBuffer[][]> threadCaches = new ThreadLocal<ByteBuffer[][]>();
+
+    private final LongAdder allocated = MetricsRegistry.theRegistry.counter( "buffers.direct.allocated" );
+    private final LongAdder leaked = MetricsRegistry.theRegistry.counter( "buffers.direct.leaked" );
+
+    /**
+     * The buffers that are out while the log level is DEBUG, by identity hash code; their
+     * references are queued once a buffer is collected
+     */
+    private final Map<Integer, List<Loan>> loans = new HashMap<Integer, List<Loan>>();
+    private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<ByteBuffer>();
+    private final AtomicInteger loanCount = new AtomicInteger();
+
+    /**
+     * A buffer that was taken, and where
+     */
+    private static class Loan extends WeakReference<ByteBuffer>
+    {
+        final int capacity;
+        final Throwable taken;
+
+        Loan( ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue )
+        {
+            super( buffer, queue );
+            this.capacity = buffer.capacity();
+            this.taken = new Throwable( "Buffer taken here" );
+        }
+    }
+
+    @SuppressWarnings( { "unchecked", "rawtypes" } )
+    private DirectBufferPool()
+    {
+        this.shared = new RingBufferQueue[ CLASSES ];
+        for( int i=0; i<CLASSES; i++ )
+        {
+            int size = MIN_SIZE << i;
+            this.shared[ i ] = new RingBufferQueue<ByteBuffer>( Math.min( 1024, POOLED_BYTES_PER_CLASS / size ) );
+        }
+        MetricsRegistry.theRegistry.gauge( "buffers.direct.pooled", new MetricsRegistry.Gauge()
+        {
+            public long get()
+            {
+                long pooled = 0;
+                for( int i=0; i<CLASSES; i++ )
+                {
+                    pooled += shared[ i ].size();
+                }
+                return pooled;
+            }
+        } );
+    }
+
+    /**
+     * Borrows a cleared direct buffer of at least the specified size; its capacity is the
+     * size rounded up to a power of two
+     */
+    public ByteBuffer take( int size )
+    {
+        ByteBuffer buffer;
+        if( size > MAX_SIZE )
+        {
+            this.allocated.increment();
+            buffer = ByteBuffer.allocateDirect( size );
+        }
+        else
+        {
+            int sizeClass = sizeClass( size );
+            buffer = null;
+            ByteBuffer[][] cache = this.threadCaches.get();
+            if( cache != null )
+            {
+                ByteBuffer[] buffers = cache[ sizeClass ];
+                for( int i=0; i<THREAD_CACHE_SIZE && buffer == null; i++ )
+                {
+                    buffer = buffers[ i ];
+                    buffers[ i ] = null;
+                }
+            }
+            if( buffer == null )
+            {
+                buffer = this.shared[ sizeClass ].poll();
+            }
+            if( buffer == null )
+            {
+                this.allocated.increment();
+                buffer = ByteBuffer.allocateDirect( MIN_SIZE << sizeClass );
+            }
+            buffer.clear();
+        }
+
+        if( Log.isDebugEnabled() )
+        {
+            reportLeaks();
+            lend( buffer );
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer taken from this pool; it must not be used afterwards.  A buffer that
+     * does not fit a size class is left to the garbage collector.
+     */
+    public void give( ByteBuffer buffer )
+    {
+        if( this.loanCount.get() > 0 )
+        {
+            giveBack( buffer );
+        }
+
+        int capacity = buffer.capacity();
+        if( !buffer.isDirect() || capacity < MIN_SIZE || capacity > MAX_SIZE || Integer.bitCount( capacity ) != 1 )
+        {
+            return;
+        }
+        int sizeClass = sizeClass( capacity );
+        ByteBuffer[][] cache = this.threadCaches.get();
+        if( cache != null )
+        {
+            ByteBuffer[] buffers = cache[ sizeClass ];
+            for( int i=0; i<THREAD_CACHE_SIZE; i++ )
+            {
+                if( buffers[ i ] == null )
+                {
+                    buffers[ i ] = buffer;
+                    return;
+                }
+            }
+        }
+        this.shared[ sizeClass ].offer( buffer );
+    }
+
+    /**
+     * Gives the current thread a cache of its own; the thread must call releaseThreadCache()
+     * before it ends
+     */
+    public void createThreadCache()
+    {
+        if( this.threadCaches.get() == null )
+        {
+            this.threadCaches.set( new ByteBuffer[ CLASSES ][ THREAD_CACHE_SIZE ] );
+        }
+    }
+
+    /**
+     * Hands the buffers of the current thread's cache to the shared pool and drops the cache
+     */
+    public void releaseThreadCache()
+    {
+        ByteBuffer[][] cache = this.threadCaches.get();
+        if( cache == null )
+        {
+            return;
+        }
+        this.threadCaches.remove();
+        for( int sizeClass=0; sizeClass<CLASSES; sizeClass++ )
+        {
+            for( int i=0; i<THREAD_CACHE_SIZE; i++ )
+            {
+                if( cache[ sizeClass ][ i ] != null )
+                {
+                    this.shared[ sizeClass ].offer( cache[ sizeClass ][ i ] );
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the class of the specified size, which is at most MAX_SIZE
+     */
+    private static int sizeClass( int size )
+    {
+        if( size <= MIN_SIZE )
+        {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros( size - 1 ) - MIN_SHIFT;
+    }
+
+    /**
+     * Remembers where the buffer was taken
+     */
+    private void lend( ByteBuffer buffer )
+    {
+        Integer key = Integer.valueOf( System.identityHashCode( buffer ) );
+        synchronized( this.loans )
+        {
+            List<Loan> list = this.loans.get( key );
+            if( list == null )
+            {
+                list = new ArrayList<Loan>( 1 );
+                this.loans.put( key, list );
+            }
+            list.add( new Loan( buffer, this.collected ) );
+        }
+        this.loanCount.incrementAndGet();
+    }
+
+    /**
+     * Forgets the loan of the buffer, if it was tracked
+     */
+    private void giveBack( ByteBuffer buffer )
+    {
+        Integer key = Integer.valueOf( System.identityHashCode( buffer ) );
+        synchronized( this.loans )
+        {
+            List<Loan> list = this.loans.get( key );
+            if( list == null )
+            {
+                return;
+            }
+            for( int i=0; i<list.size(); i++ )
+            {
+                Loan loan = list.get( i );
+                if( loan.get() == buffer )
+                {
+                    // Cleared, so that it is not queued once the buffer is collected
+                    loan.clear();
+                    list.remove( i );
+                    this.loanCount.decrementAndGet();
+                    break;
+                }
+            }
+            if( list.isEmpty() )
+            {
+                this.loans.remove( key );
+            }
+        }
+    }
+
+    /**
+     * Logs the buffers that were collected while they were still out
+     */
+    private void reportLeaks()
+    {
+        Loan loan;
+        while( ( loan = ( Loan )this.collected.poll() ) != null )
+        {
+            synchronized( this.loans )
+            {
+                // The key is gone with the buffer, so look for the loan itself
+                for( Map.Entry<Integer, List<Loan>> entry : this.loans.entrySet() )
+                {
+                    if( entry.getValue().remove( loan ) )
+                    {
+                        if( entry.getValue().isEmpty() )
+                        {
+                            this.loans.remove( entry.getKey() );
+                        }
+                        this.loanCount.decrementAndGet();
+                        break;
+                    }
+                }
+            }
+            this.leaked.increment();
+            Log.error( "A direct buffer of {} bytes was never given back to the pool", Integer.valueOf( loan.capacity ), loan.taken );
+        }
+    }
+}
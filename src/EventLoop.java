@@ -0,0 +1,187 @@
+// Import the Java classes
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * An EventLoop multiplexes many non-blocking client channels over a single thread
+ * 事件循环：用一个线程通过Selector处理多个非阻塞连接
+ */
+public class EventLoop extends Thread
+{
+    /**
+     * The selector that all of our channels are registered with
+     */
+    private Selector selector;
+
+    /**
+     * Tasks submitted from other threads, executed on the loop thread
+     */
+    private Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    /**
+     * Read buffer shared by every channel on this loop, borrowed from the DirectBufferPool
+     * while the loop runs; sessions only keep their partial line
+     */
+    private ByteBuffer readBuffer;
+
+    /**
+     * Our state: are we running or not?
+     */
+    private volatile boolean running;
+
+    /**
+     * Output limit and slow-consumer policy of our sessions
+     */
+    private int maxPending;
+    private SlowConsumerPolicy policy;
+
+    /**
+     * Creates a new EventLoop
+     *
+     * @param loopNumber    Our loop number, used for accounting purposes
+     * @param maxPending    The number of pending messages that makes a client slow
+     * @param policy        What to do with slow clients
+     */
+    public EventLoop( int loopNumber, int maxPending, SlowConsumerPolicy policy ) throws IOException
+    {
+        super( "EventLoop-" + loopNumber );
+        this.selector = Selector.open();
+        this.maxPending = maxPending;
+        this.policy = policy;
+    }
+
+    /**
+     * Returns true if the caller is running on this loop's thread
+     */
+    public boolean inEventLoop()
+    {
+        return Thread.currentThread() == this;
+    }
+
+    /**
+     * Registers a newly accepted channel with this loop
+     *
+     * @param channel   A non-blocking channel
+     * @param handler   The handler that will receive the channel's lines
+     */
+    public void register( final SocketChannel channel, final ChannelRequestHandler handler )
+    {
+        execute( new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    SelectionKey key = channel.register( selector, SelectionKey.OP_READ );
+                    ChannelSession session = new ChannelSession( EventLoop.this, channel, key, handler, maxPending, policy );
+                    key.attach( session );
+                    handler.handleConnect( session );
+                }
+                catch( IOException e )
+                {
+                    Log.error( "Cannot greet a new connection", e );
+                    try
+                    {
+                        channel.close();
+                    }
+                    catch( IOException ioe ) {}
+                }
+            }
+        } );
+    }
+
+    /**
+     * Runs the specified task on the loop thread
+     */
+    public void execute( Runnable task )
+    {
+        this.tasks.add( task );
+        if( !inEventLoop() )
+        {
+            this.selector.wakeup();
+        }
+    }
+
+    /**
+     * Stops the loop and closes every channel registered with it
+     */
+    public void shutdown()
+    {
+        this.running = false;
+        this.selector.wakeup();
+    }
+
+    /**
+     * The loop's main processing loop
+     */
+    public void run()
+    {
+        this.running = true;
+        this.readBuffer = DirectBufferPool.thePool.take( DirectBufferPool.MAX_SIZE );
+        while( running )
+        {
+            try
+            {
+                this.selector.select();
+
+                for( Iterator<SelectionKey> i=this.selector.selectedKeys().iterator(); i.hasNext(); )
+                {
+                    SelectionKey key = i.next();
+                    i.remove();
+
+                    ChannelSession session = ( ChannelSession )key.attachment();
+                    if( session == null || !key.isValid() )
+                    {
+                        continue;
+                    }
+                    if( key.isWritable() )
+                    {
+                        session.flushWrites();
+                    }
+                    if( key.isValid() && key.isReadable() )
+                    {
+                        session.read( this.readBuffer );
+                    }
+                }
+
+                // Run the tasks that other threads handed to us
+                Runnable task;
+                while( ( task = this.tasks.poll() ) != null )
+                {
+                    task.run();
+                }
+            }
+            catch( Exception e )
+            {
+                Log.error( "Event loop failed", e );
+            }
+        }
+
+        DirectBufferPool.thePool.give( this.readBuffer );
+        this.readBuffer = null;
+
+        // Close all of our channels
+        for( SelectionKey key : this.selector.keys() )
+        {
+            ChannelSession session = ( ChannelSession )key.attachment();
+            if( session != null )
+            {
+                session.disconnect();
+            }
+        }
+        try
+        {
+            this.selector.close();
+        }
+        catch( IOException e )
+        {
+            Log.error( "Cannot close the selector", e );
+        }
+    }
+}
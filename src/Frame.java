@@ -0,0 +1,163 @@
+// Import the Java classes
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * A Frame is one encoded line of the chat protocol.  A broadcast is encoded into a single
+ * Frame once and the same bytes are then handed to every recipient as a read-only view,
+ * instead of building and encoding the line again for each of them.
+ * 编码一次、所有接收者共享的消息帧
+ */
+public final class Frame
+{
+    /**
+     * The line terminator, the same one PrintWriter.println() writes
+     */
+    private static final String LINE_SEPARATOR = System.getProperty( "line.separator" );
+
+    private static final byte[] LINE_SEPARATOR_BYTES = LINE_SEPARATOR.getBytes( Charset.defaultCharset() );
+
+    private static final byte[] ROOM_PREFIX = { 'R', 'O', 'O', 'M', ' ' };
+
+    /**
+     * The encoded line, read-only.  It is a heap buffer: a frame lives only as long as its
+     * recipients' queues hold it, and allocating direct memory for every message costs far
+     * more than the copy a channel makes when it writes a heap buffer.
+     */
+    private final ByteBuffer bytes;
+
+    /**
+     * Where each line of a frame created by lines() ends, or null for a single line
+     */
+    private final int[] lineEnds;
+
+    private Frame( ByteBuffer bytes )
+    {
+        this( bytes, null );
+    }
+
+    private Frame( ByteBuffer bytes, int[] lineEnds )
+    {
+        this.bytes = bytes;
+        this.lineEnds = lineEnds;
+    }
+
+    /**
+     * Creates the frame "<command> <from>:<message>"
+     */
+    public static Frame message( String command, String from, String message )
+    {
+        StringBuilder sb = new StringBuilder( command.length() + from.length() + message.length() + 4 );
+        sb.append( command ).append( ' ' ).append( from ).append( ':' ).append( message );
+        return line( sb );
+    }
+
+    /**
+     * Creates the frame "<command> <from>:<message>" from a message that is still encoded,
+     * such as one in a CommandDecoder's buffer, copying its bytes as they are.  from is
+     * encoded already too; command must be ASCII.
+     */
+    public static Frame message( String command, byte[] from, byte[] message, int offset, int length )
+    {
+        ByteBuffer bytes = ByteBuffer.allocate( command.length() + from.length + length + 2 + LINE_SEPARATOR_BYTES.length );
+        for( int i=0; i<command.length(); i++ )
+        {
+            bytes.put( ( byte )command.charAt( i ) );
+        }
+        bytes.put( ( byte )' ' ).put( from ).put( ( byte )':' ).put( message, offset, length ).put( LINE_SEPARATOR_BYTES );
+        bytes.flip();
+        return new Frame( bytes.asReadOnlyBuffer() );
+    }
+
+    /**
+     * Creates the frame "ROOM <room> <from>:<message>" from a message that is still encoded,
+     * as above; room and from are encoded already too
+     */
+    public static Frame roomMessage( byte[] room, byte[] from, byte[] message, int offset, int length )
+    {
+        ByteBuffer bytes = ByteBuffer.allocate( 5 + room.length + from.length + length + 2 + LINE_SEPARATOR_BYTES.length );
+        bytes.put( ROOM_PREFIX ).put( room ).put( ( byte )' ' ).put( from ).put( ( byte )':' ).put( message, offset, length ).put( LINE_SEPARATOR_BYTES );
+        bytes.flip();
+        return new Frame( bytes.asReadOnlyBuffer() );
+    }
+
+    /**
+     * Creates the frame "<command> <argument>"
+     */
+    public static Frame notification( String command, String argument )
+    {
+        StringBuilder sb = new StringBuilder( command.length() + argument.length() + 3 );
+        sb.append( command ).append( ' ' ).append( argument );
+        return line( sb );
+    }
+
+    /**
+     * Creates a frame from a line of text, without its line terminator
+     */
+    public static Frame line( CharSequence text )
+    {
+        CharBuffer chars = CharBuffer.wrap( text.toString() + LINE_SEPARATOR );
+        ByteBuffer encoded = Charset.defaultCharset().encode( chars );
+        return new Frame( encoded.asReadOnlyBuffer() );
+    }
+
+    /**
+     * Creates a single frame holding several lines, each with its own line terminator; the
+     * frame remembers where each line ends, for viewsWithout()
+     */
+    public static Frame lines( List<? extends CharSequence> lines )
+    {
+        Charset charset = Charset.defaultCharset();
+        ByteBuffer[] encoded = new ByteBuffer[ lines.size() ];
+        int length = 0;
+        for( int i=0; i<encoded.length; i++ )
+        {
+            encoded[ i ] = charset.encode( CharBuffer.wrap( lines.get( i ) + LINE_SEPARATOR ) );
+            length += encoded[ i ].remaining();
+        }
+        ByteBuffer bytes = ByteBuffer.allocate( length );
+        int[] lineEnds = new int[ encoded.length ];
+        for( int i=0; i<encoded.length; i++ )
+        {
+            bytes.put( encoded[ i ] );
+            lineEnds[ i ] = bytes.position();
+        }
+        bytes.flip();
+        return new Frame( bytes.asReadOnlyBuffer(), lineEnds );
+    }
+
+    /**
+     * Returns a new read-only view of the frame with its own position, sharing the bytes
+     */
+    public ByteBuffer view()
+    {
+        return this.bytes.duplicate();
+    }
+
+    /**
+     * Returns read-only views of the frame without one of its lines, sharing the bytes: the
+     * lines before it and the lines after it, either of which may be empty
+     *
+     * @param line  The number of the line to leave out, counting from 0
+     */
+    public ByteBuffer[] viewsWithout( int line )
+    {
+        int start = line == 0 ? 0 : this.lineEnds[ line - 1 ];
+        int end = this.lineEnds == null ? this.bytes.limit() : this.lineEnds[ line ];
+        ByteBuffer before = this.bytes.duplicate();
+        before.limit( start );
+        ByteBuffer after = this.bytes.duplicate();
+        after.position( end );
+        return new ByteBuffer[] { before, after };
+    }
+
+    /**
+     * Returns the size of the frame in bytes
+     */
+    public int length()
+    {
+        return this.bytes.remaining();
+    }
+}
@@ -0,0 +1,516 @@
+// Import the Java classes
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A HistoryLog keeps every broadcast line in an append-only log of memory-mapped segment
+ * files, so that users who join late can page back through the room.
+ *
+ * Every line gets a sequential id.  A segment is a pair of files named after the id of its
+ * first line: "<id>.log" holds the records ( int length, long time, UTF-8 line ) back to back,
+ * and "<id>.idx" holds one int per line, the position of its record plus one ( 0 = not yet
+ * written ), so finding a line by id is one lookup in the segment map and one in its index.
+ *
+ * Lines are appended by a writer thread of its own, never by the thread that delivers them.
+ * The writer takes everything that is waiting, appends it and then forces both files to disk
+ * once for the whole group; readers only see lines once their group is on disk.  When the
+ * writer falls MAX_PENDING lines behind, new lines are dropped and counted as
+ * "history.dropped" rather than taking up more and more memory.
+ *
+ * Only the segment being appended to is mapped for writing; full segments are mapped read
+ * only.  At most maxSegments segments are kept: when a new one would exceed that, the oldest
+ * is dropped with its files, and its lines are gone from the history.
+ * 历史消息日志：内存映射的分段文件，带偏移量索引，后台线程批量写入并刷盘
+ */
+public class HistoryLog extends Thread
+{
+    /**
+     * The size of a segment's log file
+     */
+    public static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * The number of lines a segment's index has room for
+     */
+    public static final int INDEX_ENTRIES = 1024 * 1024;
+
+    /**
+     * The record header: length and time
+     */
+    private static final int HEADER = 12;
+
+    /**
+     * The most lines a single group commit takes from the queue
+     */
+    private static final int MAX_GROUP = 4096;
+
+    /**
+     * The number of segments kept unless told otherwise, 1GB of log
+     */
+    public static final int DEFAULT_MAX_SEGMENTS = 16;
+
+    /**
+     * The most lines that may wait for the writer
+     */
+    public static final int MAX_PENDING = 64 * 1024;
+
+    private static final LongAdder dropped = MetricsRegistry.theRegistry.counter( "history.dropped" );
+
+    /**
+     * Told about every line once it is on disk, on the history's own thread
+     */
+    public interface Listener
+    {
+        void committed( long id, String line );
+    }
+
+    /**
+     * A line read back from the log
+     */
+    public static class Entry
+    {
+        public final long id;
+
+        public final long time;
+
+        public final String line;
+
+        Entry( long id, long time, String line )
+        {
+            this.id = id;
+            this.time = time;
+            this.line = line;
+        }
+    }
+
+    /**
+     * One segment: the log and index files of a run of consecutive ids
+     */
+    private static class Segment
+    {
+        final long baseId;
+
+        final File logFile;
+
+        final File indexFile;
+
+        final FileChannel logChannel;
+
+        final FileChannel indexChannel;
+
+        final MappedByteBuffer log;
+
+        final MappedByteBuffer index;
+
+        /**
+         * Where the next record goes and how many lines the segment holds; writer thread only
+         */
+        int position;
+
+        int count;
+
+        /**
+         * Opens a segment, to be appended to or, once it is full, only to be read
+         */
+        Segment( File dir, long baseId, boolean writable ) throws IOException
+        {
+            this.baseId = baseId;
+            String name = String.format( "%020d", Long.valueOf( baseId ) );
+            this.logFile = new File( dir, name + ".log" );
+            this.indexFile = new File( dir, name + ".idx" );
+            String mode = writable ? "rw" : "r";
+            this.logChannel = new RandomAccessFile( this.logFile, mode ).getChannel();
+            this.indexChannel = new RandomAccessFile( this.indexFile, mode ).getChannel();
+            if( writable )
+            {
+                this.log = this.logChannel.map( FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE );
+                this.index = this.indexChannel.map( FileChannel.MapMode.READ_WRITE, 0, INDEX_ENTRIES * 4L );
+            }
+            else
+            {
+                this.log = this.logChannel.map( FileChannel.MapMode.READ_ONLY, 0, this.logChannel.size() );
+                this.index = this.indexChannel.map( FileChannel.MapMode.READ_ONLY, 0, this.indexChannel.size() );
+            }
+        }
+
+        /**
+         * Finds the lines that made it to disk: the index is filled in order, so the written
+         * entries are a prefix of it
+         */
+        void recover()
+        {
+            int low = 0;
+            int high = INDEX_ENTRIES;
+            while( low < high )
+            {
+                int middle = ( low + high ) >>> 1;
+                if( this.index.getInt( middle * 4 ) != 0 )
+                {
+                    low = middle + 1;
+                }
+                else
+                {
+                    high = middle;
+                }
+            }
+            this.count = low;
+            if( this.count > 0 )
+            {
+                int last = this.index.getInt( ( this.count - 1 ) * 4 ) - 1;
+                this.position = last + HEADER + this.log.getInt( last );
+            }
+        }
+
+        boolean hasRoom( int length )
+        {
+            return this.count < INDEX_ENTRIES && this.position + HEADER + length <= SEGMENT_SIZE;
+        }
+
+        void append( long time, byte[] line, int length )
+        {
+            this.log.putInt( this.position, length );
+            this.log.putLong( this.position + 4, time );
+            ByteBuffer record = this.log.duplicate();
+            record.position( this.position + HEADER );
+            record.put( line, 0, length );
+            this.index.putInt( this.count * 4, this.position + 1 );
+            this.position += HEADER + length;
+            this.count++;
+        }
+
+        Entry read( long id )
+        {
+            int position = this.index.getInt( ( int )( id - this.baseId ) * 4 ) - 1;
+            int length = this.log.getInt( position );
+            long time = this.log.getLong( position + 4 );
+            byte[] line = new byte[ length ];
+            ByteBuffer record = this.log.duplicate();
+            record.position( position + HEADER );
+            record.get( line );
+            return new Entry( id, time, new String( line, StandardCharsets.UTF_8 ) );
+        }
+
+        void force()
+        {
+            this.log.force();
+            this.index.force();
+        }
+
+        void close()
+        {
+            try
+            {
+                this.logChannel.close();
+                this.indexChannel.close();
+            }
+            catch( IOException e )
+            {
+                Log.error( "Cannot close a history segment", e );
+            }
+        }
+
+        /**
+         * Closes the segment and deletes its files; readers that still hold it can finish,
+         * since the mappings outlive the files
+         */
+        void delete()
+        {
+            close();
+            if( !this.logFile.delete() || !this.indexFile.delete() )
+            {
+                Log.warn( "Cannot delete history segment {}", this.logFile );
+            }
+        }
+    }
+
+    /**
+     * The directory holding the segment files
+     */
+    private File dir;
+
+    /**
+     * All of the segments, by the id of their first line
+     */
+    private ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<Long, Segment>();
+
+    /**
+     * The most segments that are kept
+     */
+    private int maxSegments;
+
+    /**
+     * The segment being appended to; writer thread only
+     */
+    private Segment current;
+
+    /**
+     * The id the next line will get; writer thread only
+     */
+    private long writeId;
+
+    /**
+     * The id after the last line that is on disk; readers never look beyond it
+     */
+    private volatile long committedId;
+
+    /**
+     * Lines waiting to be appended
+     */
+    private BlockingQueue<String> pending = new LinkedBlockingQueue<String>( MAX_PENDING );
+
+    /**
+     * Told about the lines as they are committed; may be null
+     */
+    private volatile Listener listener;
+
+    /**
+     * The number of group commits so far, for accounting purposes
+     */
+    private volatile long commits;
+
+    private volatile boolean running = true;
+
+    /**
+     * Opens the history in the specified directory, creating it if needed, and picks up
+     * where the last run left off; keeps DEFAULT_MAX_SEGMENTS segments
+     */
+    public HistoryLog( File dir ) throws IOException
+    {
+        this( dir, DEFAULT_MAX_SEGMENTS );
+    }
+
+    /**
+     * Opens the history in the specified directory, as above
+     *
+     * @param maxSegments  How many segments are kept before the oldest is dropped
+     */
+    public HistoryLog( File dir, int maxSegments ) throws IOException
+    {
+        super( "HistoryLog" );
+        this.dir = dir;
+        this.maxSegments = Math.max( 1, maxSegments );
+        if( !dir.isDirectory() && !dir.mkdirs() )
+        {
+            throw new IOException( "Cannot create history directory " + dir );
+        }
+        List<Long> baseIds = new ArrayList<Long>();
+        File[] files = dir.listFiles();
+        for( int i=0; i<files.length; i++ )
+        {
+            String name = files[ i ].getName();
+            if( name.endsWith( ".log" ) && name.matches( "\\d{20}\\.log" ) )
+            {
+                baseIds.add( Long.valueOf( name.substring( 0, 20 ) ) );
+            }
+        }
+        Collections.sort( baseIds );
+
+        // Only the last segment is appended to; the others are full
+        long last = baseIds.isEmpty() ? 0 : baseIds.get( baseIds.size() - 1 ).longValue();
+        for( int i=0; i<baseIds.size()-1; i++ )
+        {
+            long baseId = baseIds.get( i ).longValue();
+            this.segments.put( Long.valueOf( baseId ), new Segment( dir, baseId, false ) );
+        }
+        this.current = new Segment( dir, last, true );
+        this.current.recover();
+        this.segments.put( Long.valueOf( last ), this.current );
+        trim();
+        this.writeId = this.current.baseId + this.current.count;
+        this.committedId = this.writeId;
+        setDaemon( true );
+    }
+
+    /**
+     * Queues a line to be appended; returns at once, and drops the line if too many are waiting
+     */
+    public void append( String line )
+    {
+        if( this.running && !this.pending.offer( line ) )
+        {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Returns the id that the next line will get; every smaller id is readable
+     */
+    public long getNextId()
+    {
+        return this.committedId;
+    }
+
+    /**
+     * Returns the id of the oldest line that is kept
+     */
+    public long getFirstId()
+    {
+        return this.segments.firstKey().longValue();
+    }
+
+    /**
+     * Sets the listener that is told about every line once it is on disk
+     */
+    public void setListener( Listener listener )
+    {
+        this.listener = listener;
+    }
+
+    /**
+     * Returns the line with the specified id, or null if there is no such line
+     */
+    public Entry get( long id )
+    {
+        List<Entry> entries = read( id + 1, 1 );
+        return entries.isEmpty() || entries.get( 0 ).id != id ? null : entries.get( 0 );
+    }
+
+    /**
+     * Returns the number of group commits so far
+     */
+    public long getCommits()
+    {
+        return this.commits;
+    }
+
+    /**
+     * Returns up to count of the most recent lines before the specified id, oldest first
+     */
+    public List<Entry> read( long beforeId, int count )
+    {
+        long end = Math.min( beforeId, this.committedId );
+        long start = Math.max( this.segments.firstKey().longValue(), end - Math.max( 0, count ) );
+        List<Entry> entries = new ArrayList<Entry>( ( int )Math.max( 0, end - start ) );
+        Segment segment = null;
+        long segmentEnd = 0;
+        for( long id=start; id<end; id++ )
+        {
+            if( segment == null || id >= segmentEnd )
+            {
+                Map.Entry<Long, Segment> floor = this.segments.floorEntry( Long.valueOf( id ) );
+                if( floor == null )
+                {
+                    // Dropped while we read; carry on from the oldest line that is left
+                    id = this.segments.firstKey().longValue() - 1;
+                    continue;
+                }
+                segment = floor.getValue();
+                Long next = this.segments.higherKey( Long.valueOf( segment.baseId ) );
+                segmentEnd = next == null ? Long.MAX_VALUE : next.longValue();
+            }
+            entries.add( segment.read( id ) );
+        }
+        return entries;
+    }
+
+    /**
+     * Stops the writer once the lines already queued have been appended
+     */
+    public void shutdown()
+    {
+        this.running = false;
+        interrupt();
+    }
+
+    /**
+     * Appends and forces the waiting lines one group at a time
+     */
+    public void run()
+    {
+        List<String> group = new ArrayList<String>();
+        while( this.running || !this.pending.isEmpty() )
+        {
+            try
+            {
+                if( this.running )
+                {
+                    group.add( this.pending.take() );
+                }
+                this.pending.drainTo( group, MAX_GROUP - group.size() );
+                if( group.isEmpty() )
+                {
+                    continue;
+                }
+
+                // One force for the whole group; segments that filled up were forced as they closed
+                long time = System.currentTimeMillis();
+                for( int i=0; i<group.size(); i++ )
+                {
+                    write( time, group.get( i ) );
+                }
+                this.current.force();
+
+                Listener listener = this.listener;
+                if( listener != null )
+                {
+                    long id = this.writeId - group.size();
+                    for( int i=0; i<group.size(); i++ )
+                    {
+                        listener.committed( id + i, group.get( i ) );
+                    }
+                }
+                this.committedId = this.writeId;
+                this.commits++;
+            }
+            catch( InterruptedException e )
+            {
+                // shutdown() wakes us; drain what is left
+            }
+            catch( Exception e )
+            {
+                Log.error( "Cannot write the history", e );
+            }
+            group.clear();
+        }
+        for( Segment segment : this.segments.values() )
+        {
+            segment.close();
+        }
+    }
+
+    /**
+     * Appends one line, starting a new segment when the current one is full
+     */
+    private void write( long time, String line ) throws IOException
+    {
+        byte[] bytes = line.getBytes( StandardCharsets.UTF_8 );
+        int length = Math.min( bytes.length, SEGMENT_SIZE - HEADER );
+        if( !this.current.hasRoom( length ) )
+        {
+            // The full segment is only read from now on
+            this.current.force();
+            this.segments.put( Long.valueOf( this.current.baseId ), new Segment( this.dir, this.current.baseId, false ) );
+            this.current.close();
+            this.current = new Segment( this.dir, this.writeId, true );
+            this.segments.put( Long.valueOf( this.writeId ), this.current );
+            trim();
+        }
+        this.current.append( time, bytes, length );
+        this.writeId++;
+    }
+
+    /**
+     * Drops the oldest segments until no more than maxSegments are left
+     */
+    private void trim()
+    {
+        while( this.segments.size() > this.maxSegments )
+        {
+            this.segments.pollFirstEntry().getValue().delete();
+            Log.info( "Dropped the history before line {}", this.segments.firstKey() );
+        }
+    }
+}
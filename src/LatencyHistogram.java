@@ -0,0 +1,128 @@
+// Import the Java classes
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A LatencyHistogram counts durations in power-of-two microsecond buckets.  Recording is
+ * a couple of atomic increments, so it can sit on hot paths; percentiles are approximate
+ * to within a factor of two, which is enough to size a pool or spot a regression.
+ * 延迟直方图：按2的幂（微秒）分桶
+ */
+public class LatencyHistogram
+{
+    /**
+     * Bucket i counts durations in [2^(i-1), 2^i) microseconds; bucket 0 counts durations below 1us
+     */
+    private static final int BUCKETS = 40;
+
+    private AtomicLongArray buckets = new AtomicLongArray( BUCKETS );
+
+    private LongAdder count = new LongAdder();
+
+    private LongAdder totalNanos = new LongAdder();
+
+    private volatile long maxNanos = 0;
+
+    /**
+     * Records a duration
+     *
+     * @param nanos     The duration in nanoseconds
+     */
+    public void record( long nanos )
+    {
+        if( nanos < 0 )
+        {
+            nanos = 0;
+        }
+        long micros = nanos / 1000;
+        int bucket = Math.min( BUCKETS - 1, 64 - Long.numberOfLeadingZeros( micros ) );
+        this.buckets.incrementAndGet( bucket );
+        this.count.increment();
+        this.totalNanos.add( nanos );
+        if( nanos > this.maxNanos )
+        {
+            // Racy, but only ever loses a maximum to a concurrent, similar one
+            this.maxNanos = nanos;
+        }
+    }
+
+    /**
+     * Returns the number of recorded durations
+     */
+    public long getCount()
+    {
+        return this.count.sum();
+    }
+
+    /**
+     * Returns the mean duration in microseconds
+     */
+    public double getMeanMicros()
+    {
+        long n = this.count.sum();
+        return n == 0 ? 0 : this.totalNanos.sum() / 1000.0 / n;
+    }
+
+    /**
+     * Returns the largest recorded duration in microseconds
+     */
+    public long getMaxMicros()
+    {
+        return this.maxNanos / 1000;
+    }
+
+    /**
+     * Returns an upper bound of the specified percentile in microseconds
+     *
+     * @param percentile    A value between 0 and 100
+     */
+    public long getPercentileMicros( double percentile )
+    {
+        long n = this.count.sum();
+        if( n == 0 )
+        {
+            return 0;
+        }
+        long rank = ( long )Math.ceil( n * percentile / 100.0 );
+        long seen = 0;
+        for( int i=0; i<BUCKETS; i++ )
+        {
+            seen += this.buckets.get( i );
+            if( seen >= rank )
+            {
+                return Math.min( 1L << i, getMaxMicros() );
+            }
+        }
+        return getMaxMicros();
+    }
+
+    /**
+     * Returns the count of every non-empty bucket, as "<upper bound in us>:<count>" pairs
+     */
+    public String getBuckets()
+    {
+        StringBuffer sb = new StringBuffer();
+        for( int i=0; i<BUCKETS; i++ )
+        {
+            long n = this.buckets.get( i );
+            if( n > 0 )
+            {
+                if( sb.length() > 0 )
+                {
+                    sb.append( "," );
+                }
+                sb.append( 1L << i ).append( ":" ).append( n );
+            }
+        }
+        return sb.toString();
+    }
+
+    public String toString()
+    {
+        return "count=" + getCount()
+                + " mean=" + ( long )getMeanMicros() + "us"
+                + " p50=" + getPercentileMicros( 50 ) + "us"
+                + " p99=" + getPercentileMicros( 99 ) + "us"
+                + " max=" + getMaxMicros() + "us";
+    }
+}
@@ -0,0 +1,503 @@
+// Import the Java classes
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The server's log.  Threads that log only fill in a slot of a ring buffer: the level, the
+ * time, the thread's name, a format and up to two arguments.  A writer thread of its own
+ * formats the slots and writes them to a rolling file ( or to the console ), so no thread that
+ * accepts a connection or delivers a message ever waits for the disk or the console.
+ *
+ * The format is only formatted when the line is written: every "{}" is replaced by the next
+ * argument, so the arguments must not change after they are logged.  A call below the
+ * current level returns after reading one volatile field, without formatting or allocating.
+ * When the writer falls a whole ring behind, new lines are dropped and counted as
+ * "log.dropped" rather than making the caller wait.
+ * 异步日志：调用线程只把日志写入环形缓冲区，由后台线程格式化并写入滚动文件
+ */
+public class Log extends Thread
+{
+    public static final int DEBUG = 0;
+    public static final int INFO = 1;
+    public static final int WARN = 2;
+    public static final int ERROR = 3;
+    public static final int OFF = 4;
+
+    private static final String[] LEVEL_NAMES = { "DEBUG", "INFO ", "WARN ", "ERROR" };
+
+    /**
+     * The number of slots in the ring
+     */
+    private static final int CAPACITY = 8192;
+
+    /**
+     * How long the writer sleeps when the ring is empty; loggers never wake it
+     */
+    private static final long IDLE_NANOS = 10L * 1000 * 1000;
+
+    /**
+     * The name of the log file in its directory; older files get ".1", ".2", ...
+     */
+    private static final String FILE_NAME = "chatserver.log";
+
+    /**
+     * Lines below this level are not logged
+     */
+    private static volatile int level = INFO;
+
+    /**
+     * The only log; its writer thread starts with the class
+     */
+    private static final Log theLog = new Log();
+
+    /**
+     * One line waiting to be written.  Its sequence tells whose turn it is, as in
+     * RingBufferQueue: a logger may fill it at position p when the sequence is p, the writer
+     * may write it when the sequence is p + 1.
+     */
+    private static class Slot
+    {
+        volatile long sequence;
+
+        int level;
+
+        long time;
+
+        String thread;
+
+        String format;
+
+        Object argument1;
+
+        Object argument2;
+
+        Throwable thrown;
+    }
+
+    private final Slot[] slots = new Slot[ CAPACITY ];
+
+    /**
+     * The next position to log at
+     */
+    private final AtomicLong tail = new AtomicLong( 0 );
+
+    /**
+     * The next position to write; only the writer thread touches it
+     */
+    private long head = 0;
+
+    private final LongAdder dropped = MetricsRegistry.theRegistry.counter( "log.dropped" );
+
+    /**
+     * The directory of the rolling file, or null to write to the console; read by the writer
+     * before every batch
+     */
+    private volatile File directory;
+
+    private volatile long maxFileSize = 10L * 1024 * 1024;
+
+    private volatile int maxFiles = 5;
+
+    private volatile boolean running = true;
+
+    /**
+     * The file being written, and the directory it was opened in; writer thread only
+     */
+    private FileOutputStream file;
+    private Writer fileWriter;
+    private File openDirectory;
+
+    /**
+     * Formatting state of the writer thread, reused for every line
+     */
+    private final StringBuilder line = new StringBuilder( 256 );
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat( "yyyy-MM-dd HH:mm:ss", Locale.ROOT );
+    private long formattedSecond = -1;
+    private String formattedDate;
+
+    private Log()
+    {
+        super( "Log writer" );
+        for( int i=0; i<CAPACITY; i++ )
+        {
+            this.slots[ i ] = new Slot();
+            this.slots[ i ].sequence = i;
+        }
+        setDaemon( true );
+        start();
+
+        // Write what is still in the ring when the JVM exits
+        Runtime.getRuntime().addShutdownHook( new Thread( "Log shutdown" )
+        {
+            public void run()
+            {
+                shutdown();
+            }
+        } );
+    }
+
+    /**
+     * Sets the lowest level that is logged
+     */
+    public static void setLevel( int newLevel )
+    {
+        level = newLevel;
+    }
+
+    public static boolean isDebugEnabled()
+    {
+        return level <= DEBUG;
+    }
+
+    /**
+     * Parses "debug", "info", "warn", "error" or "off"
+     */
+    public static int parseLevel( String name )
+    {
+        for( int i=0; i<LEVEL_NAMES.length; i++ )
+        {
+            if( LEVEL_NAMES[ i ].trim().equalsIgnoreCase( name ) )
+            {
+                return i;
+            }
+        }
+        if( name.equalsIgnoreCase( "off" ) )
+        {
+            return OFF;
+        }
+        throw new IllegalArgumentException( "Unknown log level: " + name );
+    }
+
+    /**
+     * Writes the log to a file in the specified directory from now on, or to the console if
+     * directory is null.  The file is renamed to "<name>.1" when it grows past maxFileSize,
+     * "<name>.1" to "<name>.2" and so on; at most maxFiles old files are kept.
+     */
+    public static void setDirectory( File directory, long maxFileSize, int maxFiles )
+    {
+        theLog.maxFileSize = Math.max( 1024, maxFileSize );
+        theLog.maxFiles = Math.max( 1, maxFiles );
+        theLog.directory = directory;
+    }
+
+    public static void debug( String format )
+    {
+        if( level <= DEBUG )
+        {
+            theLog.append( DEBUG, format, null, null, null );
+        }
+    }
+
+    public static void debug( String format, Object argument )
+    {
+        if( level <= DEBUG )
+        {
+            theLog.append( DEBUG, format, argument, null, null );
+        }
+    }
+
+    public static void debug( String format, Object argument1, Object argument2 )
+    {
+        if( level <= DEBUG )
+        {
+            theLog.append( DEBUG, format, argument1, argument2, null );
+        }
+    }
+
+    public static void info( String format )
+    {
+        if( level <= INFO )
+        {
+            theLog.append( INFO, format, null, null, null );
+        }
+    }
+
+    public static void info( String format, Object argument )
+    {
+        if( level <= INFO )
+        {
+            theLog.append( INFO, format, argument, null, null );
+        }
+    }
+
+    public static void info( String format, Object argument1, Object argument2 )
+    {
+        if( level <= INFO )
+        {
+            theLog.append( INFO, format, argument1, argument2, null );
+        }
+    }
+
+    public static void warn( String format )
+    {
+        if( level <= WARN )
+        {
+            theLog.append( WARN, format, null, null, null );
+        }
+    }
+
+    public static void warn( String format, Object argument )
+    {
+        if( level <= WARN )
+        {
+            theLog.append( WARN, format, argument, null, null );
+        }
+    }
+
+    public static void warn( String format, Object argument1, Object argument2 )
+    {
+        if( level <= WARN )
+        {
+            theLog.append( WARN, format, argument1, argument2, null );
+        }
+    }
+
+    public static void error( String format, Throwable thrown )
+    {
+        if( level <= ERROR )
+        {
+            theLog.append( ERROR, format, null, null, thrown );
+        }
+    }
+
+    public static void error( String format, Object argument, Throwable thrown )
+    {
+        if( level <= ERROR )
+        {
+            theLog.append( ERROR, format, argument, null, thrown );
+        }
+    }
+
+    /**
+     * Claims a slot and fills it in, or drops the line if the ring is full
+     */
+    private void append( int lineLevel, String format, Object argument1, Object argument2, Throwable thrown )
+    {
+        long position = this.tail.get();
+        Slot slot;
+        while( true )
+        {
+            slot = this.slots[ ( int )( position & ( CAPACITY - 1 ) ) ];
+            long difference = slot.sequence - position;
+            if( difference == 0 )
+            {
+                if( this.tail.compareAndSet( position, position + 1 ) )
+                {
+                    break;
+                }
+                position = this.tail.get();
+            }
+            else if( difference < 0 )
+            {
+                // The writer has not written this slot one lap ago yet
+                this.dropped.increment();
+                return;
+            }
+            else
+            {
+                position = this.tail.get();
+            }
+        }
+
+        slot.level = lineLevel;
+        slot.time = System.currentTimeMillis();
+        slot.thread = Thread.currentThread().getName();
+        slot.format = format;
+        slot.argument1 = argument1;
+        slot.argument2 = argument2;
+        slot.thrown = thrown;
+        slot.sequence = position + 1;
+    }
+
+    /**
+     * Writes everything in the ring, then closes the file; the writer thread stops
+     */
+    public static void shutdown()
+    {
+        theLog.running = false;
+        LockSupport.unpark( theLog );
+        try
+        {
+            theLog.join( 2000 );
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void run()
+    {
+        while( true )
+        {
+            boolean wasRunning = this.running;
+            try
+            {
+                if( drain() == 0 )
+                {
+                    if( !wasRunning )
+                    {
+                        break;
+                    }
+                    LockSupport.parkNanos( IDLE_NANOS );
+                }
+            }
+            catch( Exception e )
+            {
+                // Nowhere left to report it but the console
+                e.printStackTrace();
+                LockSupport.parkNanos( IDLE_NANOS );
+            }
+        }
+        closeFile();
+    }
+
+    /**
+     * Writes the lines that are waiting and flushes them
+     *
+     * @return  The number of lines written
+     */
+    private int drain() throws IOException
+    {
+        Slot slot = this.slots[ ( int )( this.head & ( CAPACITY - 1 ) ) ];
+        if( slot.sequence != this.head + 1 )
+        {
+            return 0;
+        }
+        Writer out = openWriter();
+        int written = 0;
+        while( slot.sequence == this.head + 1 )
+        {
+            format( slot );
+            out.append( this.line );
+            if( slot.thrown != null )
+            {
+                PrintWriter trace = new PrintWriter( out );
+                slot.thrown.printStackTrace( trace );
+                trace.flush();
+            }
+
+            // Hand the slot back to the loggers, one lap ahead
+            slot.thread = null;
+            slot.format = null;
+            slot.argument1 = null;
+            slot.argument2 = null;
+            slot.thrown = null;
+            slot.sequence = this.head + CAPACITY;
+            this.head++;
+            written++;
+            slot = this.slots[ ( int )( this.head & ( CAPACITY - 1 ) ) ];
+        }
+        out.flush();
+        if( this.file != null && this.file.getChannel().size() >= this.maxFileSize )
+        {
+            roll();
+        }
+        return written;
+    }
+
+    /**
+     * Formats a slot into our line: "<date> <level> [<thread>] <message>"
+     */
+    private void format( Slot slot )
+    {
+        StringBuilder sb = this.line;
+        sb.setLength( 0 );
+        long second = slot.time / 1000;
+        if( second != this.formattedSecond )
+        {
+            this.formattedDate = this.dateFormat.format( new Date( slot.time ) );
+            this.formattedSecond = second;
+        }
+        sb.append( this.formattedDate ).append( '.' );
+        int millis = ( int )( slot.time % 1000 );
+        if( millis < 100 )
+        {
+            sb.append( '0' );
+        }
+        if( millis < 10 )
+        {
+            sb.append( '0' );
+        }
+        sb.append( millis ).append( ' ' ).append( LEVEL_NAMES[ slot.level ] ).append( " [" ).append( slot.thread ).append( "] " );
+
+        String format = slot.format;
+        Object argument = slot.argument1;
+        int arguments = 0;
+        int start = 0;
+        int placeholder;
+        while( arguments < 2 && ( placeholder = format.indexOf( "{}", start ) ) >= 0 )
+        {
+            sb.append( format, start, placeholder ).append( arguments == 0 ? slot.argument1 : slot.argument2 );
+            start = placeholder + 2;
+            arguments++;
+        }
+        sb.append( format, start, format.length() ).append( System.lineSeparator() );
+    }
+
+    /**
+     * Returns the writer for the current destination, opening the file if it changed
+     */
+    private Writer openWriter() throws IOException
+    {
+        File dir = this.directory;
+        if( dir == null )
+        {
+            closeFile();
+            return new OutputStreamWriter( System.out );
+        }
+        if( this.fileWriter == null || !dir.equals( this.openDirectory ) )
+        {
+            closeFile();
+            dir.mkdirs();
+            this.file = new FileOutputStream( new File( dir, FILE_NAME ), true );
+            this.fileWriter = new OutputStreamWriter( this.file, StandardCharsets.UTF_8 );
+            this.openDirectory = dir;
+        }
+        return this.fileWriter;
+    }
+
+    /**
+     * Shifts the files by one, dropping the oldest, and starts a new file
+     */
+    private void roll()
+    {
+        File dir = this.openDirectory;
+        closeFile();
+        new File( dir, FILE_NAME + "." + this.maxFiles ).delete();
+        for( int i=this.maxFiles-1; i>=1; i-- )
+        {
+            new File( dir, FILE_NAME + "." + i ).renameTo( new File( dir, FILE_NAME + "." + ( i + 1 ) ) );
+        }
+        new File( dir, FILE_NAME ).renameTo( new File( dir, FILE_NAME + ".1" ) );
+    }
+
+    private void closeFile()
+    {
+        if( this.fileWriter != null )
+        {
+            try
+            {
+                this.fileWriter.close();
+            }
+            catch( IOException e )
+            {
+                // Nothing more we can do
+            }
+            this.fileWriter = null;
+            this.file = null;
+            this.openDirectory = null;
+        }
+    }
+}
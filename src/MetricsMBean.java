@@ -0,0 +1,92 @@
+// Import the Java classes
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanConstructorInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+/**
+ * A MetricsMBean shows one group of the MetricsRegistry through JMX, one read-only attribute
+ * per value, named after the metric without the group: "accepted" for
+ * "connections.accepted".  The attributes are looked up on every call, so metrics that are
+ * registered later show up too.
+ * 通过JMX查看一组服务器指标
+ */
+public class MetricsMBean implements DynamicMBean
+{
+    private MetricsRegistry registry;
+
+    private String group;
+
+    public MetricsMBean( MetricsRegistry registry, String group )
+    {
+        this.registry = registry;
+        this.group = group;
+    }
+
+    public Object getAttribute( String attribute ) throws AttributeNotFoundException
+    {
+        Number value = this.registry.snapshot( this.group ).get( this.group + "." + attribute );
+        if( value == null )
+        {
+            throw new AttributeNotFoundException( attribute );
+        }
+        return value;
+    }
+
+    public AttributeList getAttributes( String[] attributes )
+    {
+        Map<String, Number> values = this.registry.snapshot( this.group );
+        AttributeList list = new AttributeList();
+        for( int i=0; i<attributes.length; i++ )
+        {
+            Number value = values.get( this.group + "." + attributes[ i ] );
+            if( value != null )
+            {
+                list.add( new Attribute( attributes[ i ], value ) );
+            }
+        }
+        return list;
+    }
+
+    public void setAttribute( Attribute attribute ) throws AttributeNotFoundException
+    {
+        throw new AttributeNotFoundException( attribute.getName() + " is read-only" );
+    }
+
+    public AttributeList setAttributes( AttributeList attributes )
+    {
+        return new AttributeList();
+    }
+
+    public Object invoke( String actionName, Object[] params, String[] signature ) throws ReflectionException
+    {
+        // We have no operations
+        throw new ReflectionException( new NoSuchMethodException( actionName ) );
+    }
+
+    public MBeanInfo getMBeanInfo()
+    {
+        Map<String, Number> values = this.registry.snapshot( this.group );
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[ values.size() ];
+        int prefix = this.group.length() + 1;
+        int index = 0;
+        for( Iterator<Map.Entry<String, Number>> i=values.entrySet().iterator(); i.hasNext(); )
+        {
+            Map.Entry<String, Number> entry = i.next();
+            String name = entry.getKey();
+            attributes[ index++ ] = new MBeanAttributeInfo( name.substring( prefix ),
+                    entry.getValue().getClass().getName(), name, true, false, false );
+        }
+        return new MBeanInfo( getClass().getName(), "ChatServer metrics: " + this.group, attributes,
+                new MBeanConstructorInfo[ 0 ], new MBeanOperationInfo[ 0 ], new MBeanNotificationInfo[ 0 ] );
+    }
+}
@@ -0,0 +1,224 @@
+// Import the Java classes
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+/**
+ * A MetricsRegistry holds the server's metrics by name: counters, which are LongAdders so
+ * that any number of threads can count at once without fighting over one cache line;
+ * latency histograms; and gauges, which are only computed when the metrics are read.
+ *
+ * Names are dotted, such as "connections.accepted"; the part before the first dot is the
+ * group.  The metrics are read with the STAT command and, once enableJmx() has been called,
+ * through one MBean per group, "ChatServer:type=Metrics,name=<group>".
+ * 服务器指标：分段计数器、延迟直方图以及读取时才计算的瞬时值，可通过STAT命令和JMX查看
+ */
+public class MetricsRegistry
+{
+    /**
+     * The registry of this process
+     */
+    public static final MetricsRegistry theRegistry = new MetricsRegistry();
+
+    /**
+     * A value that is computed when it is read, such as the length of a queue
+     */
+    public interface Gauge
+    {
+        public long get();
+    }
+
+    /**
+     * The metrics by name, sorted so that the groups stay together
+     */
+    private ConcurrentSkipListMap<String, Object> metrics = new ConcurrentSkipListMap<String, Object>();
+
+    /**
+     * The groups that have an MBean; null until JMX is enabled
+     */
+    private Map<String, ObjectName> mbeans;
+
+    /**
+     * Returns the counter with the specified name, creating it if needed
+     */
+    public LongAdder counter( String name )
+    {
+        return ( LongAdder )register( name, new LongAdder() );
+    }
+
+    /**
+     * Returns the histogram with the specified name, creating it if needed
+     */
+    public LatencyHistogram histogram( String name )
+    {
+        return ( LatencyHistogram )register( name, new LatencyHistogram() );
+    }
+
+    /**
+     * Registers a histogram that already exists, replacing one of the same name
+     */
+    public void histogram( String name, LatencyHistogram histogram )
+    {
+        this.metrics.put( name, histogram );
+        registerGroup( name );
+    }
+
+    /**
+     * Registers a gauge, replacing one of the same name
+     */
+    public void gauge( String name, Gauge gauge )
+    {
+        this.metrics.put( name, gauge );
+        registerGroup( name );
+    }
+
+    private Object register( String name, Object metric )
+    {
+        Object existing = this.metrics.putIfAbsent( name, metric );
+        if( existing != null )
+        {
+            return existing;
+        }
+        registerGroup( name );
+        return metric;
+    }
+
+    /**
+     * Returns the current values of the metrics of the specified group, or of all metrics if
+     * group is null, by name.  A histogram gives five values, "<name>.count", ".meanMicros",
+     * ".p50Micros", ".p99Micros" and ".maxMicros".
+     */
+    public Map<String, Number> snapshot( String group )
+    {
+        Map<String, Number> values = new LinkedHashMap<String, Number>();
+        for( Iterator<Map.Entry<String, Object>> i=this.metrics.entrySet().iterator(); i.hasNext(); )
+        {
+            Map.Entry<String, Object> entry = i.next();
+            String name = entry.getKey();
+            if( group != null && !group.equals( groupOf( name ) ) )
+            {
+                continue;
+            }
+            Object metric = entry.getValue();
+            if( metric instanceof LongAdder )
+            {
+                values.put( name, Long.valueOf( ( ( LongAdder )metric ).sum() ) );
+            }
+            else if( metric instanceof Gauge )
+            {
+                values.put( name, Long.valueOf( ( ( Gauge )metric ).get() ) );
+            }
+            else
+            {
+                LatencyHistogram histogram = ( LatencyHistogram )metric;
+                values.put( name + ".count", Long.valueOf( histogram.getCount() ) );
+                values.put( name + ".meanMicros", Double.valueOf( histogram.getMeanMicros() ) );
+                values.put( name + ".p50Micros", Long.valueOf( histogram.getPercentileMicros( 50 ) ) );
+                values.put( name + ".p99Micros", Long.valueOf( histogram.getPercentileMicros( 99 ) ) );
+                values.put( name + ".maxMicros", Long.valueOf( histogram.getMaxMicros() ) );
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Returns one "<name> <value>" line per metric; histograms are summarized on one line
+     */
+    public List<String> lines()
+    {
+        List<String> lines = new ArrayList<String>( this.metrics.size() );
+        for( Iterator<Map.Entry<String, Object>> i=this.metrics.entrySet().iterator(); i.hasNext(); )
+        {
+            Map.Entry<String, Object> entry = i.next();
+            Object metric = entry.getValue();
+            String value;
+            if( metric instanceof LongAdder )
+            {
+                value = String.valueOf( ( ( LongAdder )metric ).sum() );
+            }
+            else if( metric instanceof Gauge )
+            {
+                value = String.valueOf( ( ( Gauge )metric ).get() );
+            }
+            else
+            {
+                value = metric.toString();
+            }
+            lines.add( entry.getKey() + " " + value );
+        }
+        return lines;
+    }
+
+    /**
+     * Returns the group of a metric: its name up to the first dot
+     */
+    static String groupOf( String name )
+    {
+        int dot = name.indexOf( '.' );
+        return dot < 0 ? name : name.substring( 0, dot );
+    }
+
+    /**
+     * Registers an MBean for every group with the platform MBean server, now and as new
+     * groups appear
+     */
+    public void enableJmx()
+    {
+        synchronized( this )
+        {
+            if( this.mbeans != null )
+            {
+                return;
+            }
+            this.mbeans = new LinkedHashMap<String, ObjectName>();
+        }
+        for( Iterator<String> i=this.metrics.keySet().iterator(); i.hasNext(); )
+        {
+            registerGroup( i.next() );
+        }
+    }
+
+    /**
+     * Registers the MBean of the metric's group if JMX is enabled and it has none yet.  The
+     * group is claimed under our lock, but the MBean is registered outside of it: the MBean
+     * server reads the group's gauges, and a gauge may belong to a class that is still being
+     * initialized by a thread that is waiting for our lock to register its metrics.
+     */
+    private void registerGroup( String name )
+    {
+        String group = groupOf( name );
+        ObjectName objectName;
+        synchronized( this )
+        {
+            if( this.mbeans == null || this.mbeans.containsKey( group ) )
+            {
+                return;
+            }
+            try
+            {
+                objectName = new ObjectName( "ChatServer:type=Metrics,name=" + group );
+            }
+            catch( Exception e )
+            {
+                Log.error( "Cannot register the MBean of {}", group, e );
+                return;
+            }
+            this.mbeans.put( group, objectName );
+        }
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().registerMBean( new MetricsMBean( this, group ), objectName );
+        }
+        catch( Exception e )
+        {
+            // Still readable through STAT
+            Log.error( "Cannot register the MBean of {}", group, e );
+        }
+    }
+}
@@ -0,0 +1,525 @@
+// Import the Java classes
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * An OfflineInbox keeps the private messages sent to users who are not logged in, until they
+ * log in again or the messages expire.
+ *
+ * Every recipient has a file of its own, named after a SHA-256 hash of its normalized
+ * username, that messages are appended to as records ( long time, int length, UTF-8 sender,
+ * int length, UTF-8 message ).  Delivering a user's messages at login is therefore one
+ * sequential read of one file, however many other users have messages waiting, and taking
+ * them deletes the file, so there is nothing to compact.  Expired messages are skipped when
+ * the inbox is read, and inboxes whose newest message has expired are deleted by a sweep
+ * that runs every hour.
+ *
+ * Only users that have logged in before get an inbox; they are remembered in a file of
+ * their own.  The number of inboxes, the size of each and the size of all of them together
+ * are bounded, and messages beyond the bounds are dropped and counted in inbox.dropped.
+ *
+ * Nothing here touches the disk on the caller's thread: store() and take() queue their work
+ * for the inbox's own thread, which does it in order, so that a take() finds every message
+ * stored before it.  The queue is bounded too.
+ * 离线私信：每个接收者一个文件，登录时一次读出，过期的消息被丢弃
+ */
+public class OfflineInbox extends Thread
+{
+    /**
+     * The largest an inbox may grow; messages beyond it are dropped
+     */
+    public static final long MAX_INBOX_BYTES = 1024 * 1024;
+
+    /**
+     * The most all of the inboxes together may hold
+     */
+    public static final long MAX_TOTAL_BYTES = 256L * 1024 * 1024;
+
+    /**
+     * The most inboxes that may exist at once
+     */
+    public static final int MAX_INBOXES = 10000;
+
+    /**
+     * The most users that are remembered as having logged in
+     */
+    public static final int MAX_KNOWN_USERS = 100000;
+
+    /**
+     * The most messages and reads that may wait for the inbox's thread
+     */
+    private static final int MAX_PENDING = 10000;
+
+    /**
+     * How often inboxes that have expired are deleted
+     */
+    private static final long SWEEP_INTERVAL_MILLIS = 60 * 60 * 1000;
+
+    /**
+     * The file the users that have logged in are kept in, one hashed name a line
+     */
+    private static final String KNOWN_USERS_FILE = "known.users";
+
+    private static final LongAdder dropped = MetricsRegistry.theRegistry.counter( "inbox.dropped" );
+
+    /**
+     * A message read back from an inbox
+     */
+    public static class Message
+    {
+        public final long time;
+
+        public final String from;
+
+        public final String message;
+
+        Message( long time, String from, String message )
+        {
+            this.time = time;
+            this.from = from;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Orders messages oldest first
+     */
+    private static final Comparator<Message> BY_TIME = new Comparator<Message>()
+    {
+        public int compare( Message a, Message b )
+        {
+            return Long.compare( a.time, b.time );
+        }
+    };
+
+    /**
+     * The directory holding the inboxes
+     */
+    private File dir;
+
+    /**
+     * How long a message is kept, in milliseconds
+     */
+    private long ttlMillis;
+
+    private volatile boolean running = true;
+
+    /**
+     * The work waiting for our thread, in the order it was queued
+     */
+    private BlockingQueue<Runnable> pending = new ArrayBlockingQueue<Runnable>( MAX_PENDING );
+
+    /**
+     * The names of the inbox files that exist or have messages waiting; a user who is not in
+     * here has no messages
+     */
+    private Set<String> recipients = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The hashed names of the users that have logged in
+     */
+    private Set<String> known = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The number of inbox files, and the bytes in them; only used on our thread
+     */
+    private int inboxes = 0;
+
+    private long totalBytes = 0;
+
+    /**
+     * Opens the inboxes in the specified directory, creating it if needed
+     *
+     * @param dir        The directory to keep the inboxes in
+     * @param ttlMillis  How long a message is kept before it expires
+     */
+    public OfflineInbox( File dir, long ttlMillis ) throws IOException
+    {
+        super( "OfflineInbox" );
+        if( !dir.isDirectory() && !dir.mkdirs() )
+        {
+            throw new IOException( "Cannot create inbox directory " + dir );
+        }
+        this.dir = dir;
+        this.ttlMillis = ttlMillis;
+        File knownUsers = new File( dir, KNOWN_USERS_FILE );
+        if( knownUsers.exists() )
+        {
+            List<String> lines = Files.readAllLines( knownUsers.toPath(), StandardCharsets.US_ASCII );
+            for( int i=0; i<lines.size() && this.known.size() < MAX_KNOWN_USERS; i++ )
+            {
+                this.known.add( lines.get( i ) );
+            }
+        }
+        File[] files = dir.listFiles();
+        for( int i=0; files != null && i<files.length; i++ )
+        {
+            String name = files[ i ].getName();
+            if( name.endsWith( ".box" ) )
+            {
+                this.recipients.add( name );
+                this.known.add( name.substring( 0, name.length() - 4 ) );
+                this.inboxes++;
+                this.totalBytes += files[ i ].length();
+            }
+        }
+        setDaemon( true );
+    }
+
+    /**
+     * Returns the hash of the specified user's normalized name, as hex digits, which are safe
+     * on any file system and the same length for any name
+     */
+    private static String hash( String username )
+    {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance( "SHA-256" ).digest(
+                    UserRegistry.normalize( username ).getBytes( StandardCharsets.UTF_8 ) );
+            StringBuilder sb = new StringBuilder( digest.length * 2 );
+            for( int i=0; i<digest.length; i++ )
+            {
+                sb.append( Character.forDigit( ( digest[ i ] >> 4 ) & 0xf, 16 ) );
+                sb.append( Character.forDigit( digest[ i ] & 0xf, 16 ) );
+            }
+            return sb.toString();
+        }
+        catch( NoSuchAlgorithmException e )
+        {
+            // Every Java platform has SHA-256
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /**
+     * Queues work for our thread; returns false if too much is waiting already
+     */
+    private boolean queue( Runnable job )
+    {
+        return this.running && this.pending.offer( job );
+    }
+
+    /**
+     * Remembers that the specified user has logged in, so that messages to it are kept from
+     * now on
+     */
+    public void loggedIn( String username )
+    {
+        final String key = hash( username );
+        if( this.known.size() >= MAX_KNOWN_USERS || !this.known.add( key ) )
+        {
+            return;
+        }
+        // Not written down when the queue is full; remembered until we stop, then
+        queue( new Runnable()
+        {
+            public void run()
+            {
+                remember( key );
+            }
+        } );
+    }
+
+    /**
+     * Queues a message for the recipient's inbox; returns at once.  A message to a user that
+     * has never logged in, or that does not fit, is dropped.
+     */
+    public void store( String to, String from, String message )
+    {
+        String key = hash( to );
+        if( !this.known.contains( key ) )
+        {
+            dropped.increment();
+            return;
+        }
+        store( to, key, new Message( System.currentTimeMillis(), from, message ) );
+    }
+
+    private void store( final String to, String key, final Message message )
+    {
+        final File file = new File( this.dir, key + ".box" );
+        this.recipients.add( file.getName() );
+        if( !queue( new Runnable()
+            {
+                public void run()
+                {
+                    write( file, to, message );
+                }
+            } ) )
+        {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Puts messages that were taken back into the recipient's inbox, when they could not be
+     * delivered after all
+     */
+    public void restore( String to, List<Message> messages )
+    {
+        String key = hash( to );
+        for( int i=0; i<messages.size(); i++ )
+        {
+            store( to, key, messages.get( i ) );
+        }
+    }
+
+    /**
+     * Takes all of the messages waiting for the specified user, oldest first, and empties its
+     * inbox; expired messages are left out.  The inbox is read on our thread, after every
+     * message stored before this call, and the messages are then handed to then, on our
+     * thread too.
+     *
+     * @return  false if the user has no messages, or they cannot be read now; then is not called
+     */
+    public boolean take( String username, final Consumer<List<Message>> then )
+    {
+        final File file = new File( this.dir, hash( username ) + ".box" );
+        if( !this.recipients.contains( file.getName() ) )
+        {
+            return false;
+        }
+        return queue( new Runnable()
+        {
+            public void run()
+            {
+                then.accept( read( file ) );
+            }
+        } );
+    }
+
+    /**
+     * Appends a message to its recipient's inbox; called on our thread
+     */
+    private void write( File file, String to, Message message )
+    {
+        byte[] sender = message.from.getBytes( StandardCharsets.UTF_8 );
+        byte[] text = message.message.getBytes( StandardCharsets.UTF_8 );
+        int length = 16 + sender.length + text.length;
+        boolean exists = file.exists();
+        if( ( !exists && this.inboxes >= MAX_INBOXES ) || file.length() + length > MAX_INBOX_BYTES
+                || this.totalBytes + length > MAX_TOTAL_BYTES )
+        {
+            Log.debug( "Dropped private message to {}: inbox full", to );
+            dropped.increment();
+            return;
+        }
+        try
+        {
+            // Buffered as a whole, so that the record reaches the file in a single write
+            DataOutputStream out = new DataOutputStream( new BufferedOutputStream(
+                    new FileOutputStream( file, true ), length ) );
+            try
+            {
+                out.writeLong( message.time );
+                out.writeInt( sender.length );
+                out.write( sender );
+                out.writeInt( text.length );
+                out.write( text );
+            }
+            finally
+            {
+                out.close();
+            }
+            if( !exists )
+            {
+                this.inboxes++;
+            }
+            this.totalBytes += length;
+            this.recipients.add( file.getName() );
+        }
+        catch( IOException e )
+        {
+            Log.error( "Cannot keep a private message for {}", to, e );
+        }
+    }
+
+    /**
+     * Writes down a user that has logged in; called on our thread
+     */
+    private void remember( String key )
+    {
+        try
+        {
+            Writer out = new FileWriter( new File( this.dir, KNOWN_USERS_FILE ), StandardCharsets.US_ASCII, true );
+            try
+            {
+                out.write( key + "\n" );
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        catch( IOException e )
+        {
+            Log.error( "Cannot remember a user", e );
+        }
+    }
+
+    /**
+     * Reads the messages of an inbox that have not expired and deletes it; called on our thread
+     */
+    private List<Message> read( File file )
+    {
+        List<Message> messages = new ArrayList<Message>();
+        this.recipients.remove( file.getName() );
+        if( !file.exists() )
+        {
+            return messages;
+        }
+        long length = file.length();
+        boolean sorted = true;
+        try
+        {
+            ByteBuffer records = ByteBuffer.wrap( Files.readAllBytes( file.toPath() ) );
+            long oldest = System.currentTimeMillis() - this.ttlMillis;
+            while( records.remaining() >= 16 )
+            {
+                long time = records.getLong();
+                String from = readString( records );
+                String message = readString( records );
+                if( from == null || message == null )
+                {
+                    // A record cut short, by a crash while it was appended
+                    break;
+                }
+                if( time >= oldest )
+                {
+                    // Restored messages are older than the ones appended before them
+                    sorted &= messages.isEmpty() || messages.get( messages.size() - 1 ).time <= time;
+                    messages.add( new Message( time, from, message ) );
+                }
+            }
+        }
+        catch( IOException e )
+        {
+            Log.error( "Cannot read an inbox", e );
+        }
+        if( file.delete() )
+        {
+            this.inboxes--;
+            this.totalBytes -= length;
+        }
+        else
+        {
+            Log.warn( "Cannot delete inbox {}", file );
+        }
+        if( !sorted )
+        {
+            Collections.sort( messages, BY_TIME );
+        }
+        return messages;
+    }
+
+    private static String readString( ByteBuffer records )
+    {
+        if( records.remaining() < 4 )
+        {
+            return null;
+        }
+        int length = records.getInt();
+        if( length < 0 || length > records.remaining() )
+        {
+            return null;
+        }
+        String s = new String( records.array(), records.position(), length, StandardCharsets.UTF_8 );
+        records.position( records.position() + length );
+        return s;
+    }
+
+    /**
+     * Deletes the inboxes whose newest message has expired; called on our thread
+     */
+    private void expire()
+    {
+        long oldest = System.currentTimeMillis() - this.ttlMillis;
+        File[] files = this.dir.listFiles();
+        for( int i=0; files != null && i<files.length; i++ )
+        {
+            String name = files[ i ].getName();
+            if( !name.endsWith( ".box" ) )
+            {
+                continue;
+            }
+            // Appending sets the modification time, so it is the time of the newest message
+            long length = files[ i ].length();
+            if( files[ i ].lastModified() < oldest && files[ i ].delete() )
+            {
+                this.recipients.remove( name );
+                this.inboxes--;
+                this.totalBytes -= length;
+            }
+        }
+    }
+
+    /**
+     * Stops our thread once the work already queued has been done
+     */
+    public void shutdown()
+    {
+        this.running = false;
+
+        // Wakes our thread up; when the queue is full it is not waiting anyway
+        this.pending.offer( new Runnable()
+        {
+            public void run()
+            {
+            }
+        } );
+    }
+
+    /**
+     * Does the queued work, and sweeps the expired inboxes away every hour
+     */
+    public void run()
+    {
+        long nextSweep = 0;
+        while( this.running || !this.pending.isEmpty() )
+        {
+            long now = System.currentTimeMillis();
+            if( now >= nextSweep )
+            {
+                expire();
+                nextSweep = now + SWEEP_INTERVAL_MILLIS;
+            }
+            try
+            {
+                Runnable job = this.pending.poll( nextSweep - now, TimeUnit.MILLISECONDS );
+                if( job != null )
+                {
+                    job.run();
+                }
+            }
+            catch( InterruptedException e )
+            {
+                return;
+            }
+            catch( RuntimeException e )
+            {
+                Log.error( "Inbox failed", e );
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+// Import the Java classes
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An OutboundQueue holds the messages waiting to be written to one client.  Any thread
+ * may queue a message without blocking; the session's writer drains the queue.  When the
+ * client falls too far behind, the session's SlowConsumerPolicy decides what happens.
+ * 每个连接的发送队列：发送方只负责入队，由写线程负责写出
+ */
+public class OutboundQueue
+{
+    /**
+     * Notified when there is output to write, or when the client must be disconnected
+     */
+    public interface Listener
+    {
+        /**
+         * Output was queued; the writer should drain the queue
+         */
+        public void outputQueued();
+
+        /**
+         * The client fell too far behind and must be disconnected
+         */
+        public void slowConsumer( int pending );
+    }
+
+    /**
+     * The pending messages
+     */
+    private Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    /**
+     * The number of pending messages
+     */
+    private AtomicInteger pending = new AtomicInteger( 0 );
+
+    /**
+     * The number of messages dropped because the client was too slow
+     */
+    private AtomicLong dropped = new AtomicLong( 0 );
+
+    /**
+     * The number of pending messages that makes a client slow
+     */
+    private int maxPending;
+
+    private SlowConsumerPolicy policy;
+
+    private Listener listener;
+
+    /**
+     * Set while the session should not read from its client (PAUSE_READER)
+     */
+    private volatile boolean readPaused = false;
+
+    /**
+     * Set once the queue no longer accepts messages
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a new OutboundQueue
+     */
+    public OutboundQueue( int maxPending, SlowConsumerPolicy policy, Listener listener )
+    {
+        this.maxPending = maxPending;
+        this.policy = policy;
+        this.listener = listener;
+    }
+
+    /**
+     * Queues a message; never blocks
+     *
+     * @return  false if the message was not queued because the queue is closed or the
+     *          client has just been found to be too slow
+     */
+    public boolean offer( ByteBuffer buffer )
+    {
+        if( this.closed )
+        {
+            return false;
+        }
+
+        this.buffers.add( buffer );
+        int count = this.pending.incrementAndGet();
+        if( count > this.maxPending )
+        {
+            if( this.policy == SlowConsumerPolicy.DROP_OLDEST )
+            {
+                // Make room by dropping whole messages from the head; the writer takes a
+                // message off the queue before writing it, so this never cuts one in half
+                while( this.pending.get() > this.maxPending && this.buffers.poll() != null )
+                {
+                    this.pending.decrementAndGet();
+                    this.dropped.incrementAndGet();
+                }
+            }
+            else if( this.policy == SlowConsumerPolicy.DISCONNECT
+                    || count > this.maxPending * 2 )
+            {
+                close();
+                this.listener.slowConsumer( count );
+                return false;
+            }
+            else
+            {
+                this.readPaused = true;
+            }
+        }
+
+        this.listener.outputQueued();
+        return true;
+    }
+
+    /**
+     * Takes the next message off the queue
+     *
+     * @return  The message, or null if the queue is empty
+     */
+    public ByteBuffer poll()
+    {
+        ByteBuffer buffer = this.buffers.poll();
+        if( buffer != null )
+        {
+            int count = this.pending.decrementAndGet();
+            if( this.readPaused && count <= this.maxPending / 2 )
+            {
+                // Caught up: let the reader continue
+                synchronized( this )
+                {
+                    this.readPaused = false;
+                    notifyAll();
+                }
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns true if there is nothing to write
+     */
+    public boolean isEmpty()
+    {
+        return this.buffers.isEmpty();
+    }
+
+    /**
+     * Returns the number of pending messages
+     */
+    public int getPending()
+    {
+        return this.pending.get();
+    }
+
+    /**
+     * Returns the number of messages that were dropped because the client was too slow
+     */
+    public long getDropped()
+    {
+        return this.dropped.get();
+    }
+
+    /**
+     * Returns true while the session should not read from its client
+     */
+    public boolean isReadPaused()
+    {
+        return this.readPaused;
+    }
+
+    /**
+     * Blocks a reader thread while the session should not read from its client
+     */
+    public synchronized void awaitReadable() throws InterruptedException
+    {
+        while( this.readPaused && !this.closed )
+        {
+            wait( 1000 );
+        }
+    }
+
+    /**
+     * Stops accepting messages; messages already queued can still be drained
+     */
+    public void close()
+    {
+        synchronized( this )
+        {
+            this.closed = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Returns true once the queue no longer accepts messages
+     */
+    public boolean isClosed()
+    {
+        return this.closed;
+    }
+}
@@ -0,0 +1,189 @@
+// Import the Java classes
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A PresenceBatcher collects users coming online and going offline over a short window and
+ * then tells every local user about all of them in one frame, instead of sending one USER or
+ * RUSR line per change to every user.  A user who joins and leaves again (or leaves and comes
+ * back) within the same window cancels out and is not announced at all, which is what keeps
+ * a reconnect storm after a network blip or a failover from costing O(N^2) lines.
+ * 在一个时间窗口内合并上线/下线通知，一次发给每个用户
+ */
+public class PresenceBatcher extends Thread
+{
+    /**
+     * The server whose local users are told about the changes
+     */
+    private ChatServer server;
+
+    /**
+     * How long a change may wait for others to join it, in milliseconds
+     */
+    private long windowMillis;
+
+    /**
+     * The changes of the current window, by normalized username, in the order they happened
+     */
+    private Map<String, Change> pending = new LinkedHashMap<String, Change>();
+
+    /**
+     * When the first change of the current window arrived
+     */
+    private long windowStart;
+
+    /**
+     * The number of changes that cancelled each other out, for accounting purposes
+     */
+    private long cancelled;
+
+    private volatile boolean running = true;
+
+    /**
+     * Creates a new PresenceBatcher
+     *
+     * @param server        The server to deliver the batched notifications through
+     * @param windowMillis  How long to collect changes before they are sent
+     */
+    public PresenceBatcher( ChatServer server, long windowMillis )
+    {
+        super( "PresenceBatcher" );
+        this.server = server;
+        this.windowMillis = windowMillis;
+        setDaemon( true );
+    }
+
+    /**
+     * The specified user came online
+     */
+    public void userJoined( String username )
+    {
+        change( username, true );
+    }
+
+    /**
+     * The specified user went offline
+     */
+    public void userLeft( String username )
+    {
+        change( username, false );
+    }
+
+    /**
+     * Takes the specified user's coming online out of the current window, for the caller to
+     * announce itself
+     *
+     * @return  false if the window does not hold it, because it was sent already or cancelled out
+     */
+    public synchronized boolean takeJoined( String username )
+    {
+        String key = UserRegistry.normalize( username );
+        Change change = this.pending.get( key );
+        if( change == null || !change.joined )
+        {
+            return false;
+        }
+        this.pending.remove( key );
+        return true;
+    }
+
+    /**
+     * Returns the number of changes that were never sent because they cancelled out
+     */
+    public synchronized long getCancelled()
+    {
+        return this.cancelled;
+    }
+
+    private synchronized void change( String username, boolean joined )
+    {
+        String key = UserRegistry.normalize( username );
+        Change previous = this.pending.remove( key );
+        if( previous != null && previous.joined != joined )
+        {
+            // The other users never heard about the first change, so they need not hear about either
+            this.cancelled += 2;
+            return;
+        }
+        if( this.pending.isEmpty() )
+        {
+            this.windowStart = System.currentTimeMillis();
+            notifyAll();
+        }
+        this.pending.put( key, new Change( username, joined ) );
+    }
+
+    /**
+     * Stops the batcher; changes that are still pending are dropped
+     */
+    public void shutdown()
+    {
+        this.running = false;
+        interrupt();
+    }
+
+    /**
+     * Waits for each window to close and sends its changes
+     */
+    public void run()
+    {
+        while( this.running )
+        {
+            List<String> lines = new ArrayList<String>();
+            List<String> usernames = new ArrayList<String>();
+            synchronized( this )
+            {
+                try
+                {
+                    while( this.pending.isEmpty() )
+                    {
+                        wait();
+                    }
+                    long remaining = this.windowStart + this.windowMillis - System.currentTimeMillis();
+                    while( remaining > 0 )
+                    {
+                        wait( remaining );
+                        remaining = this.windowStart + this.windowMillis - System.currentTimeMillis();
+                    }
+                }
+                catch( InterruptedException e )
+                {
+                    break;
+                }
+
+                for( Iterator<Change> i=this.pending.values().iterator(); i.hasNext(); )
+                {
+                    Change change = i.next();
+                    lines.add( ( change.joined ? "USER " : "RUSR " ) + change.username );
+                    usernames.add( change.username );
+                }
+                this.pending.clear();
+            }
+
+            // Changes that cancelled out may have emptied the window
+            if( !lines.isEmpty() )
+            {
+                this.server.deliverPresence( Frame.lines( lines ), usernames );
+            }
+        }
+    }
+
+    /**
+     * A pending change of a user's presence
+     */
+    private static class Change
+    {
+        String username;
+
+        boolean joined;
+
+        Change( String username, boolean joined )
+        {
+            this.username = username;
+            this.joined = joined;
+        }
+    }
+}
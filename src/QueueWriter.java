@@ -0,0 +1,52 @@
+// Import the Java classes
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A Writer that collects what is written to it and queues it on an OutboundQueue as one
+ * message every time it is flushed, so that handlers written against java.io never block
+ * on the socket.  Wrapped in a PrintWriter directly, it spares every connection the buffers
+ * of the BufferedWriter and the encoder that a PrintWriter over an OutputStream allocates.
+ * 每次flush时，把写入的数据作为一条消息放入发送队列
+ */
+public class QueueWriter extends Writer
+{
+    private OutboundQueue queue;
+
+    private StringBuilder pending = new StringBuilder( 256 );
+
+    public QueueWriter( OutboundQueue queue )
+    {
+        this.queue = queue;
+    }
+
+    public synchronized void write( int c )
+    {
+        this.pending.append( ( char )c );
+    }
+
+    public synchronized void write( char[] cbuf, int off, int len )
+    {
+        this.pending.append( cbuf, off, len );
+    }
+
+    public synchronized void write( String str, int off, int len )
+    {
+        this.pending.append( str, off, off + len );
+    }
+
+    public synchronized void flush()
+    {
+        if( this.pending.length() > 0 )
+        {
+            this.queue.offer( Charset.defaultCharset().encode( CharBuffer.wrap( this.pending ) ) );
+            this.pending.setLength( 0 );
+        }
+    }
+
+    public void close()
+    {
+        flush();
+    }
+}
@@ -0,0 +1,40 @@
+// Import the Java classes
+import java.lang.reflect.Constructor;
+
+/**
+ * A RequestHandlerFactory creates the handler of each new connection: a RequestHandler for
+ * the blocking and virtual-thread transports, a ChannelRequestHandler for the non-blocking
+ * one, or a class that is both.  A handler serves exactly one connection, so it may keep the
+ * connection's state in its fields.
+ * 为每个新连接创建一个处理器
+ */
+public abstract class RequestHandlerFactory
+{
+    /**
+     * Returns a new handler for one connection
+     */
+    public abstract Object newHandler();
+
+    /**
+     * Returns a factory for a handler class that has a public no-argument constructor; the
+     * class and its constructor are looked up once, here, and not for every connection
+     */
+    public static RequestHandlerFactory forClassName( String className ) throws ReflectiveOperationException
+    {
+        final Constructor<?> constructor = Class.forName( className ).getConstructor();
+        return new RequestHandlerFactory()
+        {
+            public Object newHandler()
+            {
+                try
+                {
+                    return constructor.newInstance();
+                }
+                catch( ReflectiveOperationException e )
+                {
+                    throw new IllegalStateException( "Cannot create " + constructor.getDeclaringClass().getName(), e );
+                }
+            }
+        };
+    }
+}
@@ -2,21 +2,26 @@
 
 
 
-import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * A Request Queue accepts new requests and processes them with its associated
- * thread pool
+ * thread pool.  The pool sizes itself: it grows from the measured queue wait time and
+ * arrival rate, and retires threads that stay idle longer than the keep-alive time,
+ * never dropping below minThreads.
+ * 线程池根据排队等待时间和请求到达速率自动扩容，空闲超时的线程自动退出
  */
 public class RequestQueue
 {
     /**
      * Request queue
      */
-    private LinkedList queue = new LinkedList();
+    private RingBufferQueue queue;
 
     /**
      * The maximum length that the queue can grow to
@@ -36,51 +41,185 @@ public class RequestQueue
     /**
      * The current number of threads
      */
-    private int currentThreads = 0;
+    private AtomicInteger currentThreads = new AtomicInteger( 0 );
 
     /**
-     * The name of the request handler implementation class
+     * The number of threads that are not processing a request
+     * 空闲线程的数目
      */
-    private String requestHandlerClassName;
+    private AtomicInteger idleThreads = new AtomicInteger( 0 );
+
+    /**
+     * Used to number new threads; numbers are not reused when threads retire
+     */
+    private AtomicInteger threadCounter = new AtomicInteger( 0 );
+
+    /**
+     * How long a thread above minThreads may stay idle before it retires
+     * 超过minThreads的线程空闲多久后退出
+     */
+    private volatile long keepAliveMillis = 60 * 1000;
+
+    /**
+     * The queue wait time we are aiming for; above it the pool grows
+     * 目标排队等待时间，超过则扩容
+     */
+    private volatile long targetWaitMillis = 50;
+
+    /**
+     * Time that requests spent in the queue before a thread picked them up
+     * 请求在队列中等待的时间
+     */
+    private LatencyHistogram waitTimes = new LatencyHistogram();
+
+    /**
+     * Exponentially weighted moving average of the queue wait time, in nanoseconds
+     */
+    private volatile long averageWaitNanos = 0;
+
+    /**
+     * Exponentially weighted moving average of the arrival rate, in requests per second
+     */
+    private volatile double arrivalRate = 0;
+
+    /**
+     * Time of the previous arrival, used for the arrival rate
+     */
+    private volatile long lastArrivalNanos = System.nanoTime();
+
+    /**
+     * Creates the handler of every request
+     */
+    private RequestHandlerFactory requestHandlerFactory;
 
     /**
      * The thread pool that is servicing this request
      * 线程池用来处理请求
      */
-    private List threadPool = new ArrayList();
+    private List threadPool = new CopyOnWriteArrayList();
 
-    private boolean running = true;
+    /**
+     * Threads that are parked waiting for a request; add() wakes exactly one of them
+     * 等待请求的线程，每次add()只唤醒其中一个
+     */
+    private ConcurrentLinkedDeque<Waiter> waiters = new ConcurrentLinkedDeque<Waiter>();
+
+    private volatile boolean running = true;
 
     /**
      * Creates a new RequestQueue
      */
-    public RequestQueue( String requestHandlerClassName,
+    public RequestQueue( RequestHandlerFactory requestHandlerFactory,
                          int maxQueueLength,
                          int minThreads,
                          int maxThreads )
     {
         // Initialize our parameters
-        this.requestHandlerClassName = requestHandlerClassName;
+        this.requestHandlerFactory = requestHandlerFactory;
         this.maxQueueLength = maxQueueLength;
         this.minThreads = minThreads;
         this.maxThreads = maxThreads;
-        this.currentThreads = this.minThreads;
+        this.queue = new RingBufferQueue( maxQueueLength );
 
         // Create the minimum number of threads
         for( int i=0; i<this.minThreads; i++ )
         {
-            RequestThread thread = new RequestThread( this, i, requestHandlerClassName );
-            thread.start();
-            this.threadPool.add( thread );
+            startThread();
         }
     }
 
     /**
-     * Returns the name of the RequestHandler implementation class
+     * Publishes the depth of the queue, the busy and idle threads and the time requests wait
+     * in the queue under "queue." and "threads."
+     */
+    public void registerMetrics( MetricsRegistry registry )
+    {
+        registry.gauge( "queue.depth", new MetricsRegistry.Gauge()
+        {
+            public long get()
+            {
+                return getQueueLength();
+            }
+        } );
+        registry.histogram( "queue.wait", this.waitTimes );
+        registry.gauge( "threads.busy", new MetricsRegistry.Gauge()
+        {
+            public long get()
+            {
+                return Math.max( 0, getPoolSize() - getIdleThreads() );
+            }
+        } );
+        registry.gauge( "threads.idle", new MetricsRegistry.Gauge()
+        {
+            public long get()
+            {
+                return getIdleThreads();
+            }
+        } );
+    }
+
+    /**
+     * Returns the factory that creates the handler of every request
+     */
+    public RequestHandlerFactory getRequestHandlerFactory()
+    {
+        return this.requestHandlerFactory;
+    }
+
+    /**
+     * Sets how long a thread above minThreads may stay idle before it retires
+     */
+    public void setKeepAliveMillis( long keepAliveMillis )
+    {
+        this.keepAliveMillis = keepAliveMillis;
+    }
+
+    /**
+     * Sets the queue wait time above which the pool grows
      */
-    public String getRequestHandlerClassName()
+    public void setTargetWaitMillis( long targetWaitMillis )
     {
-        return this.requestHandlerClassName;
+        this.targetWaitMillis = targetWaitMillis;
+    }
+
+    /**
+     * Returns the current number of threads in the pool
+     */
+    public int getPoolSize()
+    {
+        return this.currentThreads.get();
+    }
+
+    /**
+     * Returns the number of threads that are not processing a request
+     */
+    public int getIdleThreads()
+    {
+        return Math.max( 0, this.idleThreads.get() );
+    }
+
+    /**
+     * Returns the number of requests waiting for a thread
+     */
+    public int getQueueLength()
+    {
+        return this.queue.size();
+    }
+
+    /**
+     * Returns the histogram of the time requests spent waiting for a thread
+     */
+    public LatencyHistogram getWaitTimeHistogram()
+    {
+        return this.waitTimes;
+    }
+
+    /**
+     * Returns the smoothed arrival rate, in requests per second
+     */
+    public double getArrivalRate()
+    {
+        return this.arrivalRate;
     }
 
     /**
@@ -88,81 +227,274 @@ public class RequestQueue
      *
      * @param o     Adds the specified object to the Request Queue
      */
-    public synchronized void add( Object o ) throws RequestQueueException
+    public void add( Object o ) throws RequestQueueException
     {
-        // Validate that we have room of the object before we add it to the queue
-        if( queue.size() > this.maxQueueLength )
+        // Add the new object to the end of the queue, if we have room for it
+        if( !queue.offer( new Request( o ) ) )
         {
             throw new RequestQueueException( "The Request Queue is full. Max size = " + this.maxQueueLength );
         }
-
-        // Add the new object to the end of the queue
-        queue.addLast( o );
+        updateArrivalRate();
 
         // See if we have an available thread to process the request
-        boolean availableThread = false;
-        for( Iterator i=this.threadPool.iterator(); i.hasNext(); )
+        if( needsThread() )
         {
-            RequestThread rt = ( RequestThread )i.next();
-            if( !rt.isProcessing() )
+            if( tryStartThread() )
             {
-                System.out.println( "Found an available thread" );
-                availableThread = true;
-                break;
+                Log.debug( "Creating a new thread to satisfy the incoming request" );
+            }
+            else
+            {
+                Log.debug( "Whoops, can’t grow the thread pool, guess you have to wait" );
             }
-            System.out.println( "Thread is busy" );
         }
 
-        // See if we have an available thread
-        if( !availableThread )
+        // Wake someone up
+        signalOne();
+    }
+
+    /**
+     * Decides whether the pool should grow to serve the request that was just queued
+     */
+    private boolean needsThread()
+    {
+        int idle = this.idleThreads.get();
+
+        // Every idle thread takes one queued request, so grow when there are more
+        // requests than idle threads
+        if( queue.size() > idle )
         {
-            if( this.currentThreads < this.maxThreads )
+            return true;
+        }
+
+        // Requests have recently been waiting longer than we are aiming for, and no thread is
+        // free to take the next one; the average only changes when requests are taken, so it
+        // says nothing once threads are idle again
+        if( idle == 0 && this.averageWaitNanos > this.targetWaitMillis * 1000000L )
+        {
+            return true;
+        }
+
+        // Keep enough spare threads for the requests we expect to arrive within the
+        // target wait time, so that a rising arrival rate does not have to queue first
+        int spare = ( int )Math.ceil( this.arrivalRate * this.targetWaitMillis / 1000.0 );
+        return idle < spare;
+    }
+
+    /**
+     * Updates the arrival rate with the time since the previous arrival
+     */
+    private void updateArrivalRate()
+    {
+        long now = System.nanoTime();
+        long interval = Math.max( 1, now - this.lastArrivalNanos );
+        this.lastArrivalNanos = now;
+
+        // Racy read-modify-write; a lost update only nudges an estimate
+        double rate = 1000000000.0 / interval;
+        this.arrivalRate = this.arrivalRate * 0.9 + rate * 0.1;
+    }
+
+    /**
+     * Records how long the request waited for a thread
+     */
+    private Object take( Request request )
+    {
+        this.idleThreads.decrementAndGet();
+
+        long waited = System.nanoTime() - request.enqueuedNanos;
+        this.waitTimes.record( waited );
+        this.averageWaitNanos = ( this.averageWaitNanos * 7 + waited ) / 8;
+
+        return request.object;
+    }
+
+    /**
+     * Returns the first object in the queue
+     */
+    public Object getNextObject()
+    {
+        return getNextObject( 0 );
+    }
+
+    /**
+     * Returns the first object in the queue, waiting at most the specified time for one
+     *
+     * @param timeoutMillis     How long to wait, 0 to wait until an object arrives
+     * @return                  The object, or null if we timed out or are shutting down
+     */
+    public Object getNextObject( long timeoutMillis )
+    {
+        long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+        Waiter waiter = null;
+        while( true )
+        {
+            Request request = ( Request )queue.poll();
+            if( request != null )
             {
-                System.out.println( "Creating a new thread to satisfy the incoming request" );
-                RequestThread thread = new RequestThread( this, currentThreads++, this.requestHandlerClassName );
-                thread.start();
-                this.threadPool.add( thread );
+                return take( request );
             }
-            else
+            if( !running )
             {
-                System.out.println( "Whoops, can’t grow the thread pool, guess you have to wait" );
+                // Exit criteria for stopping threads
+                return null;
             }
-        }
 
-        // Wake someone up
-        notifyAll();
+            // Register ourselves as waiting and check again, so that an add() that
+            // happened in between cannot be missed
+            if( waiter == null )
+            {
+                waiter = new Waiter( Thread.currentThread() );
+            }
+            waiter.state.set( Waiter.WAITING );
+            this.waiters.push( waiter );
+
+            request = ( Request )queue.poll();
+            if( request != null )
+            {
+                if( !waiter.state.compareAndSet( Waiter.WAITING, Waiter.CANCELLED ) )
+                {
+                    // Someone already picked us to handle a request; pass the wake-up on
+                    signalOne();
+                }
+                return take( request );
+            }
+
+            // Setup waiting on the Request Queue
+            while( waiter.state.get() == Waiter.WAITING && running )
+            {
+                if( timeoutMillis > 0 )
+                {
+                    long remaining = deadline - System.nanoTime();
+                    if( remaining <= 0 )
+                    {
+                        break;
+                    }
+                    LockSupport.parkNanos( this, remaining );
+                }
+                else
+                {
+                    LockSupport.park( this );
+                }
+            }
+            if( waiter.state.compareAndSet( Waiter.WAITING, Waiter.CANCELLED ) && timeoutMillis > 0 )
+            {
+                // Nobody woke us up: we timed out
+                return null;
+            }
+        }
     }
 
     /**
-     * Returns the first object in the queue
+     * Called by a request thread that timed out waiting for a request.  The thread may
+     * retire if the pool is above its minimum size.
+     *
+     * @return  true if the thread should exit
      */
-    public synchronized Object getNextObject()
+    public boolean retire( RequestThread thread )
     {
-        // Setup waiting on the Request Queue
-        while( queue.isEmpty() )
+        // Nothing has waited for a whole keep-alive time, so let the average wait decay
+        this.averageWaitNanos = this.averageWaitNanos / 2;
+
+        while( true )
         {
-            try
+            int current = this.currentThreads.get();
+            if( current <= this.minThreads )
             {
-                if( !running )
+                return false;
+            }
+            if( this.currentThreads.compareAndSet( current, current - 1 ) )
+            {
+                this.idleThreads.decrementAndGet();
+                this.threadPool.remove( thread );
+                Log.debug( "Retiring an idle thread, pool size is now {}", Integer.valueOf( current - 1 ) );
+
+                // A request may have slipped in while we were deciding to leave
+                if( !queue.isEmpty() && needsThread() )
                 {
-                    // Exit criteria for stopping threads
-                    return null;
+                    tryStartThread();
+                    signalOne();
                 }
-                wait();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns how long an idle thread waits for a request before asking to retire
+     */
+    public long getKeepAliveMillis()
+    {
+        return this.keepAliveMillis;
+    }
+
+    /**
+     * Called by a request thread once it has finished processing its request
+     */
+    public void requestFinished()
+    {
+        this.idleThreads.incrementAndGet();
+    }
+
+    /**
+     * Wakes up one parked thread, skipping waiters that already gave up
+     */
+    private void signalOne()
+    {
+        Waiter waiter;
+        while( ( waiter = this.waiters.poll() ) != null )
+        {
+            if( waiter.state.compareAndSet( Waiter.WAITING, Waiter.SIGNALLED ) )
+            {
+                LockSupport.unpark( waiter.thread );
+                return;
             }
-            catch( InterruptedException ie ) {}
         }
+    }
+
+    /**
+     * Starts a new thread if the pool has not reached its maximum size
+     */
+    private boolean tryStartThread()
+    {
+        while( true )
+        {
+            int current = this.currentThreads.get();
+            if( current >= this.maxThreads )
+            {
+                return false;
+            }
+            if( this.currentThreads.compareAndSet( current, current + 1 ) )
+            {
+                createThread();
+                return true;
+            }
+        }
+    }
 
-        // Return the item at the head of the queue
-        return queue.removeFirst();
+    /**
+     * Starts a new thread unconditionally
+     */
+    private void startThread()
+    {
+        this.currentThreads.incrementAndGet();
+        createThread();
+    }
+
+    private void createThread()
+    {
+        this.idleThreads.incrementAndGet();
+        RequestThread thread = new RequestThread( this, this.threadCounter.getAndIncrement() );
+        thread.start();
+        this.threadPool.add( thread );
     }
 
     /**
      * Shuts down the request queue and kills all of the request threads
      */
-    public synchronized void shutdown()
+    public void shutdown()
     {
-        System.out.println( "Shutting down request threads..." );
+        Log.info( "Shutting down request threads..." );
 
         // Mark the queue as not running so that we will free up our request threads
         this.running = false;
@@ -175,6 +507,44 @@ public class RequestQueue
         }
 
         // Wake up all threads and let them die
-        notifyAll();
+        Waiter waiter;
+        while( ( waiter = this.waiters.poll() ) != null )
+        {
+            waiter.state.set( Waiter.SIGNALLED );
+            LockSupport.unpark( waiter.thread );
+        }
+    }
+
+    /**
+     * A queued object and the time it was queued
+     */
+    private static class Request
+    {
+        final Object object;
+        final long enqueuedNanos;
+
+        Request( Object object )
+        {
+            this.object = object;
+            this.enqueuedNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * A thread parked in getNextObject()
+     */
+    private static class Waiter
+    {
+        static final int WAITING = 0;
+        static final int SIGNALLED = 1;
+        static final int CANCELLED = 2;
+
+        final Thread thread;
+        final AtomicInteger state = new AtomicInteger( CANCELLED );
+
+        Waiter( Thread thread )
+        {
+            this.thread = thread;
+        }
     }
-}
\ No newline at end of file
+}
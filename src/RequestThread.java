@@ -25,30 +25,16 @@ public class RequestThread extends Thread
      */
     private int threadNumber;
 
-    /**
-     * Our request handler
-     */
-    private RequestHandler requestHandler;
-
     /**
      * Creates a new Request Thread
      *
      * @param queue         The queue that we are associated with
      * @param threadNumber  Our thread number
      */
-    public RequestThread( RequestQueue queue, int threadNumber, String requestHandlerClassName )
+    public RequestThread( RequestQueue queue, int threadNumber )
     {
         this.queue = queue;
         this.threadNumber = threadNumber;
-        try
-        {
-            // Create our request handler
-            this.requestHandler = ( RequestHandler )( Class.forName( requestHandlerClassName ).newInstance() );
-        }
-        catch( Exception e )
-        {
-            e.printStackTrace();
-        }
     }
 
     /**
@@ -64,7 +50,7 @@ public class RequestThread extends Thread
      */
     public void killThread()
     {
-        System.out.println( "[" + threadNumber + "]: Attempting to kill thread..." );
+        Log.debug( "[{}]: Attempting to kill thread...", Integer.valueOf( threadNumber ) );
         this.running = false;
     }
 
@@ -74,6 +60,9 @@ public class RequestThread extends Thread
     public void run()
     {
         this.running = true;
+
+        // We serve connection after connection, so keep their read buffers at hand
+        DirectBufferPool.thePool.createThreadCache();
         while( running )
         {
             try
@@ -81,7 +70,16 @@ public class RequestThread extends Thread
                 // Obtain the next pending socket from the queue; only process requests if 
                 // we are still running. The shutdown mechanism will wake up our threads at this
                 // point, so our state could have changed to not running here.
-                Object o = queue.getNextObject();
+                Object o = queue.getNextObject( queue.getKeepAliveMillis() );
+                if( o == null )
+                {
+                    // We have been idle for the whole keep-alive time; leave if the pool can spare us
+                    if( running && queue.retire( this ) )
+                    {
+                        break;
+                    }
+                    continue;
+                }
                 if( running )
                 {
                     // Cast the object to a Socket
@@ -89,22 +87,31 @@ public class RequestThread extends Thread
 
                     // Mark ourselves as processing a request
                     this.processing = true;
-                    System.out.println( "[" + threadNumber + "]: Processing request..." );
-
-                    // Handle the request
-                    this.requestHandler.handleRequest( socket );
+                    Log.debug( "[{}]: Processing request...", Integer.valueOf( threadNumber ) );
 
-                    // We’ve finished processing, so make ourselves available for the next request
-                    this.processing = false;
-                    System.out.println( "[" + threadNumber + "]: Finished Processing request..." );
+                    // Handle the request with a handler of its own, so that nothing of this
+                    // connection is left behind for the next one
+                    try
+                    {
+                        RequestHandler requestHandler = ( RequestHandler )queue.getRequestHandlerFactory().newHandler();
+                        requestHandler.handleRequest( socket );
+                    }
+                    finally
+                    {
+                        // We’ve finished processing, so make ourselves available for the next request
+                        this.processing = false;
+                        queue.requestFinished();
+                    }
+                    Log.debug( "[{}]: Finished Processing request...", Integer.valueOf( threadNumber ) );
                 }
             }
             catch( Exception e )
             {
-                e.printStackTrace();
+                Log.error( "Request failed", e );
             }
         }
 
-        System.out.println( "[" + threadNumber + "]: Thread shutting down..." );
+        DirectBufferPool.thePool.releaseThreadCache();
+        Log.debug( "[{}]: Thread shutting down...", Integer.valueOf( threadNumber ) );
     }
 }
\ No newline at end of file
@@ -0,0 +1,170 @@
+// Import the Java classes
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A lock-free, bounded, multi-producer/multi-consumer ring buffer.
+ *
+ * Every slot carries a sequence number that tells producers and consumers whose turn it
+ * is: a producer claims position p when the slot's sequence equals p, a consumer claims
+ * it when the sequence equals p + 1.  Claiming is a single CAS on the enqueue or dequeue
+ * position, so producers never contend with consumers.
+ * 无锁、有界、多生产者/多消费者的环形队列
+ */
+public class RingBufferQueue<E>
+{
+    /**
+     * The number of slots
+     */
+    private final int capacity;
+
+    /**
+     * The elements
+     */
+    private final AtomicReferenceArray<E> buffer;
+
+    /**
+     * The sequence number of each slot
+     */
+    private final AtomicLongArray sequence;
+
+    /**
+     * The next position to enqueue at
+     */
+    private final AtomicLong enqueuePosition = new AtomicLong( 0 );
+
+    /**
+     * The next position to dequeue from
+     */
+    private final AtomicLong dequeuePosition = new AtomicLong( 0 );
+
+    /**
+     * Creates a new RingBufferQueue
+     *
+     * @param capacity  The maximum number of elements the queue can hold
+     */
+    public RingBufferQueue( int capacity )
+    {
+        if( capacity < 1 )
+        {
+            throw new IllegalArgumentException( "capacity must be positive: " + capacity );
+        }
+        this.capacity = capacity;
+        this.buffer = new AtomicReferenceArray<E>( capacity );
+        this.sequence = new AtomicLongArray( capacity );
+        for( int i=0; i<capacity; i++ )
+        {
+            this.sequence.set( i, i );
+        }
+    }
+
+    /**
+     * Adds the element to the tail of the queue
+     *
+     * @return  false if the queue is full
+     */
+    public boolean offer( E e )
+    {
+        long position = this.enqueuePosition.get();
+        int index;
+        while( true )
+        {
+            index = ( int )( position % this.capacity );
+            long difference = this.sequence.get( index ) - position;
+            if( difference == 0 )
+            {
+                // The slot is free for this position; try to claim it
+                if( this.enqueuePosition.compareAndSet( position, position + 1 ) )
+                {
+                    break;
+                }
+                position = this.enqueuePosition.get();
+            }
+            else if( difference < 0 )
+            {
+                // The slot still holds the element from one lap ago: we are full
+                return false;
+            }
+            else
+            {
+                // Another producer claimed this position first
+                position = this.enqueuePosition.get();
+            }
+        }
+
+        this.buffer.set( index, e );
+        this.sequence.set( index, position + 1 );
+        return true;
+    }
+
+    /**
+     * Removes the element at the head of the queue
+     *
+     * @return  The element, or null if the queue is empty
+     */
+    public E poll()
+    {
+        long position = this.dequeuePosition.get();
+        int index;
+        while( true )
+        {
+            index = ( int )( position % this.capacity );
+            long difference = this.sequence.get( index ) - ( position + 1 );
+            if( difference == 0 )
+            {
+                if( this.dequeuePosition.compareAndSet( position, position + 1 ) )
+                {
+                    break;
+                }
+                position = this.dequeuePosition.get();
+            }
+            else if( difference < 0 )
+            {
+                // Nothing has been published at this position yet: we are empty
+                return null;
+            }
+            else
+            {
+                position = this.dequeuePosition.get();
+            }
+        }
+
+        E e = this.buffer.get( index );
+        this.buffer.set( index, null );
+        this.sequence.set( index, position + this.capacity );
+        return e;
+    }
+
+    /**
+     * Returns the number of elements in the queue; only a snapshot while other threads are active
+     */
+    public int size()
+    {
+        while( true )
+        {
+            long dequeue = this.dequeuePosition.get();
+            long enqueue = this.enqueuePosition.get();
+            if( dequeue == this.dequeuePosition.get() )
+            {
+                return ( int )Math.max( 0, Math.min( enqueue - dequeue, this.capacity ) );
+            }
+        }
+    }
+
+    /**
+     * Returns true if the queue is empty
+     */
+    public boolean isEmpty()
+    {
+        return size() == 0;
+    }
+
+    /**
+     * Returns the maximum number of elements the queue can hold
+     */
+    public int capacity()
+    {
+        return this.capacity;
+    }
+}
@@ -0,0 +1,154 @@
+// Import the Java classes
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A Room is a named group of users that messages can be sent to without reaching everyone
+ * else.  Its members are split by the shard their user lives on, and each shard changes and
+ * delivers to its own part only, on its own thread, the same way it owns its slice of the
+ * logged in users; so a message to a room of 20 costs 20 deliveries and a task for each of
+ * the shards that has members, however many users and rooms the server has.
+ *
+ * Rooms are created by their first JOIN and dropped by their last PART.  A room that was
+ * dropped is closed for good, and joining it again creates a new one; see acquire().
+ * 聊天室：成员按所在分片划分，每个分片只修改和投递自己的那部分成员
+ */
+public class Room
+{
+    private final String name;
+
+    private final byte[] nameBytes;
+
+    /**
+     * The members on each shard, created when the shard gets its first member; only used by
+     * that shard's thread
+     */
+    private final LinkedHashSet<ChatRequestHandler>[] members;
+
+    /**
+     * The number of members on each shard, which the other shards read to decide whether a
+     * message has to go there
+     */
+    private final AtomicIntegerArray shardCounts;
+
+    /**
+     * The users who have joined or are joining, or -1 once the room is closed
+     */
+    private final AtomicInteger users = new AtomicInteger( 0 );
+
+    @SuppressWarnings( { "unchecked", "rawtypes" } )
+    public Room( String name, int shardCount )
+    {
+        this.name = name;
+        this.nameBytes = name.getBytes( Charset.defaultCharset() );
+        this.members = new LinkedHashSet[ shardCount ];
+        this.shardCounts = new AtomicIntegerArray( shardCount );
+    }
+
+    /**
+     * Returns the room's name, as its first member spelled it
+     */
+    public String getName()
+    {
+        return this.name;
+    }
+
+    /**
+     * Returns the room's name encoded, for the frames built straight from a client's bytes
+     */
+    public byte[] getNameBytes()
+    {
+        return this.nameBytes;
+    }
+
+    /**
+     * Counts a user who is joining
+     *
+     * @return  false if the room was closed in the meantime; the caller must look it up again
+     */
+    public boolean acquire()
+    {
+        while( true )
+        {
+            int count = this.users.get();
+            if( count < 0 )
+            {
+                return false;
+            }
+            if( this.users.compareAndSet( count, count + 1 ) )
+            {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Stops counting a user who left
+     *
+     * @return  true if that was the last user; the room is closed then
+     */
+    public boolean release()
+    {
+        return this.users.decrementAndGet() == 0 && this.users.compareAndSet( 0, -1 );
+    }
+
+    /**
+     * Adds a member; must be called on the thread of the member's shard
+     */
+    public void add( int shard, ChatRequestHandler client )
+    {
+        if( this.members[ shard ] == null )
+        {
+            this.members[ shard ] = new LinkedHashSet<ChatRequestHandler>();
+        }
+        if( this.members[ shard ].add( client ) )
+        {
+            this.shardCounts.incrementAndGet( shard );
+        }
+    }
+
+    /**
+     * Removes a member; must be called on the thread of the member's shard
+     */
+    public void remove( int shard, ChatRequestHandler client )
+    {
+        if( this.members[ shard ] != null && this.members[ shard ].remove( client ) )
+        {
+            if( this.shardCounts.decrementAndGet( shard ) == 0 )
+            {
+                this.members[ shard ] = null;
+            }
+        }
+    }
+
+    /**
+     * Returns true if the room has members on the specified shard; may be called from any thread
+     */
+    public boolean hasMembers( int shard )
+    {
+        return this.shardCounts.get( shard ) > 0;
+    }
+
+    /**
+     * Sends the frame to the room's members on the specified shard except one; must be
+     * called on that shard's thread
+     */
+    public void deliver( int shard, Frame frame, ChatRequestHandler except )
+    {
+        if( this.members[ shard ] == null )
+        {
+            return;
+        }
+        for( Iterator<ChatRequestHandler> i=this.members[ shard ].iterator(); i.hasNext(); )
+        {
+            ChatRequestHandler client = i.next();
+            if( client != except )
+            {
+                client.deliver( frame );
+            }
+        }
+    }
+}
@@ -0,0 +1,456 @@
+// Import the Java classes
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A SearchIndex is an in-memory inverted index over the message text of the history: every
+ * term maps to the ascending ids of the history lines that contain it.
+ *
+ * Latin text is split into words; Chinese, Japanese and Korean text has no spaces, so every
+ * run of those characters is split into overlapping pairs ( "你好吗" gives "你好" and "好吗" ),
+ * which finds any word of two or more characters without a dictionary.  Every such character
+ * is indexed on its own as well, so that a query of one character finds it inside a run.
+ *
+ * The index is kept up to date by a thread of its own, fed by the history once each line is
+ * on disk, so neither delivery nor the history writer wait for it.  When it starts it first
+ * indexes the lines that the history already holds.
+ *
+ * History ids are longs that keep growing across restarts; the postings hold them as ints
+ * relative to a base id.  The index moves its base up whenever the history drops its oldest
+ * lines, which drops their ids too, or when an id would no longer fit in an int, which drops
+ * the ids that are more than 2^31 lines old.
+ * 历史消息的倒排索引，中日韩文字按二元组切分，由后台线程增量维护
+ */
+public class SearchIndex extends Thread implements HistoryLog.Listener
+{
+    /**
+     * A growable array of ascending ids, relative to the index's base id
+     */
+    private static class Postings
+    {
+        int[] ids = new int[ 4 ];
+
+        int size;
+
+        void add( int id )
+        {
+            // A term that appears twice in a line is only recorded once
+            if( this.size > 0 && this.ids[ this.size - 1 ] == id )
+            {
+                return;
+            }
+            if( this.size == this.ids.length )
+            {
+                int[] larger = new int[ this.size * 2 ];
+                System.arraycopy( this.ids, 0, larger, 0, this.size );
+                this.ids = larger;
+            }
+            this.ids[ this.size++ ] = id;
+        }
+
+        /**
+         * Returns true if the id is in the first "limit" ids
+         */
+        boolean contains( int id, int limit )
+        {
+            int low = 0;
+            int high = limit - 1;
+            while( low <= high )
+            {
+                int middle = ( low + high ) >>> 1;
+                if( this.ids[ middle ] < id )
+                {
+                    low = middle + 1;
+                }
+                else if( this.ids[ middle ] > id )
+                {
+                    high = middle - 1;
+                }
+                else
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Drops the ids below delta and makes the others relative to a base that is delta higher
+         */
+        void rebase( long delta )
+        {
+            int first = 0;
+            while( first < this.size && this.ids[ first ] < delta )
+            {
+                first++;
+            }
+            this.size -= first;
+            for( int i=0; i<this.size; i++ )
+            {
+                this.ids[ i ] = ( int )( this.ids[ first + i ] - delta );
+            }
+        }
+    }
+
+    /**
+     * A committed history line waiting to be indexed
+     */
+    private static class Line
+    {
+        final long id;
+
+        final String text;
+
+        Line( long id, String text )
+        {
+            this.id = id;
+            this.text = text;
+        }
+    }
+
+    /**
+     * The history that is indexed
+     */
+    private HistoryLog history;
+
+    /**
+     * Term to postings
+     */
+    private Map<String, Postings> terms = new HashMap<String, Postings>();
+
+    /**
+     * The id that the postings' ids are relative to; changed only under the write lock
+     */
+    private long baseId;
+
+    /**
+     * Lets any number of searches run at once, but not while lines are being added
+     */
+    private ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Lines committed to the history that are not indexed yet
+     */
+    private BlockingQueue<Line> pending = new LinkedBlockingQueue<Line>();
+
+    /**
+     * The number of lines indexed so far
+     */
+    private volatile long indexed;
+
+    private volatile boolean running = true;
+
+    /**
+     * Creates an index over the specified history and starts listening to it
+     */
+    public SearchIndex( HistoryLog history )
+    {
+        super( "SearchIndex" );
+        this.history = history;
+        this.baseId = history.getFirstId();
+        history.setListener( this );
+        setDaemon( true );
+    }
+
+    /**
+     * Splits a query into lower-case terms: words of letters and digits, and overlapping pairs
+     * of Chinese, Japanese or Korean characters ( a lone such character is a term itself )
+     */
+    public static Set<String> tokenize( String text )
+    {
+        return tokenize( text, false );
+    }
+
+    /**
+     * Splits text into lower-case terms, as above; with unigrams, every Chinese, Japanese or
+     * Korean character is a term as well, which is how messages are indexed
+     */
+    private static Set<String> tokenize( String text, boolean unigrams )
+    {
+        Set<String> tokens = new LinkedHashSet<String>();
+        String lower = text.toLowerCase( Locale.ROOT );
+        int length = lower.length();
+        int i = 0;
+        while( i < length )
+        {
+            int c = lower.codePointAt( i );
+            if( isCjk( c ) )
+            {
+                int start = i;
+                int previous = -1;
+                int count = 0;
+                while( i < length && isCjk( lower.codePointAt( i ) ) )
+                {
+                    int end = i + Character.charCount( lower.codePointAt( i ) );
+                    if( previous >= 0 )
+                    {
+                        tokens.add( lower.substring( previous, end ) );
+                    }
+                    if( unigrams )
+                    {
+                        tokens.add( lower.substring( i, end ) );
+                    }
+                    previous = i;
+                    i = end;
+                    count++;
+                }
+                if( count == 1 )
+                {
+                    tokens.add( lower.substring( start, i ) );
+                }
+            }
+            else if( Character.isLetterOrDigit( c ) )
+            {
+                int start = i;
+                while( i < length && Character.isLetterOrDigit( lower.codePointAt( i ) ) && !isCjk( lower.codePointAt( i ) ) )
+                {
+                    i += Character.charCount( lower.codePointAt( i ) );
+                }
+                tokens.add( lower.substring( start, i ) );
+            }
+            else
+            {
+                i += Character.charCount( c );
+            }
+        }
+        return tokens;
+    }
+
+    private static boolean isCjk( int c )
+    {
+        Character.UnicodeScript script = Character.UnicodeScript.of( c );
+        return script == Character.UnicodeScript.HAN || script == Character.UnicodeScript.HIRAGANA
+                || script == Character.UnicodeScript.KATAKANA || script == Character.UnicodeScript.HANGUL;
+    }
+
+    /**
+     * Returns the message text of a history line "<command> <user>:<message>"; usernames
+     * cannot hold a ':', so the message starts after the first one that follows the command
+     */
+    private static String messageText( String line )
+    {
+        int colon = line.indexOf( ':', line.indexOf( ' ' ) + 1 );
+        return colon < 0 ? line : line.substring( colon + 1 );
+    }
+
+    /**
+     * Queues a committed history line for indexing; called on the history's thread
+     */
+    public void committed( long id, String line )
+    {
+        this.pending.offer( new Line( id, line ) );
+    }
+
+    /**
+     * Returns the number of lines indexed so far
+     */
+    public long getIndexed()
+    {
+        return this.indexed;
+    }
+
+    /**
+     * Returns up to count of the most recent history lines whose message contains every one
+     * of the terms, newest first
+     */
+    public List<HistoryLog.Entry> find( String query, int count )
+    {
+        List<HistoryLog.Entry> found = new ArrayList<HistoryLog.Entry>();
+        Set<String> tokens = tokenize( query );
+        if( tokens.isEmpty() )
+        {
+            return found;
+        }
+
+        // The runs of letters and digits of the query, to check the candidates against: pairs
+        // of characters only tell us that each pair occurs somewhere in the message, not that
+        // they follow each other
+        String[] words = query.toLowerCase( Locale.ROOT ).split( "[^\\p{L}\\p{N}]+" );
+
+        this.lock.readLock().lock();
+        try
+        {
+            // Walk the shortest postings from the newest id back and look the ids up in the others
+            Postings[] lists = new Postings[ tokens.size() ];
+            int[] limits = new int[ lists.length ];
+            int shortest = 0;
+            int n = 0;
+            for( String token : tokens )
+            {
+                Postings postings = this.terms.get( token );
+                if( postings == null )
+                {
+                    return found;
+                }
+                lists[ n ] = postings;
+                limits[ n ] = postings.size;
+                if( postings.size < lists[ shortest ].size )
+                {
+                    shortest = n;
+                }
+                n++;
+            }
+            for( int i=limits[ shortest ]-1; i>=0 && found.size()<count; i-- )
+            {
+                int id = lists[ shortest ].ids[ i ];
+                boolean all = true;
+                for( int j=0; j<lists.length && all; j++ )
+                {
+                    all = j == shortest || lists[ j ].contains( id, limits[ j ] );
+                }
+                if( all )
+                {
+                    HistoryLog.Entry entry = this.history.get( this.baseId + id );
+                    if( entry != null && containsAll( messageText( entry.line ).toLowerCase( Locale.ROOT ), words ) )
+                    {
+                        found.add( entry );
+                    }
+                }
+            }
+        }
+        finally
+        {
+            this.lock.readLock().unlock();
+        }
+        return found;
+    }
+
+    private static boolean containsAll( String text, String[] words )
+    {
+        for( int i=0; i<words.length; i++ )
+        {
+            if( words[ i ].length() > 0 && text.indexOf( words[ i ] ) < 0 )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops indexing
+     */
+    public void shutdown()
+    {
+        this.running = false;
+        interrupt();
+    }
+
+    /**
+     * Indexes what the history already holds, then the lines as they are committed
+     */
+    public void run()
+    {
+        // Lines from before this point are read back from the history; later ones arrive in
+        // the queue, where the ones that were already read back are skipped
+        long end = this.history.getNextId();
+        for( long id=this.history.getFirstId(); id<end && this.running; )
+        {
+            List<HistoryLog.Entry> entries = this.history.read( Math.min( id + 1024, end ), 1024 );
+            List<Line> lines = new ArrayList<Line>( entries.size() );
+            for( int i=0; i<entries.size(); i++ )
+            {
+                lines.add( new Line( entries.get( i ).id, entries.get( i ).line ) );
+            }
+            add( lines );
+            id += 1024;
+        }
+
+        List<Line> lines = new ArrayList<Line>();
+        while( this.running )
+        {
+            try
+            {
+                lines.add( this.pending.take() );
+                this.pending.drainTo( lines );
+                for( int i=lines.size()-1; i>=0; i-- )
+                {
+                    if( lines.get( i ).id < end )
+                    {
+                        lines.remove( i );
+                    }
+                }
+                add( lines );
+            }
+            catch( InterruptedException e )
+            {
+                break;
+            }
+            lines.clear();
+        }
+    }
+
+    /**
+     * Adds lines, in ascending id order, to the index
+     */
+    private void add( List<Line> lines )
+    {
+        this.lock.writeLock().lock();
+        try
+        {
+            long firstId = this.history.getFirstId();
+            if( firstId > this.baseId )
+            {
+                rebase( firstId );
+            }
+            for( int i=0; i<lines.size(); i++ )
+            {
+                Line line = lines.get( i );
+                if( line.id < this.baseId )
+                {
+                    // Dropped from the history already
+                    continue;
+                }
+                if( line.id - this.baseId > Integer.MAX_VALUE )
+                {
+                    rebase( line.id - Integer.MAX_VALUE );
+                }
+                for( String token : tokenize( messageText( line.text ), true ) )
+                {
+                    Postings postings = this.terms.get( token );
+                    if( postings == null )
+                    {
+                        postings = new Postings();
+                        this.terms.put( token, postings );
+                    }
+                    postings.add( ( int )( line.id - this.baseId ) );
+                }
+            }
+            this.indexed += lines.size();
+        }
+        finally
+        {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Moves the base id up, dropping the ids below it and the terms left without any; called
+     * with the write lock held
+     */
+    private void rebase( long baseId )
+    {
+        long delta = baseId - this.baseId;
+        for( Iterator<Postings> i=this.terms.values().iterator(); i.hasNext(); )
+        {
+            Postings postings = i.next();
+            postings.rebase( delta );
+            if( postings.size == 0 )
+            {
+                i.remove();
+            }
+        }
+        this.baseId = baseId;
+        Log.debug( "Search index rebased to line {}", Long.valueOf( baseId ) );
+    }
+}
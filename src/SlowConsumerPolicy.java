@@ -0,0 +1,42 @@
+/**
+ * What a session does when its client reads slower than messages arrive for it
+ * 客户端读取过慢时的处理策略
+ */
+public enum SlowConsumerPolicy
+{
+    /**
+     * Drop the oldest pending messages to make room for new ones
+     */
+    DROP_OLDEST,
+
+    /**
+     * Disconnect the client once too many messages are pending
+     */
+    DISCONNECT,
+
+    /**
+     * Stop reading commands from the client until it has caught up; if the backlog still
+     * grows to twice the limit, the client is disconnected
+     */
+    PAUSE_READER;
+
+    /**
+     * Parses a policy from the command line: drop, disconnect or pause
+     */
+    public static SlowConsumerPolicy parse( String s )
+    {
+        if( s.equalsIgnoreCase( "drop" ) )
+        {
+            return DROP_OLDEST;
+        }
+        if( s.equalsIgnoreCase( "disconnect" ) )
+        {
+            return DISCONNECT;
+        }
+        if( s.equalsIgnoreCase( "pause" ) )
+        {
+            return PAUSE_READER;
+        }
+        return valueOf( s.toUpperCase() );
+    }
+}
@@ -0,0 +1,178 @@
+// Import the Java classes
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A SocketWriter drains a blocking client's OutboundQueue on a thread of its own, so that
+ * a client with a full TCP window only ever blocks its own writer.  The queued buffers are
+ * written as they are, several in one gathering write, instead of being copied into a
+ * batch of our own first.
+ * 阻塞模式下每个连接的写线程
+ */
+public class SocketWriter implements Runnable, OutboundQueue.Listener
+{
+    private static final LongAdder bytesOut = MetricsRegistry.theRegistry.counter( "bytes.out" );
+
+    /**
+     * The most buffers written in one call
+     */
+    private static final int MAX_GATHER = 64;
+
+    private Socket socket;
+
+    private SocketChannel channel;
+
+    private OutboundQueue queue;
+
+    /**
+     * Our thread, unparked whenever output is queued
+     */
+    private volatile Thread thread;
+
+    /**
+     * Set once we should write what is left and stop
+     */
+    private volatile boolean finishing = false;
+
+    /**
+     * Queued messages are gathered up here and written to the socket in one call
+     */
+    private ByteBuffer[] gather = new ByteBuffer[ MAX_GATHER ];
+
+    /**
+     * Number of buffers gathered
+     */
+    private int gatherCount = 0;
+
+    /**
+     * Creates a new SocketWriter for the socket, which must have a channel, as every socket
+     * the server accepts does
+     */
+    public SocketWriter( Socket socket, int maxPending, SlowConsumerPolicy policy ) throws IOException
+    {
+        this.socket = socket;
+        this.channel = socket.getChannel();
+        if( this.channel == null )
+        {
+            throw new IOException( "The socket has no channel" );
+        }
+        this.queue = new OutboundQueue( maxPending, policy, this );
+    }
+
+    /**
+     * Returns the queue that this writer drains
+     */
+    public OutboundQueue getQueue()
+    {
+        return this.queue;
+    }
+
+    /**
+     * Starts the writer thread
+     */
+    public void start()
+    {
+        this.thread = VirtualThreadExecutor.newThread( this, "SocketWriter" );
+        this.thread.start();
+    }
+
+    /**
+     * Writes what is queued, then closes the socket and stops
+     */
+    public void finish()
+    {
+        this.finishing = true;
+        this.queue.close();
+        LockSupport.unpark( this.thread );
+    }
+
+    public void outputQueued()
+    {
+        LockSupport.unpark( this.thread );
+    }
+
+    public void slowConsumer( int pending )
+    {
+        Log.warn( "Disconnecting slow client, {} messages pending", Integer.valueOf( pending ) );
+        try
+        {
+            // The reader notices the closed socket and logs the user out
+            this.socket.close();
+        }
+        catch( IOException e ) {}
+    }
+
+    /**
+     * The writer's main processing loop
+     */
+    public void run()
+    {
+        try
+        {
+            while( true )
+            {
+                ByteBuffer buffer = this.queue.poll();
+                if( buffer == null )
+                {
+                    // Send what we gathered up before we wait for more
+                    flushGather();
+                    if( this.finishing && this.queue.isEmpty() )
+                    {
+                        // Everything is written; the client sees end of stream only now
+                        close();
+                        break;
+                    }
+                    if( this.queue.isEmpty() )
+                    {
+                        LockSupport.park( this );
+                    }
+                    continue;
+                }
+                this.gather[ this.gatherCount++ ] = buffer;
+                if( this.gatherCount == MAX_GATHER )
+                {
+                    flushGather();
+                }
+            }
+        }
+        catch( IOException e )
+        {
+            // The client went away; closing the socket wakes the reader up too
+            this.queue.close();
+            close();
+        }
+    }
+
+    /**
+     * Closes the socket
+     */
+    private void close()
+    {
+        try
+        {
+            this.socket.close();
+        }
+        catch( IOException e ) {}
+    }
+
+    /**
+     * Writes the gathered buffers to the socket
+     */
+    private void flushGather() throws IOException
+    {
+        int offset = 0;
+        while( offset < this.gatherCount )
+        {
+            bytesOut.add( this.channel.write( this.gather, offset, this.gatherCount - offset ) );
+            while( offset < this.gatherCount && !this.gather[ offset ].hasRemaining() )
+            {
+                this.gather[ offset++ ] = null;
+            }
+        }
+        this.gatherCount = 0;
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * An unbounded single-producer/single-consumer queue.  The producer only ever touches the
+ * tail and the consumer only ever touches the head, so neither needs a lock or a CAS;
+ * one volatile write publishes each element.
+ * 单生产者/单消费者队列
+ */
+public class SpscQueue<E>
+{
+    private static class Node<E>
+    {
+        E value;
+        volatile Node<E> next;
+    }
+
+    /**
+     * The consumer's end; always a node whose value has already been taken
+     */
+    private Node<E> head;
+
+    /**
+     * The producer's end
+     */
+    private Node<E> tail;
+
+    public SpscQueue()
+    {
+        Node<E> stub = new Node<E>();
+        this.head = stub;
+        this.tail = stub;
+    }
+
+    /**
+     * Adds the element; must only be called by the producer thread
+     */
+    public void offer( E e )
+    {
+        Node<E> node = new Node<E>();
+        node.value = e;
+        this.tail.next = node;
+        this.tail = node;
+    }
+
+    /**
+     * Removes the oldest element; must only be called by the consumer thread
+     *
+     * @return  The element, or null if the queue is empty
+     */
+    public E poll()
+    {
+        Node<E> next = this.head.next;
+        if( next == null )
+        {
+            return null;
+        }
+        E e = next.value;
+        next.value = null;
+        this.head = next;
+        return e;
+    }
+
+    /**
+     * Returns true if the queue is empty; may be called from any thread
+     */
+    public boolean isEmpty()
+    {
+        return this.head.next == null;
+    }
+}
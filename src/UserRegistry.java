@@ -0,0 +1,105 @@
+// Import the Java classes
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A thread-safe registry of logged in users, keyed by their normalized (case-insensitive)
+ * username.  Lookups are constant time and iterating over the users is safe while other
+ * threads log in and out.
+ * 线程安全的在线用户表，用户名不区分大小写
+ */
+public class UserRegistry
+{
+    /**
+     * Normalized username to user
+     */
+    private ConcurrentHashMap<String, ChatRequestHandler> users = new ConcurrentHashMap<String, ChatRequestHandler>();
+
+    /**
+     * Normalized username to the username as the user typed it
+     */
+    private ConcurrentHashMap<String, String> names = new ConcurrentHashMap<String, String>();
+
+    /**
+     * Returns the key that the specified username is stored under
+     */
+    public static String normalize( String username )
+    {
+        return username.trim().toLowerCase( Locale.ROOT );
+    }
+
+    /**
+     * Registers a user
+     *
+     * @throws DuplicateLoginException  if a user with the same normalized name is logged in
+     */
+    public void add( String username, ChatRequestHandler client ) throws DuplicateLoginException
+    {
+        String key = normalize( username );
+        if( this.users.putIfAbsent( key, client ) != null )
+        {
+            throw new DuplicateLoginException( username );
+        }
+        this.names.put( key, username );
+    }
+
+    /**
+     * Removes a user
+     *
+     * @return  The removed user, or null if the user was not logged in
+     */
+    public ChatRequestHandler remove( String username )
+    {
+        String key = normalize( username );
+        ChatRequestHandler client = this.users.remove( key );
+        if( client != null )
+        {
+            this.names.remove( key );
+        }
+        return client;
+    }
+
+    /**
+     * Returns the specified user, or null if the user is not logged in
+     */
+    public ChatRequestHandler get( String username )
+    {
+        return this.users.get( normalize( username ) );
+    }
+
+    /**
+     * Returns true if the specified user is logged in
+     */
+    public boolean contains( String username )
+    {
+        return this.users.containsKey( normalize( username ) );
+    }
+
+    /**
+     * Returns a live, weakly consistent view of the logged in users, safe to iterate
+     * while users log in and out
+     */
+    public Collection<ChatRequestHandler> clients()
+    {
+        return this.users.values();
+    }
+
+    /**
+     * Returns a sorted snapshot of the usernames
+     */
+    public Set<String> getUsernames()
+    {
+        return new TreeSet<String>( this.names.values() );
+    }
+
+    /**
+     * Returns the number of logged in users
+     */
+    public int size()
+    {
+        return this.users.size();
+    }
+}
@@ -0,0 +1,181 @@
+// Import the Java classes
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A VirtualThreadExecutor runs every accepted socket on its own thread, keeping the
+ * blocking RequestHandler programming model without a thread-count ceiling.  Virtual
+ * threads are used when the JVM provides them (Java 21+), otherwise it falls back to one
+ * platform thread per connection.
+ * 每个连接一个（虚拟）线程
+ */
+public class VirtualThreadExecutor
+{
+    /**
+     * The Thread.Builder.OfVirtual instance, or null if virtual threads are not available
+     */
+    private static Object builder;
+
+    /**
+     * Thread.Builder.unstarted( Runnable )
+     */
+    private static Method unstarted;
+
+    static
+    {
+        try
+        {
+            // Looked up reflectively so that the server still compiles and runs on older JVMs
+            Method ofVirtual = Thread.class.getMethod( "ofVirtual" );
+            builder = ofVirtual.invoke( null );
+            unstarted = Class.forName( "java.lang.Thread$Builder" ).getMethod( "unstarted", Runnable.class );
+        }
+        catch( Exception e )
+        {
+            builder = null;
+        }
+    }
+
+    /**
+     * Creates the handler of every connection
+     */
+    private RequestHandlerFactory requestHandlerFactory;
+
+    /**
+     * The sockets that are currently being handled, closed on shutdown
+     */
+    private Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Number of threads started so far, used for naming
+     */
+    private static AtomicInteger threadNumber = new AtomicInteger( 0 );
+
+    private volatile boolean running = true;
+
+    /**
+     * Creates a new VirtualThreadExecutor
+     */
+    public VirtualThreadExecutor( RequestHandlerFactory requestHandlerFactory )
+    {
+        this.requestHandlerFactory = requestHandlerFactory;
+        if( !isVirtual() )
+        {
+            Log.info( "Virtual threads are not available on this JVM, using one platform thread per connection" );
+        }
+    }
+
+    /**
+     * Returns true if connections run on virtual threads
+     */
+    public static boolean isVirtual()
+    {
+        return builder != null;
+    }
+
+    /**
+     * Returns the number of connections currently being handled
+     */
+    public int getActiveThreads()
+    {
+        return this.sockets.size();
+    }
+
+    /**
+     * Handles the socket on a new thread
+     *
+     * @param socket    The accepted socket
+     */
+    public void execute( final Socket socket ) throws RequestQueueException
+    {
+        if( !this.running )
+        {
+            throw new RequestQueueException( "The executor has been shut down" );
+        }
+
+        final RequestHandler requestHandler;
+        try
+        {
+            requestHandler = ( RequestHandler )this.requestHandlerFactory.newHandler();
+        }
+        catch( Exception e )
+        {
+            throw new RequestQueueException( "Cannot create request handler: " + e );
+        }
+
+        Runnable task = new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    requestHandler.handleRequest( socket );
+                }
+                catch( Exception e )
+                {
+                    Log.error( "Request failed", e );
+                }
+                finally
+                {
+                    sockets.remove( socket );
+                }
+            }
+        };
+
+        this.sockets.add( socket );
+        try
+        {
+            newThread( task, "Connection" ).start();
+        }
+        catch( RuntimeException e )
+        {
+            this.sockets.remove( socket );
+            throw e;
+        }
+    }
+
+    /**
+     * Creates an unstarted virtual thread, or a daemon platform thread if virtual threads
+     * are not available
+     *
+     * @param task      What the thread runs
+     * @param name      Prefix of the platform thread's name
+     */
+    public static Thread newThread( Runnable task, String name )
+    {
+        if( builder != null )
+        {
+            try
+            {
+                return ( Thread )unstarted.invoke( builder, task );
+            }
+            catch( Exception e )
+            {
+                Log.error( "Cannot create a virtual thread", e );
+            }
+        }
+        Thread thread = new Thread( task, name + "-" + threadNumber.getAndIncrement() );
+        thread.setDaemon( true );
+        return thread;
+    }
+
+    /**
+     * Closes every open connection, which ends the threads that are blocked reading from them
+     */
+    public void shutdown()
+    {
+        Log.info( "Closing {} connections...", Integer.valueOf( this.sockets.size() ) );
+        this.running = false;
+        for( Socket socket : this.sockets )
+        {
+            try
+            {
+                socket.close();
+            }
+            catch( Exception e ) {}
+        }
+    }
+}